@@ -0,0 +1,233 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2020
+ */
+package org.bitbucket.ucchy.undine;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * レコードを末尾に追記していくファイル。フラグのログ、UUIDキャッシュのログ、添付アイテムのストアで共通の処理をまとめたもの。
+ * <p>
+ * ヘッダー（マジックナンバーとバージョン）を付ける場合は、読み込み時に形式を確認し、
+ * 形式がわからないファイルは、追記で壊さないように別名で退避して、新しいファイルから始める。
+ * 末尾に途中で途切れたレコードがある場合は、後から追記するレコードが読めなくならないように、
+ * 最後の完全なレコードの終わりまでファイルを切り詰める。
+ * </p>
+ * <p>
+ * このクラスは同期しないので、呼び出し側で同期すること。
+ * </p>
+ * @author ucchy
+ */
+public class AppendLogFile {
+
+    /**
+     * レコードを1件ずつ読み込むためのインターフェイス
+     */
+    public interface RecordReader {
+
+        /**
+         * レコードを1件読み込む。ファイルの終端に達した場合は、EOFExceptionが発生する。
+         * @param in 入力ストリーム
+         * @throws IOException 読み込みに失敗した場合
+         */
+        public void read(DataInputStream in) throws IOException;
+    }
+
+    /**
+     * 書き直すときに、有効なレコードを書き込むためのインターフェイス
+     */
+    public interface RecordWriter {
+
+        /**
+         * 有効なレコードを全て書き込む
+         * @param out 出力ストリーム
+         * @throws IOException 書き込みに失敗した場合
+         */
+        public void write(DataOutputStream out) throws IOException;
+    }
+
+    private File file;
+    private boolean hasHeader;
+    private int magic;
+    private int version;
+    private DataOutputStream out;
+
+    /**
+     * コンストラクタ。ヘッダーの無いファイルとして扱う。
+     * @param file ファイル
+     */
+    public AppendLogFile(File file) {
+        this.file = file;
+    }
+
+    /**
+     * コンストラクタ
+     * @param file ファイル
+     * @param magic ヘッダーのマジックナンバー
+     * @param version ヘッダーのバージョン
+     */
+    public AppendLogFile(File file, int magic, int version) {
+        this.file = file;
+        this.hasHeader = true;
+        this.magic = magic;
+        this.version = version;
+    }
+
+    /**
+     * ファイルを取得する
+     * @return ファイル
+     */
+    protected File getFile() {
+        return file;
+    }
+
+    /**
+     * 現在のファイルの長さを取得する。追記に失敗したときに、discardAppended で元に戻すために使う。
+     * @return ファイルの長さ
+     */
+    protected long length() {
+        return file.length();
+    }
+
+    /**
+     * ファイルの全てのレコードを、先頭から順に読み込む。
+     * 途中で途切れたレコードや、形式がわからないファイルの扱いは、クラスの説明を参照。
+     * @param reader レコードを読み込むインターフェイス
+     */
+    protected void read(RecordReader reader) {
+
+        closeStream();
+
+        if ( !file.exists() ) return;
+
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(file.toPath());
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+
+        ByteArrayInputStream bin = new ByteArrayInputStream(bytes);
+        DataInputStream in = new DataInputStream(bin);
+        int valid = 0;
+        try {
+            if ( hasHeader ) {
+                if ( in.readInt() != magic || in.readInt() > version ) {
+                    File backup = new File(file.getParentFile(), file.getName() + ".unknown");
+                    UndineMailer.getInstance().getLogger().warning("Could not read " + file.getName()
+                            + ", unknown format. The file was moved to " + backup.getName() + ".");
+                    Utility.replaceFile(file, backup);
+                    return;
+                }
+                valid = bytes.length - bin.available();
+            }
+            while ( true ) {
+                reader.read(in);
+                valid = bytes.length - bin.available();
+            }
+        } catch (EOFException e) {
+            // ファイルの終端。
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        if ( valid < bytes.length ) {
+            UndineMailer.getInstance().getLogger().warning("Removed a broken record at the end of "
+                    + file.getName() + " (" + (bytes.length - valid) + " bytes).");
+            try {
+                Utility.truncateFile(file, valid);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * 追記用のストリームを取得する。ファイルが無い場合は、ヘッダーを書き込む。
+     * @return 出力ストリーム
+     * @throws IOException ファイルを開けなかった場合
+     */
+    protected DataOutputStream getStream() throws IOException {
+        if ( out == null ) {
+            boolean isNew = !file.exists() || file.length() == 0;
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+            if ( hasHeader && isNew ) {
+                out.writeInt(magic);
+                out.writeInt(version);
+            }
+        }
+        return out;
+    }
+
+    /**
+     * 追記に失敗したときに、ストリームを閉じて、途中まで書き込んだレコードを取り除く
+     * @param length 追記する前のファイルの長さ
+     */
+    protected void discardAppended(long length) {
+        closeStream();
+        try {
+            Utility.truncateFile(file, length);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 有効なレコードだけを含むように、ファイルを書き直す。
+     * 一時ファイルに書き込んでから置き換えるので、途中で失敗しても元のファイルは残る。
+     * @param writer 有効なレコードを書き込むインターフェイス
+     * @return 書き直しに成功したかどうか
+     */
+    protected boolean rewrite(RecordWriter writer) {
+
+        closeStream();
+
+        File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+        try (DataOutputStream tempOut = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp)))) {
+            if ( hasHeader ) {
+                tempOut.writeInt(magic);
+                tempOut.writeInt(version);
+            }
+            writer.write(tempOut);
+        } catch (IOException e) {
+            e.printStackTrace();
+            temp.delete();
+            return false;
+        }
+
+        try {
+            Utility.replaceFile(temp, file);
+        } catch (IOException e) {
+            e.printStackTrace();
+            temp.delete();
+            UndineMailer.getInstance().getLogger().warning("Could not compact " + file.getName() + ".");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 追記用のストリームを閉じる
+     */
+    protected void closeStream() {
+        if ( out == null ) return;
+        try {
+            out.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        out = null;
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2020
+ */
+package org.bitbucket.ucchy.undine;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.bukkit.inventory.ItemStack;
+
+/**
+ * 添付アイテムの内容を、ハッシュ値をキーにして1つのファイルにまとめて保存するストア。
+ * <p>
+ * メールデータには添付アイテムそのものの代わりに (ハッシュ値, 個数) を保存し、
+ * アイテムの内容（個数を1にしたもの）はこのストアに1度だけ保存する。
+ * 同じアイテムを添付した多数のメール（複数の宛先への添付付きメールの複製など）があっても、
+ * アイテムの内容は1つだけになり、ロード時の解析も1回で済む。
+ * </p>
+ * <p>
+ * ファイルには新しい内容を末尾に追記していき、どのメールからも参照されなくなった内容は、
+ * メールデータのロード後に、参照されている内容だけを書き直すことで削除する。
+ * </p>
+ * @author ucchy
+ * @see AppendLogFile
+ */
+public class AttachmentBlobStore {
+
+    /** ファイルの名前 */
+    protected static final String FILE_NAME = "attachments.blob";
+
+    private static final int MAGIC = 0x55444142;
+    private static final int VERSION = 1;
+
+    private AppendLogFile log;
+
+    // ハッシュ値 → アイテムの内容（Yaml形式の文字列）
+    private LinkedHashMap<String, String> blobs;
+    // ハッシュ値 → 解析済みのアイテム（個数は1）
+    private HashMap<String, ItemStack> items;
+    // ロードしてから参照されたハッシュ値
+    private HashSet<String> used;
+    // ロードしてから、ストアに無い内容が参照されたかどうか
+    private boolean hasMissing;
+
+    /**
+     * コンストラクタ
+     * @param folder ファイルを置くフォルダ
+     */
+    public AttachmentBlobStore(File folder) {
+        this.log = new AppendLogFile(new File(folder, FILE_NAME), MAGIC, VERSION);
+        this.blobs = new LinkedHashMap<String, String>();
+        this.items = new HashMap<String, ItemStack>();
+        this.used = new HashSet<String>();
+    }
+
+    /**
+     * ファイルを読み込む。
+     * 末尾に途中で途切れたレコードがある場合は、後から追記する内容が読めなくならないように、
+     * 最後の完全なレコードの終わりまでファイルを切り詰める。
+     * 形式がわからないファイルは、追記で壊さないように別名で退避して、新しいファイルから始める。
+     */
+    protected synchronized void load() {
+
+        blobs.clear();
+        items.clear();
+        used.clear();
+        hasMissing = false;
+
+        log.read(new AppendLogFile.RecordReader() {
+            public void read(DataInputStream in) throws IOException {
+                String hash = in.readUTF();
+                String data = MailDataCodec.readString(in);
+                blobs.put(hash, data);
+            }
+        });
+    }
+
+    /**
+     * アイテムの内容をストアに追加して、そのハッシュ値を返す。既に同じ内容がある場合は追加しない。
+     * @param item アイテム
+     * @return ハッシュ値
+     * @throws IOException ファイルへの書き込みに失敗した場合
+     */
+    protected String put(ItemStack item) throws IOException {
+
+        ItemStack single = item.clone();
+        single.setAmount(1);
+        String data = MailDataCodec.encodeItem(single);
+        String hash = digest(data);
+
+        synchronized (this) {
+            used.add(hash);
+            if ( blobs.containsKey(hash) ) return hash;
+            long length = log.length();
+            try {
+                DataOutputStream out = log.getStream();
+                writeRecord(out, hash, data);
+                out.flush();
+            } catch (IOException e) {
+                log.discardAppended(length);
+                throw e;
+            }
+            blobs.put(hash, data);
+        }
+        return hash;
+    }
+
+    /**
+     * 指定されたハッシュ値のアイテムを、指定された個数で取得する
+     * @param hash ハッシュ値
+     * @param amount 個数
+     * @return アイテム、ストアに無い場合や解析できない場合はnull
+     */
+    protected synchronized ItemStack get(String hash, int amount) {
+
+        used.add(hash);
+        ItemStack item = items.get(hash);
+        if ( item == null ) {
+            String data = blobs.get(hash);
+            if ( data == null ) {
+                // 読み込めなかったメールと同じように扱い、このロードの後はファイルを整理しない
+                UndineMailer.getInstance().getLogger().warning(
+                        "Attachment " + hash + " is not found in " + FILE_NAME + ".");
+                hasMissing = true;
+                return null;
+            }
+            item = MailDataCodec.decodeItem(data);
+            if ( item == null ) return null;
+            items.put(hash, item);
+        }
+
+        ItemStack result = item.clone();
+        result.setAmount(amount);
+        return result;
+    }
+
+    /**
+     * ロードしてから参照されていない内容が多い場合は、参照された内容だけを含むようにファイルを書き直す。
+     * 全てのメールデータをロードした後に呼び出すこと。
+     * ストアに無い内容を参照したメールがあった場合は、ファイルが壊れている可能性があるので書き直さない。
+     */
+    protected synchronized void compactIfNeeded() {
+
+        if ( hasMissing ) {
+            UndineMailer.getInstance().getLogger().warning(
+                    "Some attachments are missing, so " + FILE_NAME + " was not compacted.");
+            return;
+        }
+        if ( blobs.size() <= used.size() * 2 ) return;
+
+        final LinkedHashMap<String, String> live = new LinkedHashMap<String, String>();
+        for ( Map.Entry<String, String> entry : blobs.entrySet() ) {
+            if ( used.contains(entry.getKey()) ) {
+                live.put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        boolean success = log.rewrite(new AppendLogFile.RecordWriter() {
+            public void write(DataOutputStream out) throws IOException {
+                for ( Map.Entry<String, String> entry : live.entrySet() ) {
+                    writeRecord(out, entry.getKey(), entry.getValue());
+                }
+            }
+        });
+        if ( !success ) return;
+
+        items.keySet().retainAll(live.keySet());
+        blobs = live;
+    }
+
+    /**
+     * ファイルを閉じる
+     */
+    protected synchronized void close() {
+        log.closeStream();
+    }
+
+    // レコードを書き込む
+    private static void writeRecord(DataOutputStream out, String hash, String data) throws IOException {
+        out.writeUTF(hash);
+        MailDataCodec.writeString(out, data);
+    }
+
+    // アイテムの内容のハッシュ値を、16進数の文字列で返す
+    private static String digest(String data) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            StringBuilder builder = new StringBuilder();
+            for ( byte b : md.digest(data.getBytes(StandardCharsets.UTF_8)) ) {
+                builder.append(String.format("%02x", b & 0xff));
+            }
+            return builder.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-1は全てのJava実行環境で使えるので、ここには来ない。
+            throw new IllegalStateException(e);
+        }
+    }
+}
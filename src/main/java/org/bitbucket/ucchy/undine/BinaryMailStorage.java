@@ -0,0 +1,309 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2020
+ */
+package org.bitbucket.ucchy.undine;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * メールデータを、1メール1ファイルのバイナリ形式でフォルダに保存する保存先。
+ * 同じフォルダにYaml形式のファイルが残っていても読み込むことができ、
+ * 保存し直したときにバイナリ形式のファイルに置き換えられる。
+ * 既読フラグとゴミ箱フラグの変更は、メールファイルを書き直さずにフラグのログに追記する。
+ * 添付アイテムの内容は、添付アイテムのストアにまとめて保存する。
+ * @author ucchy
+ * @see MailDataCodec
+ * @see MailFlagLog
+ * @see AttachmentBlobStore
+ */
+public class BinaryMailStorage implements MailStorage {
+
+    protected static final String EXTENSION_BINARY = ".dat";
+    protected static final String EXTENSION_YAML = ".yml";
+
+    private File folder;
+    private MailFlagLog flagLog;
+    private AttachmentBlobStore blobs;
+
+    /**
+     * コンストラクタ
+     * @param folder メールデータを格納するフォルダ
+     */
+    public BinaryMailStorage(File folder) {
+        this.folder = folder;
+        this.flagLog = new MailFlagLog(folder);
+        this.blobs = new AttachmentBlobStore(folder);
+    }
+
+    /**
+     * 指定されたメールデータを保存する
+     * @param mail メールデータ
+     * @see org.bitbucket.ucchy.undine.MailStorage#save(org.bitbucket.ucchy.undine.MailData)
+     */
+    @Override
+    public void save(MailData mail) {
+        File file = getFile(folder, mail.getIndex(), EXTENSION_BINARY);
+        try {
+            saveBinary(mail, file, blobs);
+        } catch (IOException e) {
+            throw new MailStorageException("Could not save " + file.getName() + ".", e);
+        }
+        deleteIfExists(getFile(folder, mail.getIndex(), EXTENSION_YAML));
+        flagLog.reset(mail);
+    }
+
+    /**
+     * 指定されたメールデータをまとめて保存する
+     * @param mails メールデータ
+     * @see org.bitbucket.ucchy.undine.MailStorage#saveAll(java.util.Collection)
+     */
+    @Override
+    public void saveAll(Collection<MailData> mails) {
+        for ( MailData mail : mails ) {
+            save(mail);
+        }
+    }
+
+    /**
+     * 指定されたインデクスのメールデータを削除する
+     * @param index インデクス
+     * @see org.bitbucket.ucchy.undine.MailStorage#delete(int)
+     */
+    @Override
+    public void delete(int index) {
+        deleteIfExists(getFile(folder, index, EXTENSION_BINARY));
+        deleteIfExists(getFile(folder, index, EXTENSION_YAML));
+        flagLog.forget(index);
+    }
+
+    /**
+     * 指定されたインデクスのメールデータをまとめて削除する
+     * @param indexes インデクス
+     * @see org.bitbucket.ucchy.undine.MailStorage#deleteAll(java.util.Collection)
+     */
+    @Override
+    public void deleteAll(Collection<Integer> indexes) {
+        for ( int index : indexes ) {
+            delete(index);
+        }
+    }
+
+    /**
+     * 保存されている全てのメールデータを、1件ずつロードしてハンドラに渡す。
+     * 同じインデクスのバイナリ形式とYaml形式のファイルがある場合は、更新日時が新しい方を読み込む。
+     * @param handler ハンドラ
+     * @see org.bitbucket.ucchy.undine.MailStorage#load(org.bitbucket.ucchy.undine.MailStorage.LoadHandler)
+     */
+    @Override
+    public void load(LoadHandler handler) {
+        loadFolder(folder, flagLog, blobs, handler);
+    }
+
+    /**
+     * 指定されたフォルダ内の全てのメールファイルを、1件ずつロードしてハンドラに渡す。
+     * ファイルはどちらの形式でも読み込むので、保存形式を切り替えた後でも、もう一方の形式のメールが消えることはない。
+     * 全てのメールを読めた場合だけ、フラグのログと添付アイテムのストアを整理する。
+     * @param folder メールデータを格納するフォルダ
+     * @param flagLog フラグのログ
+     * @param blobs 添付アイテムのストア
+     * @param handler ハンドラ
+     */
+    protected static void loadFolder(File folder, MailFlagLog flagLog,
+            final AttachmentBlobStore blobs, LoadHandler handler) {
+
+        long start = System.currentTimeMillis();
+
+        Collection<File> files = listMailFiles(folder);
+
+        long listEnd = System.currentTimeMillis();
+
+        flagLog.load();
+        blobs.load();
+        boolean hasError = false;
+        ArrayList<Integer> indexes = new ArrayList<Integer>(files.size());
+
+        // ファイルの解析は並列で行い、ハンドラへはこのスレッドから順に渡す
+        ExecutorService executor = MailManager.createLoadExecutor();
+        try {
+            ArrayList<Future<MailData>> results = new ArrayList<Future<MailData>>(files.size());
+            for ( final File file : files ) {
+                results.add(executor.submit(new Callable<MailData>() {
+                    public MailData call() throws IOException {
+                        return loadFile(file, blobs);
+                    }
+                }));
+            }
+            for ( Future<MailData> result : results ) {
+                try {
+                    MailData mail = result.get();
+                    flagLog.apply(mail);
+                    indexes.add(mail.getIndex());
+                    handler.onLoad(mail);
+                } catch (ExecutionException e) {
+                    e.printStackTrace();
+                    hasError = true;
+                }
+            }
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            hasError = true;
+        } finally {
+            executor.shutdown();
+        }
+
+        // 読めなかったメールのフラグや、参照している内容を消さないように、全てのメールを読めた場合だけ整理する
+        if ( !hasError ) {
+            flagLog.compact(indexes);
+            blobs.compactIfNeeded();
+        }
+
+        UndineMailer.getInstance().getLogger().info("Async read mail files... Done. Time: "
+                + (System.currentTimeMillis() - start) + "ms (list: " + (listEnd - start)
+                + "ms, parse: " + (System.currentTimeMillis() - listEnd) + "ms), Files: "
+                + files.size() + ".");
+    }
+
+    /**
+     * 指定されたメールデータの既読フラグを保存する。変更された分だけをフラグのログに追記する。
+     * @param mail メールデータ
+     * @see org.bitbucket.ucchy.undine.MailStorage#updateReadFlags(org.bitbucket.ucchy.undine.MailData)
+     */
+    @Override
+    public void updateReadFlags(MailData mail) {
+        flagLog.update(mail, MailFlagLog.FLAG_READ);
+    }
+
+    /**
+     * 指定されたメールデータのゴミ箱フラグを保存する。変更された分だけをフラグのログに追記する。
+     * @param mail メールデータ
+     * @see org.bitbucket.ucchy.undine.MailStorage#updateTrashFlags(org.bitbucket.ucchy.undine.MailData)
+     */
+    @Override
+    public void updateTrashFlags(MailData mail) {
+        flagLog.update(mail, MailFlagLog.FLAG_TRASH);
+    }
+
+    /**
+     * 保存先を閉じる。フラグのログと、添付アイテムのストアを閉じる。
+     * @see org.bitbucket.ucchy.undine.MailStorage#close()
+     */
+    @Override
+    public void close() {
+        flagLog.close();
+        blobs.close();
+    }
+
+    /**
+     * 指定されたフォルダ内のメールファイルを、全て指定された形式に変換する。
+     * 添付アイテムのストアはどちらの形式でも共通なので、そのまま使う。
+     * ストアのファイルに2つのストリームから追記しないように、同じフォルダを使っている保存先は、
+     * 閉じてから呼び出すこと（MailSaveQueue#replaceStorage を使う）。
+     * @param folder メールデータを格納するフォルダ
+     * @param toBinary バイナリ形式に変換するならtrue、Yaml形式に変換するならfalse
+     * @return 変換したファイルの数
+     */
+    protected static int convertFolder(File folder, boolean toBinary) {
+
+        int count = 0;
+        String from = toBinary ? EXTENSION_YAML : EXTENSION_BINARY;
+        String to = toBinary ? EXTENSION_BINARY : EXTENSION_YAML;
+
+        AttachmentBlobStore blobs = new AttachmentBlobStore(folder);
+        blobs.load();
+        for ( File file : listMailFiles(folder) ) {
+            if ( !file.getName().endsWith(from) ) continue;
+            try {
+                MailData mail = loadFile(file, blobs);
+                File dest = getFile(folder, mail.getIndex(), to);
+                if ( toBinary ) {
+                    saveBinary(mail, dest, blobs);
+                } else {
+                    mail.save(dest, blobs);
+                }
+                deleteIfExists(file);
+                count++;
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        blobs.close();
+        return count;
+    }
+
+    /**
+     * 指定されたフォルダ内のメールファイルを、インデクス順に取得する。
+     * 同じインデクスのファイルが両方の形式である場合は、更新日時が新しい方だけを返す。
+     * @param folder フォルダ
+     * @return メールファイル
+     */
+    private static Collection<File> listMailFiles(File folder) {
+
+        TreeMap<Integer, File> result = new TreeMap<Integer, File>();
+        File[] files = folder.listFiles();
+        if ( files == null ) return result.values();
+
+        for ( File file : files ) {
+            String name = file.getName();
+            if ( !name.endsWith(EXTENSION_BINARY) && !name.endsWith(EXTENSION_YAML) ) continue;
+            int index;
+            try {
+                index = Integer.parseInt(name.substring(0, name.lastIndexOf('.')));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            File other = result.get(index);
+            if ( other == null || other.lastModified() < file.lastModified() ) {
+                result.put(index, file);
+            }
+        }
+        return result.values();
+    }
+
+    /**
+     * 指定されたファイルからメールデータを読み込む。ファイルの形式は拡張子で判断する。
+     * @param file ファイル
+     * @param blobs 添付アイテムのストア
+     * @return メールデータ
+     * @throws IOException 読み込みに失敗した場合
+     */
+    private static MailData loadFile(File file, AttachmentBlobStore blobs) throws IOException {
+        if ( file.getName().endsWith(EXTENSION_YAML) ) {
+            return MailData.load(file, blobs);
+        }
+        return MailDataCodec.decode(Files.readAllBytes(file.toPath()), blobs);
+    }
+
+    /**
+     * 指定されたファイルにメールデータをバイナリ形式で保存する
+     * @param mail メールデータ
+     * @param file ファイル
+     * @param blobs 添付アイテムのストア
+     * @throws IOException 書き込みに失敗した場合
+     */
+    private static void saveBinary(MailData mail, File file, AttachmentBlobStore blobs) throws IOException {
+        Files.write(file.toPath(), MailDataCodec.encode(mail, blobs));
+    }
+
+    // ファイルが存在するなら削除する
+    protected static void deleteIfExists(File file) {
+        if ( file.exists() ) {
+            file.delete();
+        }
+    }
+
+    // 指定されたインデクスのメールファイルを取得する
+    protected static File getFile(File folder, int index, String extension) {
+        return new File(folder, String.format("%1$08d", index) + extension);
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2020
+ */
+package org.bitbucket.ucchy.undine;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bitbucket.ucchy.undine.sender.MailSender;
+
+/**
+ * メールボックスの、1ページ分の問い合わせ結果。
+ * <p>
+ * メールボックスを新しい順にたどって、指定されたページのメールだけを取り出し、
+ * 全体の件数と未読の件数を数える。カーソル（メールのインデクス）を指定した場合は、
+ * そのメールの位置と、最初、前、次、最後のメールも記録する。
+ * メールボックス全体のリストは作成しない。
+ * </p>
+ * @author ucchy
+ * @see MailManager#getMailBoxPage(MailSender, MailBoxType, int)
+ * @see MailManager#getMailBoxCursor(MailSender, MailBoxType, int)
+ */
+public class MailBoxPage implements MailIndex.MailVisitor {
+
+    private final MailSender owner;
+    private final MailBoxType type;
+    private final int pageSize;
+    private final int offset;
+    private final int cursor;
+
+    private final int page;
+    private ArrayList<MailData> mails;
+    private int total;
+    private int unread;
+
+    private int position;
+    private MailData first;
+    private MailData previous;
+    private MailData next;
+    private MailData last;
+
+    /**
+     * コンストラクタ
+     * @param owner メールボックスの持ち主
+     * @param type メールボックスの種類
+     * @param page 取り出すページ（1から始まる）、取り出さないなら0
+     * @param pageSize 1ページあたりの件数
+     * @param cursor 位置を調べるメールのインデクス、調べないなら0
+     */
+    protected MailBoxPage(MailSender owner, MailBoxType type, int page, int pageSize, int cursor) {
+        this.owner = owner;
+        this.type = type;
+        this.page = page;
+        this.pageSize = pageSize;
+        this.offset = (page - 1) * pageSize;
+        this.cursor = cursor;
+        this.mails = new ArrayList<MailData>();
+        this.position = -1;
+    }
+
+    /**
+     * メールボックスを新しい順にたどるときに、1通ずつ呼び出される
+     * @param mail メール
+     * @return 続けてたどるかどうか
+     * @see org.bitbucket.ucchy.undine.MailIndex.MailVisitor#visit(org.bitbucket.ucchy.undine.MailData)
+     */
+    @Override
+    public boolean visit(MailData mail) {
+
+        if ( !type.accept(mail, owner) ) return true;
+
+        if ( page > 0 && total >= offset && total < offset + pageSize ) {
+            mails.add(mail);
+        }
+        if ( !mail.isRead(owner) ) {
+            unread++;
+        }
+
+        if ( cursor > 0 ) {
+            if ( first == null ) {
+                first = mail;
+            }
+            if ( mail.getIndex() == cursor ) {
+                position = total;
+            } else if ( position < 0 ) {
+                previous = mail;
+            } else if ( next == null ) {
+                next = mail;
+            }
+            last = mail;
+        }
+
+        total++;
+        return true;
+    }
+
+    /**
+     * メールボックスの種類を返す
+     * @return メールボックスの種類
+     */
+    public MailBoxType getType() {
+        return type;
+    }
+
+    /**
+     * 取り出したページの番号を返す
+     * @return ページの番号（1から始まる）、ページを取り出していない場合は0
+     */
+    public int getPage() {
+        return page;
+    }
+
+    /**
+     * 最後のページの番号を返す
+     * @return 最後のページの番号（メールが無い場合も1）
+     */
+    public int getMaxPage() {
+        return (total - 1) / pageSize + 1;
+    }
+
+    /**
+     * 取り出したページのメールを、新しい順で返す
+     * @return メールのリスト
+     */
+    public List<MailData> getMails() {
+        return mails;
+    }
+
+    /**
+     * メールボックスに含まれるメールの件数を返す
+     * @return 件数
+     */
+    public int getTotal() {
+        return total;
+    }
+
+    /**
+     * メールボックスに含まれる未読のメールの件数を返す
+     * @return 件数
+     */
+    public int getUnread() {
+        return unread;
+    }
+
+    /**
+     * カーソルに指定したメールの位置を返す
+     * @return 位置（0から始まる）、メールボックスに含まれていない場合は-1
+     */
+    public int getPosition() {
+        return position;
+    }
+
+    /**
+     * メールボックスの最初のメールを返す（カーソルを指定した場合のみ）
+     * @return 最初のメール
+     */
+    public MailData getFirst() {
+        return first;
+    }
+
+    /**
+     * カーソルに指定したメールの、1つ前のメールを返す
+     * @return 前のメール、無い場合はnull
+     */
+    public MailData getPrevious() {
+        return previous;
+    }
+
+    /**
+     * カーソルに指定したメールの、1つ後のメールを返す
+     * @return 次のメール、無い場合はnull
+     */
+    public MailData getNext() {
+        return next;
+    }
+
+    /**
+     * メールボックスの最後のメールを返す（カーソルを指定した場合のみ）
+     * @return 最後のメール
+     */
+    public MailData getLast() {
+        return last;
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2020
+ */
+package org.bitbucket.ucchy.undine;
+
+import org.bitbucket.ucchy.undine.sender.MailSender;
+
+/**
+ * メールボックスの種類
+ * @author ucchy
+ */
+public enum MailBoxType {
+
+    /** 受信したメール（ゴミ箱のメールを除く） */
+    INBOX,
+
+    /** 受信したメールで未読のもの（ゴミ箱のメールを除く） */
+    UNREAD,
+
+    /** 送信したメール（ゴミ箱のメールを除く） */
+    OUTBOX,
+
+    /** ゴミ箱に入れた、関連メール（送信したメールと受信したメール） */
+    TRASH,
+    ;
+
+    /**
+     * 指定されたメールが、指定されたsenderのこのメールボックスに含まれるかどうかを返す。
+     * メールが受信したもの、送信したもの、関連するもののどれであるかは、呼び出し側で確認しておくこと。
+     * @param mail メール
+     * @param sender メールボックスの持ち主
+     * @return 含まれるかどうか
+     */
+    protected boolean accept(MailData mail, MailSender sender) {
+        switch ( this ) {
+        case UNREAD:
+            return !mail.isRead(sender) && !mail.isSetTrash(sender);
+        case TRASH:
+            return mail.isSetTrash(sender);
+        default:
+            return !mail.isSetTrash(sender);
+        }
+    }
+
+    /**
+     * 文字列からMailBoxTypeを作成して返す
+     * @param str 文字列
+     * @param def デフォルト
+     * @return MailBoxType
+     */
+    public static MailBoxType getFromString(String str, MailBoxType def) {
+        if ( str == null ) return def;
+        for ( MailBoxType type : values() ) {
+            if ( type.toString().equals(str.toUpperCase()) ) return type;
+        }
+        return def;
+    }
+}
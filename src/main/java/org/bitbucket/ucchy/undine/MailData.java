@@ -7,7 +7,6 @@ package org.bitbucket.ucchy.undine;
 
 import java.io.File;
 import java.io.IOException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
@@ -58,6 +57,9 @@ public class MailData implements Comparable<MailData>, Cloneable {
     private Date date;
     private Location location;
 
+    // 一覧表示用のサマリーのキャッシュ
+    private volatile SummaryCache summaryCache;
+
     /**
      * コンストラクタ
      */
@@ -133,8 +135,8 @@ public class MailData implements Comparable<MailData>, Cloneable {
         this.attachments = attachments;
         this.costMoney = costMoney;
         this.costItem = costItem;
-        this.readFlags = new ArrayList<MailSender>();
-        this.trashFlags = new ArrayList<MailSender>();
+        this.readFlags = new MailFlagSet();
+        this.trashFlags = new MailFlagSet();
         this.isAttachmentsOpened = false;
         this.isAttachmentsCancelled = false;
         this.isAttachmentsRefused = false;
@@ -145,21 +147,41 @@ public class MailData implements Comparable<MailData>, Cloneable {
      * @param file 保存先
      */
     protected void save(File file) {
-
-        YamlConfiguration config = new YamlConfiguration();
-        saveToConfigSection(config);
         try {
-            config.save(file);
+            save(file, null);
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * 指定されたファイルへ保存する
+     * @param file 保存先
+     * @param blobs 添付アイテムのストア、nullならアイテムの内容をそのまま保存する
+     * @throws IOException 書き込みに失敗した場合
+     */
+    protected void save(File file, AttachmentBlobStore blobs) throws IOException {
+
+        YamlConfiguration config = new YamlConfiguration();
+        saveToConfigSection(config, blobs);
+        config.save(file);
+    }
+
     /**
      * 指定されたコンフィグセクションへ保存する
      * @param section コンフィグセクション
      */
     protected void saveToConfigSection(ConfigurationSection section) {
+        saveToConfigSection(section, null);
+    }
+
+    /**
+     * 指定されたコンフィグセクションへ保存する。
+     * ストアが指定された場合、添付アイテムはストアに内容を保存して、ハッシュ値と個数だけを保存する。
+     * @param section コンフィグセクション
+     * @param blobs 添付アイテムのストア、nullならアイテムの内容をそのまま保存する
+     */
+    protected void saveToConfigSection(ConfigurationSection section, AttachmentBlobStore blobs) {
 
         ArrayList<String> toList = new ArrayList<String>();
         for ( MailSender t : to ) {
@@ -181,12 +203,7 @@ public class MailData implements Comparable<MailData>, Cloneable {
         section.set("message", message);
 
         if ( attachments != null ) {
-            ConfigurationSection sub = section.createSection("attachments");
-            int i = 1;
-            for ( ItemStack item : attachments ) {
-                ConfigurationSection subsub = sub.createSection("attachment" + i++);
-                ItemConfigParser.setItemToSection(subsub, item);
-            }
+            saveItemsToSection(section.createSection("attachments"), attachments, blobs);
         }
 
         section.set("costMoney", costMoney);
@@ -211,12 +228,7 @@ public class MailData implements Comparable<MailData>, Cloneable {
         section.set("trashFlags", trashList);
 
         if ( attachmentsOriginal != null ) {
-            ConfigurationSection sub = section.createSection("attachmentsOriginal");
-            int i = 1;
-            for ( ItemStack item : attachmentsOriginal ) {
-                ConfigurationSection subsub = sub.createSection("attachment" + i++);
-                ItemConfigParser.setItemToSection(subsub, item);
-            }
+            saveItemsToSection(section.createSection("attachmentsOriginal"), attachmentsOriginal, blobs);
         }
 
         if ( date != null ) {
@@ -247,8 +259,18 @@ public class MailData implements Comparable<MailData>, Cloneable {
      * @return ロードされたMailData
      */
     protected static MailData load(File file) {
+        return load(file, null);
+    }
+
+    /**
+     * 指定されたファイルからロードする
+     * @param file ファイル
+     * @param blobs 添付アイテムのストア
+     * @return ロードされたMailData
+     */
+    protected static MailData load(File file, AttachmentBlobStore blobs) {
         YamlConfiguration config = YamlConfiguration.loadConfiguration(file);
-        return loadFromConfigSection(config);
+        return loadFromConfigSection(config, blobs);
     }
 
     /**
@@ -257,6 +279,16 @@ public class MailData implements Comparable<MailData>, Cloneable {
      * @return ロードされたMailData
      */
     protected static MailData loadFromConfigSection(ConfigurationSection section) {
+        return loadFromConfigSection(section, null);
+    }
+
+    /**
+     * 指定されたコンフィグセクションからロードする
+     * @param section コンフィグセクション
+     * @param blobs 添付アイテムのストア、ハッシュ値で保存された添付アイテムを取得するのに使う
+     * @return ロードされたMailData
+     */
+    protected static MailData loadFromConfigSection(ConfigurationSection section, AttachmentBlobStore blobs) {
 
         MailData data = new MailData();
 
@@ -289,12 +321,8 @@ public class MailData implements Comparable<MailData>, Cloneable {
 
             for ( String name : attachmentsSec.getKeys(false) ) {
                 ConfigurationSection sub = section.getConfigurationSection("attachments." + name);
-                try {
-                    ItemStack item = ItemConfigParser.getItemFromSection(sub);
-                    if (item != null) data.attachments.add(item);
-                } catch (ItemConfigParseException e) {
-                    e.printStackTrace();
-                }
+                ItemStack item = loadItemFromSection(sub, blobs);
+                if (item != null) data.attachments.add(item);
             }
         }
 
@@ -310,7 +338,7 @@ public class MailData implements Comparable<MailData>, Cloneable {
 
         data.index = section.getInt("index");
 
-        data.readFlags = new ArrayList<MailSender>();
+        data.readFlags = new MailFlagSet();
         for ( String t : section.getStringList("readFlags") ) {
             MailSender sender = MailSender.getMailSenderFromString(t);
             if ( sender != null ) {
@@ -318,7 +346,7 @@ public class MailData implements Comparable<MailData>, Cloneable {
             }
         }
 
-        data.trashFlags = new ArrayList<MailSender>();
+        data.trashFlags = new MailFlagSet();
         for ( String t : section.getStringList("trashFlags") ) {
             MailSender sender = MailSender.getMailSenderFromString(t);
             if ( sender != null ) {
@@ -333,12 +361,8 @@ public class MailData implements Comparable<MailData>, Cloneable {
             for ( String name : attachmentsOrgSec.getKeys(false) ) {
                 ConfigurationSection sub = attachmentsOrgSec.getConfigurationSection(name);
                 if ( sub != null ) {
-                    try {
-                        ItemStack item = ItemConfigParser.getItemFromSection(sub);
-                        data.attachmentsOriginal.add(item);
-                    } catch (ItemConfigParseException e) {
-                        e.printStackTrace();
-                    }
+                    ItemStack item = loadItemFromSection(sub, blobs);
+                    if (item != null) data.attachmentsOriginal.add(item);
                 }
             }
         }
@@ -370,6 +394,57 @@ public class MailData implements Comparable<MailData>, Cloneable {
         return data;
     }
 
+    /**
+     * アイテムのリストをコンフィグセクションへ保存する。
+     * ストアが指定された場合は、ハッシュ値と個数だけを保存する。
+     * @param section コンフィグセクション
+     * @param items アイテムのリスト
+     * @param blobs 添付アイテムのストア、nullならアイテムの内容をそのまま保存する
+     */
+    private static void saveItemsToSection(ConfigurationSection section,
+            List<ItemStack> items, AttachmentBlobStore blobs) {
+        int i = 1;
+        for ( ItemStack item : items ) {
+            ConfigurationSection sub = section.createSection("attachment" + i++);
+            if ( blobs != null ) {
+                try {
+                    sub.set("blob", blobs.put(item));
+                    sub.set("amount", item.getAmount());
+                    continue;
+                } catch (IOException e) {
+                    // ストアに書き込めない場合は、アイテムの内容をそのまま保存する。
+                    e.printStackTrace();
+                }
+            }
+            ItemConfigParser.setItemToSection(sub, item);
+        }
+    }
+
+    /**
+     * コンフィグセクションからアイテムを読み込む。
+     * ハッシュ値で保存されている場合は、ストアからアイテムを取得する。
+     * @param section コンフィグセクション
+     * @param blobs 添付アイテムのストア
+     * @return アイテム、読み込めない場合はnull
+     */
+    private static ItemStack loadItemFromSection(ConfigurationSection section, AttachmentBlobStore blobs) {
+        if ( section.contains("blob") ) {
+            if ( blobs == null ) {
+                UndineMailer.getInstance().getLogger().warning(
+                        "Could not load attachment " + section.getString("blob")
+                        + ", attachment store is not available.");
+                return null;
+            }
+            return blobs.get(section.getString("blob"), section.getInt("amount", 1));
+        }
+        try {
+            return ItemConfigParser.getItemFromSection(section);
+        } catch (ItemConfigParseException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
     /**
      * このオブジェクトの複製を作成して返す。
      * @see java.lang.Object#clone()
@@ -381,12 +456,90 @@ public class MailData implements Comparable<MailData>, Cloneable {
                 toGroups);
     }
 
+    /**
+     * 保存用に、このメールの現在の状態をそのまま複製して返す。
+     * 保存はバックグラウンドで行われるので、その間にメインスレッドでメールが変更されても影響を受けないように、
+     * リストやアイテムは全て複製する。
+     * @return 複製
+     * @see MailSaveQueue
+     */
+    protected MailData snapshot() {
+        MailData copy = new MailData(
+                copyList(to), from, copyList(message), cloneItems(attachments), costMoney,
+                (costItem != null) ? costItem.clone() : null, copyList(toGroups));
+        copy.index = index;
+        copy.toTotal = copyList(toTotal);
+        copy.readFlags = copyFlags(readFlags);
+        copy.trashFlags = copyFlags(trashFlags);
+        copy.attachmentsOriginal = cloneItems(attachmentsOriginal);
+        copy.isAttachmentsOpened = isAttachmentsOpened;
+        copy.isAttachmentsCancelled = isAttachmentsCancelled;
+        copy.isAttachmentsRefused = isAttachmentsRefused;
+        copy.attachmentsRefusedReason = attachmentsRefusedReason;
+        copy.date = (date != null) ? new Date(date.getTime()) : null;
+        copy.location = (location != null) ? location.clone() : null;
+        return copy;
+    }
+
+    /**
+     * 保存用に、インデクスと、指定されたフラグだけを複製したメールデータを返す。
+     * フラグだけを保存する場合に、メール全体を複製しないで済むように使う。
+     * @param read 既読フラグを複製するかどうか
+     * @param trash ゴミ箱フラグを複製するかどうか
+     * @return フラグだけの複製
+     * @see MailSaveQueue
+     */
+    protected MailData flagSnapshot(boolean read, boolean trash) {
+        MailData copy = new MailData();
+        copy.index = index;
+        copy.copyFlagsFrom(this, read, trash);
+        return copy;
+    }
+
+    /**
+     * 指定されたメールデータのフラグを、このメールデータに複製する
+     * @param source 複製元
+     * @param read 既読フラグを複製するかどうか
+     * @param trash ゴミ箱フラグを複製するかどうか
+     * @see MailSaveQueue
+     */
+    protected void copyFlagsFrom(MailData source, boolean read, boolean trash) {
+        if ( read ) readFlags = copyFlags(source.readFlags);
+        if ( trash ) trashFlags = copyFlags(source.trashFlags);
+    }
+
+    // フラグのリストを複製する
+    private static MailFlagSet copyFlags(List<MailSender> flags) {
+        if ( flags instanceof MailFlagSet ) {
+            return ((MailFlagSet)flags).copy();
+        }
+        MailFlagSet copy = new MailFlagSet();
+        copy.addAll(flags);
+        return copy;
+    }
+
+    // リストを複製する
+    private static <T> List<T> copyList(List<T> list) {
+        return (list != null) ? new ArrayList<T>(list) : null;
+    }
+
+    // アイテムのリストを、アイテムごと複製する
+    private static List<ItemStack> cloneItems(List<ItemStack> items) {
+        if ( items == null ) return null;
+        ArrayList<ItemStack> result = new ArrayList<ItemStack>(items.size());
+        for ( ItemStack item : items ) {
+            result.add((item != null) ? item.clone() : null);
+        }
+        return result;
+    }
+
     /**
      * 設定されている宛先を全て消去する
      */
     public void deleteAllTo() {
         to.clear();
         toGroups.clear();
+        invalidateSummary();
     }
 
     /**
@@ -403,6 +556,7 @@ public class MailData implements Comparable<MailData>, Cloneable {
      */
     protected void setIndex(int index) {
         this.index = index;
+        invalidateSummary();
     }
 
     /**
@@ -429,6 +583,7 @@ public class MailData implements Comparable<MailData>, Cloneable {
         if ( isAllMail() ) {
             toGroups.remove(SpecialGroupAll.NAME);
         }
+        invalidateSummary();
     }
 
     /**
@@ -447,6 +602,7 @@ public class MailData implements Comparable<MailData>, Cloneable {
         if ( this.to.size() > line ) {
             this.to.remove(line);
         }
+        invalidateSummary();
     }
 
     /**
@@ -463,6 +619,7 @@ public class MailData implements Comparable<MailData>, Cloneable {
      */
     public void setFrom(MailSender from) {
         this.from = from;
+        invalidateSummary();
     }
 
     /**
@@ -479,6 +636,7 @@ public class MailData implements Comparable<MailData>, Cloneable {
      */
     public void setMessage(List<String> message) {
         this.message = message;
+        invalidateSummary();
     }
 
     /**
@@ -491,6 +649,7 @@ public class MailData implements Comparable<MailData>, Cloneable {
             this.message.add("");
         }
         this.message.set(line, message);
+        invalidateSummary();
     }
 
     /**
@@ -502,6 +661,7 @@ public class MailData implements Comparable<MailData>, Cloneable {
         for ( String line : lines ) {
             this.message.add(line);
         }
+        invalidateSummary();
     }
 
     /**
@@ -512,6 +672,7 @@ public class MailData implements Comparable<MailData>, Cloneable {
         if ( this.message.size() > line && line >= 0 ) {
             this.message.remove(line);
         }
+        invalidateSummary();
     }
 
     /**
@@ -551,6 +712,7 @@ public class MailData implements Comparable<MailData>, Cloneable {
             this.to.clear();
             this.toGroups.clear();
             this.toGroups.add(group);
+            invalidateSummary();
             return;
         }
 
@@ -564,6 +726,7 @@ public class MailData implements Comparable<MailData>, Cloneable {
         if ( toGroups.contains(SpecialGroupAll.NAME) ) {
             toGroups.remove(SpecialGroupAll.NAME);
         }
+        invalidateSummary();
     }
 
     /**
@@ -582,6 +745,7 @@ public class MailData implements Comparable<MailData>, Cloneable {
         if ( this.toGroups.size() > line && line >= 0 ) {
             this.toGroups.remove(line);
         }
+        invalidateSummary();
     }
 
     /**
@@ -686,6 +850,7 @@ public class MailData implements Comparable<MailData>, Cloneable {
      */
     protected void setDate(Date date) {
         this.date = date;
+        invalidateSummary();
     }
 
     /**
@@ -712,6 +877,14 @@ public class MailData implements Comparable<MailData>, Cloneable {
         return attachmentsOriginal;
     }
 
+    /**
+     * メール送信時の添付アイテムを設定します（データのロード時に使用されます）。
+     * @param attachmentsOriginal メール送信時の添付アイテム
+     */
+    protected void setAttachmentsOriginal(List<ItemStack> attachmentsOriginal) {
+        this.attachmentsOriginal = attachmentsOriginal;
+    }
+
     /**
      * attachmentOriginalに、添付ファイルのコピーを行います
      * （メール送信時に自動で行われます）。
@@ -893,11 +1066,17 @@ public class MailData implements Comparable<MailData>, Cloneable {
     /**
      * このメールのInbox用サマリー文字列を返す。
      * "送信者 (送信日時) 1行目の内容"
+     * 送信済みのメールでは、作成したサマリーを、メールが変更されるか、言語リソースがリロードされるか、プレイヤー名が変わるまで使い回す。
      * @return サマリー
      */
     protected String getInboxSummary() {
 
-        String fdate = getFormattedDate(date);
+        SummaryCache cache = getSummaryCache();
+        if ( cache != null && cache.inbox != null ) {
+            return cache.inbox;
+        }
+
+        String fdate = Messages.formatDate(date);
         String summary = String.format("%s (%s) %s",
                 from.getName(), fdate, Utility.removeColorCode(message.get(0)));
 
@@ -906,17 +1085,26 @@ public class MailData implements Comparable<MailData>, Cloneable {
             summary = summary.substring(0, SUMMARY_MAX_SIZE) + "..";
         }
 
+        if ( cache != null ) {
+            cache.inbox = summary;
+        }
         return summary;
     }
 
     /**
      * このメールのOutbox用サマリー文字列を返す。
      * "受信者 (送信日時) 1行目の内容"
+     * 送信済みのメールでは、作成したサマリーを、メールが変更されるか、言語リソースがリロードされるか、プレイヤー名が変わるまで使い回す。
      * @return サマリー
      */
     protected String getOutboxSummary() {
 
-        String fdate = getFormattedDate(date);
+        SummaryCache cache = getSummaryCache();
+        if ( cache != null && cache.outbox != null ) {
+            return cache.outbox;
+        }
+
+        String fdate = Messages.formatDate(date);
         String todesc = joinToAndGroup();
         if ( todesc.length() > 15 ) { // 長すぎる場合は切る
             todesc = todesc.substring(0, 15);
@@ -929,9 +1117,37 @@ public class MailData implements Comparable<MailData>, Cloneable {
             summary = summary.substring(0, SUMMARY_MAX_SIZE) + "..";
         }
 
+        if ( cache != null ) {
+            cache.outbox = summary;
+        }
         return summary;
     }
 
+    /**
+     * サマリーのキャッシュを取得する。言語リソースがリロードされていた場合や、
+     * プレイヤー名の変更で送信者や宛先の名前が変わった可能性がある場合は、空のキャッシュに置き換える。
+     * 編集中のメールは、メッセージのリストが直接変更されることもあるので、キャッシュしない。
+     * @return キャッシュ、編集中のメールの場合はnull
+     */
+    private SummaryCache getSummaryCache() {
+        if ( isEditmode() ) return null;
+        int generation = Messages.getGeneration();
+        long nameVersion = UndineMailer.getInstance().getPlayerNameVersion();
+        SummaryCache cache = summaryCache;
+        if ( cache == null || cache.generation != generation || cache.nameVersion != nameVersion ) {
+            cache = new SummaryCache(generation, nameVersion);
+            summaryCache = cache;
+        }
+        return cache;
+    }
+
+    /**
+     * サマリーのキャッシュを破棄する。メールの内容が変更されたときに呼び出す。
+     */
+    private void invalidateSummary() {
+        summaryCache = null;
+    }
+
     /**
      * 宛先のリストを、コンマを使ってつなげる
      * @return 繋がった文字列
@@ -954,15 +1170,6 @@ public class MailData implements Comparable<MailData>, Cloneable {
         return buffer.toString();
     }
 
-    /**
-     * 言語リソース設定に従ってフォーマットされた日時の文字列を取得します。
-     * @param date フォーマットする日時
-     * @return フォーマットされた文字列
-     */
-    private String getFormattedDate(Date date) {
-        return new SimpleDateFormat(Messages.get("DateFormat")).format(date);
-    }
-
     /**
      * データのアップグレードを行う。
      * @return アップグレードを実行したかどうか
@@ -1002,6 +1209,25 @@ public class MailData implements Comparable<MailData>, Cloneable {
                 }
             }
         }
+        if ( upgraded ) {
+            invalidateSummary();
+        }
         return upgraded;
     }
+
+    /**
+     * 作成したサマリーと、作成したときの言語リソースの世代、プレイヤー名のバージョン
+     */
+    private static class SummaryCache {
+
+        private final int generation;
+        private final long nameVersion;
+        private volatile String inbox;
+        private volatile String outbox;
+
+        private SummaryCache(int generation, long nameVersion) {
+            this.generation = generation;
+            this.nameVersion = nameVersion;
+        }
+    }
 }
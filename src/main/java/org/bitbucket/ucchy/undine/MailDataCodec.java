@@ -0,0 +1,574 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2020
+ */
+package org.bitbucket.ucchy.undine;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+import org.bitbucket.ucchy.undine.sender.MailSender;
+import org.bukkit.Bukkit;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.inventory.ItemStack;
+
+import com.github.ucchyocean.itemconfig.ItemConfigParseException;
+import com.github.ucchyocean.itemconfig.ItemConfigParser;
+
+/**
+ * MailDataのバイナリ形式への変換と、バイナリ形式からの復元を行うクラス。
+ * <p>
+ * 形式は、マジックナンバー、バージョン番号に続けて、
+ * 「フィールド番号(1byte)、長さ(4byte)、内容」の並びを、フィールド番号0が現れるまで繰り返す。
+ * 知らないフィールド番号は長さの分だけ読み飛ばすので、後のバージョンで追加されたフィールドがあっても読み込める。
+ * プレイヤーのUUIDは、2つのlong値として格納する。
+ * </p>
+ * @author ucchy
+ */
+public class MailDataCodec {
+
+    /** ファイルの先頭に書き込むマジックナンバー ("UDML") */
+    protected static final int MAGIC = 0x55444D4C;
+
+    /** 現在の形式のバージョン */
+    protected static final int VERSION = 1;
+
+    protected static final int FIELD_END = 0;
+    protected static final int FIELD_INDEX = 1;
+    protected static final int FIELD_TO = 2;
+    protected static final int FIELD_TO_GROUPS = 3;
+    protected static final int FIELD_TO_TOTAL = 4;
+    protected static final int FIELD_FROM = 5;
+    protected static final int FIELD_MESSAGE = 6;
+    protected static final int FIELD_ATTACHMENTS = 7;
+    protected static final int FIELD_COST_MONEY = 8;
+    protected static final int FIELD_COST_ITEM = 9;
+    protected static final int FIELD_READ_FLAGS = 10;
+    protected static final int FIELD_TRASH_FLAGS = 11;
+    protected static final int FIELD_ATTACHMENTS_ORIGINAL = 12;
+    protected static final int FIELD_DATE = 13;
+    protected static final int FIELD_LOCATION = 14;
+    protected static final int FIELD_STATUS = 15;
+    protected static final int FIELD_ATTACHMENT_REFS = 16;
+    protected static final int FIELD_ATTACHMENTS_ORIGINAL_REFS = 17;
+
+    private static final int SENDER_STRING = 0;
+    private static final int SENDER_UUID = 1;
+
+    private static final int STATUS_CANCELLED = 1;
+    private static final int STATUS_REFUSED = 2;
+
+    /**
+     * MailDataをバイナリ形式に変換する
+     * @param mail メールデータ
+     * @return バイナリ
+     * @throws IOException 変換に失敗した場合
+     */
+    public static byte[] encode(MailData mail) throws IOException {
+        return encode(mail, null);
+    }
+
+    /**
+     * MailDataをバイナリ形式に変換する。
+     * 添付アイテムは、ストアに内容を保存して、ハッシュ値と個数だけを格納する。
+     * @param mail メールデータ
+     * @param blobs 添付アイテムのストア、nullならアイテムの内容をそのまま格納する
+     * @return バイナリ
+     * @throws IOException 変換に失敗した場合
+     */
+    public static byte[] encode(MailData mail, AttachmentBlobStore blobs) throws IOException {
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+
+        FieldWriter field = new FieldWriter(out);
+
+        field.begin(FIELD_INDEX).writeInt(mail.getIndex());
+        field.end();
+
+        writeSenders(field.begin(FIELD_TO), mail.getTo());
+        field.end();
+
+        writeStrings(field.begin(FIELD_TO_GROUPS), mail.getToGroups());
+        field.end();
+
+        if ( mail.getToTotal() != null ) {
+            writeSenders(field.begin(FIELD_TO_TOTAL), mail.getToTotal());
+            field.end();
+        }
+
+        if ( mail.getFrom() != null ) {
+            writeSender(field.begin(FIELD_FROM), mail.getFrom().toString());
+            field.end();
+        }
+
+        writeStrings(field.begin(FIELD_MESSAGE), mail.getMessage());
+        field.end();
+
+        if ( mail.getAttachments() != null && blobs != null ) {
+            writeItemRefs(field.begin(FIELD_ATTACHMENT_REFS), mail.getAttachments(), blobs);
+            field.end();
+        } else if ( mail.getAttachments() != null ) {
+            writeItems(field.begin(FIELD_ATTACHMENTS), mail.getAttachments());
+            field.end();
+        }
+
+        field.begin(FIELD_COST_MONEY).writeDouble(mail.getCostMoney());
+        field.end();
+
+        if ( mail.getCostItem() != null ) {
+            writeItem(field.begin(FIELD_COST_ITEM), mail.getCostItem());
+            field.end();
+        }
+
+        writeSenders(field.begin(FIELD_READ_FLAGS), mail.getReadFlags());
+        field.end();
+
+        writeSenders(field.begin(FIELD_TRASH_FLAGS), mail.getTrashFlags());
+        field.end();
+
+        if ( mail.getAttachmentsOriginal() != null && blobs != null ) {
+            writeItemRefs(field.begin(FIELD_ATTACHMENTS_ORIGINAL_REFS), mail.getAttachmentsOriginal(), blobs);
+            field.end();
+        } else if ( mail.getAttachmentsOriginal() != null ) {
+            writeItems(field.begin(FIELD_ATTACHMENTS_ORIGINAL), mail.getAttachmentsOriginal());
+            field.end();
+        }
+
+        if ( mail.getDate() != null ) {
+            field.begin(FIELD_DATE).writeLong(mail.getDate().getTime());
+            field.end();
+        }
+
+        Location location = mail.getLocation();
+        if ( location != null && location.getWorld() != null ) {
+            DataOutputStream o = field.begin(FIELD_LOCATION);
+            writeString(o, location.getWorld().getName());
+            o.writeDouble(location.getX());
+            o.writeDouble(location.getY());
+            o.writeDouble(location.getZ());
+            o.writeFloat(location.getYaw());
+            o.writeFloat(location.getPitch());
+            field.end();
+        }
+
+        int status = 0;
+        if ( mail.isAttachmentsCancelled() ) status |= STATUS_CANCELLED;
+        if ( mail.isAttachmentsRefused() ) status |= STATUS_REFUSED;
+        DataOutputStream o = field.begin(FIELD_STATUS);
+        o.writeByte(status);
+        writeNullableString(o, mail.getAttachmentsRefusedReason());
+        field.end();
+
+        out.writeByte(FIELD_END);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * バイナリ形式からMailDataを復元する
+     * @param data バイナリ
+     * @return メールデータ
+     * @throws IOException 形式が不正な場合や、新しすぎるバージョンの場合
+     */
+    public static MailData decode(byte[] data) throws IOException {
+        return decode(data, null);
+    }
+
+    /**
+     * バイナリ形式からMailDataを復元する
+     * @param data バイナリ
+     * @param blobs 添付アイテムのストア、ハッシュ値で格納された添付アイテムを取得するのに使う
+     * @return メールデータ
+     * @throws IOException 形式が不正な場合や、新しすぎるバージョンの場合、
+     * ハッシュ値で格納された添付アイテムがあるのにストアが指定されていない場合
+     */
+    public static MailData decode(byte[] data, AttachmentBlobStore blobs) throws IOException {
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+
+        if ( in.readInt() != MAGIC ) {
+            throw new IOException("Invalid mail data format.");
+        }
+        int version = in.readUnsignedShort();
+        if ( version > VERSION ) {
+            throw new IOException("Unsupported mail data version " + version + ".");
+        }
+
+        MailData mail = new MailData();
+        int status = 0;
+        String reason = null;
+
+        while ( true ) {
+            int id = in.readUnsignedByte();
+            if ( id == FIELD_END ) break;
+
+            byte[] payload = new byte[in.readInt()];
+            in.readFully(payload);
+            DataInputStream f = new DataInputStream(new ByteArrayInputStream(payload));
+
+            switch ( id ) {
+            case FIELD_INDEX:
+                mail.setIndex(f.readInt());
+                break;
+            case FIELD_TO:
+                mail.getTo().addAll(readSenders(f));
+                break;
+            case FIELD_TO_GROUPS:
+                mail.getToGroups().addAll(readStrings(f));
+                break;
+            case FIELD_TO_TOTAL:
+                mail.setToTotal(readSenders(f));
+                break;
+            case FIELD_FROM:
+                mail.setFrom(MailSender.getMailSenderFromString(readSender(f)));
+                break;
+            case FIELD_MESSAGE:
+                mail.setMessage(readStrings(f));
+                break;
+            case FIELD_ATTACHMENTS:
+                mail.setAttachments(readItems(f));
+                break;
+            case FIELD_COST_MONEY:
+                mail.setCostMoney(f.readDouble());
+                break;
+            case FIELD_COST_ITEM:
+                mail.setCostItem(readItem(f));
+                break;
+            case FIELD_READ_FLAGS:
+                mail.getReadFlags().addAll(readSenders(f));
+                break;
+            case FIELD_TRASH_FLAGS:
+                mail.getTrashFlags().addAll(readSenders(f));
+                break;
+            case FIELD_ATTACHMENTS_ORIGINAL:
+                mail.setAttachmentsOriginal(readItems(f));
+                break;
+            case FIELD_ATTACHMENT_REFS:
+                mail.setAttachments(readItemRefs(f, blobs));
+                break;
+            case FIELD_ATTACHMENTS_ORIGINAL_REFS:
+                mail.setAttachmentsOriginal(readItemRefs(f, blobs));
+                break;
+            case FIELD_DATE:
+                mail.setDate(new Date(f.readLong()));
+                break;
+            case FIELD_LOCATION:
+                World world = Bukkit.getWorld(readString(f));
+                double x = f.readDouble();
+                double y = f.readDouble();
+                double z = f.readDouble();
+                float yaw = f.readFloat();
+                float pitch = f.readFloat();
+                if ( world != null ) {
+                    mail.setLocation(new Location(world, x, y, z, yaw, pitch));
+                }
+                break;
+            case FIELD_STATUS:
+                status = f.readUnsignedByte();
+                reason = readNullableString(f);
+                break;
+            default:
+                // 知らないフィールドは読み飛ばす
+                break;
+            }
+        }
+
+        // 添付のキャンセル状態は、着払い設定を消去してしまうので、最後に復元する
+        if ( (status & STATUS_REFUSED) != 0 ) {
+            double costMoney = mail.getCostMoney();
+            ItemStack costItem = mail.getCostItem();
+            mail.refuseAttachments(reason);
+            mail.setCostMoney(costMoney);
+            mail.setCostItem(costItem);
+        } else if ( (status & STATUS_CANCELLED) != 0 ) {
+            double costMoney = mail.getCostMoney();
+            ItemStack costItem = mail.getCostItem();
+            mail.cancelAttachments();
+            mail.setCostMoney(costMoney);
+            mail.setCostItem(costItem);
+        }
+
+        return mail;
+    }
+
+    /**
+     * 指定されたバイナリが、この形式のデータかどうかを返す
+     * @param data バイナリ
+     * @return この形式のデータかどうか
+     */
+    public static boolean isEncoded(byte[] data) {
+        if ( data == null || data.length < 4 ) return false;
+        int magic = ((data[0] & 0xff) << 24) | ((data[1] & 0xff) << 16)
+                | ((data[2] & 0xff) << 8) | (data[3] & 0xff);
+        return magic == MAGIC;
+    }
+
+    /**
+     * 送信者の文字列表現を書き込む。"$" + UUID の形式なら、UUIDを2つのlong値として書き込む。
+     * @param out 出力先
+     * @param sender 送信者の文字列表現
+     * @throws IOException
+     */
+    protected static void writeSender(DataOutputStream out, String sender) throws IOException {
+        UUID uuid = parseUuid(sender);
+        if ( uuid != null ) {
+            out.writeByte(SENDER_UUID);
+            out.writeLong(uuid.getMostSignificantBits());
+            out.writeLong(uuid.getLeastSignificantBits());
+        } else {
+            out.writeByte(SENDER_STRING);
+            writeString(out, sender);
+        }
+    }
+
+    /**
+     * 送信者の文字列表現を読み込む
+     * @param in 入力元
+     * @return 送信者の文字列表現
+     * @throws IOException
+     */
+    protected static String readSender(DataInputStream in) throws IOException {
+        int type = in.readUnsignedByte();
+        if ( type == SENDER_UUID ) {
+            long most = in.readLong();
+            long least = in.readLong();
+            return "$" + new UUID(most, least).toString();
+        }
+        return readString(in);
+    }
+
+    /**
+     * 文字列を、長さ(4byte)とUTF-8のバイト列で書き込む
+     * @param out 出力先
+     * @param str 文字列
+     * @throws IOException
+     */
+    protected static void writeString(DataOutputStream out, String str) throws IOException {
+        byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * 長さ(4byte)とUTF-8のバイト列で書き込まれた文字列を読み込む
+     * @param in 入力元
+     * @return 文字列
+     * @throws IOException
+     */
+    protected static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if ( length < 0 || length > in.available() ) {
+            throw new EOFException("Invalid string length " + length + ".");
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 文字列のリストを書き込む
+     * @param out 出力先
+     * @param list リスト
+     * @throws IOException
+     */
+    protected static void writeStrings(DataOutputStream out, List<String> list) throws IOException {
+        out.writeInt(list.size());
+        for ( String str : list ) {
+            writeString(out, str);
+        }
+    }
+
+    /**
+     * 文字列のリストを読み込む
+     * @param in 入力元
+     * @return リスト
+     * @throws IOException
+     */
+    protected static List<String> readStrings(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        List<String> list = new ArrayList<String>();
+        for ( int i = 0; i < size; i++ ) {
+            list.add(readString(in));
+        }
+        return list;
+    }
+
+    // nullかもしれない文字列を書き込む
+    private static void writeNullableString(DataOutputStream out, String str) throws IOException {
+        out.writeBoolean(str != null);
+        if ( str != null ) {
+            writeString(out, str);
+        }
+    }
+
+    // nullかもしれない文字列を読み込む
+    private static String readNullableString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? readString(in) : null;
+    }
+
+    // 送信者のリストを書き込む
+    private static void writeSenders(DataOutputStream out, List<MailSender> list) throws IOException {
+        out.writeInt(list.size());
+        for ( MailSender sender : list ) {
+            writeSender(out, sender.toString());
+        }
+    }
+
+    // 送信者のリストを読み込む
+    private static List<MailSender> readSenders(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        List<MailSender> list = new ArrayList<MailSender>();
+        for ( int i = 0; i < size; i++ ) {
+            MailSender sender = MailSender.getMailSenderFromString(readSender(in));
+            if ( sender != null ) {
+                list.add(sender);
+            }
+        }
+        return list;
+    }
+
+    // アイテムのリストを書き込む
+    private static void writeItems(DataOutputStream out, List<ItemStack> list) throws IOException {
+        out.writeInt(list.size());
+        for ( ItemStack item : list ) {
+            writeItem(out, item);
+        }
+    }
+
+    // アイテムのリストを読み込む
+    private static List<ItemStack> readItems(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        List<ItemStack> list = new ArrayList<ItemStack>();
+        for ( int i = 0; i < size; i++ ) {
+            ItemStack item = readItem(in);
+            if ( item != null ) {
+                list.add(item);
+            }
+        }
+        return list;
+    }
+
+    // アイテムのリストを、ストアのハッシュ値と個数の並びとして書き込む
+    private static void writeItemRefs(DataOutputStream out, List<ItemStack> list,
+            AttachmentBlobStore blobs) throws IOException {
+        out.writeInt(list.size());
+        for ( ItemStack item : list ) {
+            out.writeUTF(blobs.put(item));
+            out.writeInt(item.getAmount());
+        }
+    }
+
+    // ハッシュ値と個数の並びから、ストアのアイテムのリストを読み込む
+    private static List<ItemStack> readItemRefs(DataInputStream in, AttachmentBlobStore blobs) throws IOException {
+        if ( blobs == null ) {
+            throw new IOException("Attachment store is required to read this mail data.");
+        }
+        int size = in.readInt();
+        List<ItemStack> list = new ArrayList<ItemStack>();
+        for ( int i = 0; i < size; i++ ) {
+            String hash = in.readUTF();
+            ItemStack item = blobs.get(hash, in.readInt());
+            if ( item != null ) {
+                list.add(item);
+            }
+        }
+        return list;
+    }
+
+    // アイテムを書き込む。アイテムのメタ情報はYamlと同じ形式の文字列で格納する。
+    private static void writeItem(DataOutputStream out, ItemStack item) throws IOException {
+        writeString(out, encodeItem(item));
+    }
+
+    // アイテムを読み込む
+    private static ItemStack readItem(DataInputStream in) throws IOException {
+        return decodeItem(readString(in));
+    }
+
+    /**
+     * アイテムを、Yamlと同じ形式の文字列に変換する
+     * @param item アイテム
+     * @return 文字列
+     */
+    protected static String encodeItem(ItemStack item) {
+        YamlConfiguration config = new YamlConfiguration();
+        ItemConfigParser.setItemToSection(config, item);
+        return config.saveToString();
+    }
+
+    /**
+     * Yamlと同じ形式の文字列から、アイテムを復元する
+     * @param str 文字列
+     * @return アイテム、復元できない場合はnull
+     */
+    protected static ItemStack decodeItem(String str) {
+        YamlConfiguration config = new YamlConfiguration();
+        try {
+            config.loadFromString(str);
+            return ItemConfigParser.getItemFromSection(config);
+        } catch (InvalidConfigurationException e) {
+            e.printStackTrace();
+        } catch (ItemConfigParseException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    // "$" + UUID の形式の文字列から、UUIDを取得する。元の文字列に戻せない場合はnullを返す。
+    private static UUID parseUuid(String sender) {
+        if ( sender == null || !sender.startsWith("$") ) return null;
+        String str = sender.substring(1);
+        try {
+            UUID uuid = UUID.fromString(str);
+            return uuid.toString().equals(str) ? uuid : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * フィールドを、番号と長さを前置して書き込むためのクラス
+     * @author ucchy
+     */
+    private static class FieldWriter {
+
+        private DataOutputStream out;
+        private ByteArrayOutputStream buffer;
+        private int id;
+
+        private FieldWriter(DataOutputStream out) {
+            this.out = out;
+        }
+
+        // フィールドの書き込みを開始する
+        private DataOutputStream begin(int id) {
+            this.id = id;
+            this.buffer = new ByteArrayOutputStream();
+            return new DataOutputStream(buffer);
+        }
+
+        // フィールドの書き込みを終了し、番号と長さを付けて出力する
+        private void end() throws IOException {
+            out.writeByte(id);
+            out.writeInt(buffer.size());
+            buffer.writeTo(out);
+        }
+    }
+}
@@ -0,0 +1,293 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2020
+ */
+package org.bitbucket.ucchy.undine;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import org.bitbucket.ucchy.undine.sender.MailSender;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.scheduler.BukkitRunnable;
+
+/**
+ * 1通のメールを、多数の宛先それぞれに1通ずつ複製して送信するタスク。
+ * <p>
+ * 最初にインデクスを宛先の数だけまとめて予約し、メインスレッドで1tickあたり決まった数ずつ複製して
+ * メールリストに追加する。保存は保存キューにバッチごとにまとめて渡し、非同期スレッドで書き込まれる。
+ * 送信の進捗は一定時間ごとに、全ての書き込みが終わった後に結果（失敗した数を含む）を、送り主に知らせる。
+ * 書き込みに失敗したバッチは、保存キューが成功するまで再試行するので、メールリストに追加したメールは
+ * 送信できなかったメールとしては数えない。
+ * </p>
+ * <p>
+ * 途中でリロードが始まった場合は、ロードが終わるまで送信を止めて、残りの分のインデクスを予約し直してから再開する。
+ * プラグインが停止されるときは、残りの分をその場で全て送信するか、ロードが終わっていない場合は、
+ * 残りの宛先をファイルに保存して、次回の起動時に再開する。
+ * </p>
+ * @author ucchy
+ */
+public class MailFanout extends BukkitRunnable {
+
+    /** 1tickあたりに複製するメールの数 */
+    private static final int BATCH_SIZE = 100;
+
+    /** 進捗を知らせる間隔（ミリ秒） */
+    private static final long PROGRESS_INTERVAL = 3000L;
+
+    private MailManager manager;
+    private MailData template;
+    private List<MailSender> recipients;
+    private int firstIndex;
+    private int position;
+    private int failed;
+    private long lastReported;
+    private boolean isPaused;
+
+    // バッチごとの書き込みの結果
+    private List<CompletableFuture<Void>> saves;
+    private CompletableFuture<Integer> result;
+
+    /**
+     * コンストラクタ
+     * @param manager MailManager
+     * @param mail 複製元のメール
+     * @param recipients 宛先
+     */
+    protected MailFanout(MailManager manager, MailData mail, Collection<MailSender> recipients) {
+
+        this(manager, recipients);
+
+        // 送信が終わる前に、編集中のメールや添付ボックスが片付けられても良いように、複製元を作っておく
+        template = new MailData(new ArrayList<MailSender>(), mail.getFrom(),
+                new ArrayList<String>(mail.getMessage()), new ArrayList<ItemStack>(mail.getAttachments()),
+                mail.getCostMoney(), mail.getCostItem());
+        if ( template.getMessage().size() == 0 ) {
+            template.addMessage("");
+        }
+        manager.prepareNewMail(template);
+    }
+
+    /**
+     * コンストラクタ
+     * @param manager MailManager
+     * @param recipients 宛先
+     */
+    private MailFanout(MailManager manager, Collection<MailSender> recipients) {
+        this.manager = manager;
+        this.recipients = new ArrayList<MailSender>(recipients);
+        this.saves = new ArrayList<CompletableFuture<Void>>();
+        this.result = new CompletableFuture<Integer>();
+    }
+
+    /**
+     * インデクスを予約して、送信を開始する
+     */
+    protected void start() {
+        firstIndex = manager.reserveIndexes(recipients.size());
+        lastReported = System.currentTimeMillis();
+        runTaskTimer(UndineMailer.getInstance(), 0, 1);
+    }
+
+    /**
+     * 送信する宛先の数を返す
+     * @return 宛先の数
+     */
+    public int getTotal() {
+        return recipients.size();
+    }
+
+    /**
+     * 複製が終わったメールの数を返す
+     * @return 複製が終わったメールの数
+     */
+    public int getDone() {
+        return position;
+    }
+
+    /**
+     * 全ての書き込みが終わったら、送信できなかったメールの数で完了するCompletableFutureを返す
+     * @return 結果
+     */
+    public CompletableFuture<Integer> getResult() {
+        return result;
+    }
+
+    /**
+     * 1tick分のメールを複製して送信する
+     * @see java.lang.Runnable#run()
+     */
+    @Override
+    public void run() {
+
+        // 途中でリロードが始まった場合は、ロードが終わるまで待つ
+        if ( !manager.isLoaded() ) {
+            isPaused = true;
+            return;
+        }
+        resumeIfPaused();
+
+        sendUntil(Math.min(position + BATCH_SIZE, recipients.size()));
+
+        if ( position < recipients.size() ) {
+            long now = System.currentTimeMillis();
+            if ( now - lastReported >= PROGRESS_INTERVAL ) {
+                lastReported = now;
+                template.getFrom().sendMessage(Messages.get("InformationFanoutProgress",
+                        new String[]{"%done", "%total"},
+                        new String[]{position + "", recipients.size() + ""}));
+            }
+            return;
+        }
+
+        cancel();
+        manager.removeFanout(this);
+        waitForSaves();
+    }
+
+    /**
+     * 残りの分を、その場で全て送信する。プラグインが停止されるときに、ロードが完了している場合に呼び出す。
+     * 書き込みは、この後に保存先を閉じるときに行われる。
+     */
+    protected void drain() {
+        cancel();
+        resumeIfPaused();
+        sendUntil(recipients.size());
+    }
+
+    /**
+     * 複製元と残りの宛先を、コンフィグセクションに保存する。
+     * プラグインが停止されるときに、ロードが完了していない場合に呼び出す。
+     * @param section コンフィグセクション
+     */
+    protected void saveToConfigSection(ConfigurationSection section) {
+        cancel();
+        template.saveToConfigSection(section.createSection("template"));
+        ArrayList<String> rest = new ArrayList<String>();
+        for ( MailSender to : recipients.subList(position, recipients.size()) ) {
+            rest.add(to.toString());
+        }
+        section.set("recipients", rest);
+    }
+
+    /**
+     * コンフィグセクションに保存された、送信の残りを復帰する
+     * @param manager MailManager
+     * @param section コンフィグセクション
+     * @return 送信処理、復帰できない場合はnull
+     */
+    protected static MailFanout loadFromConfigSection(MailManager manager, ConfigurationSection section) {
+
+        ConfigurationSection sub = section.getConfigurationSection("template");
+        if ( sub == null ) return null;
+
+        ArrayList<MailSender> recipients = new ArrayList<MailSender>();
+        for ( String name : section.getStringList("recipients") ) {
+            MailSender to = MailSender.getMailSenderFromString(name);
+            if ( to != null ) {
+                recipients.add(to);
+            }
+        }
+
+        MailFanout fanout = new MailFanout(manager, recipients);
+        fanout.template = MailData.loadFromConfigSection(sub);
+        return fanout;
+    }
+
+    /**
+     * リロードで止まっていた場合は、リロードでインデクスが振り直されるので、残りの分のインデクスを予約し直す
+     */
+    private void resumeIfPaused() {
+        if ( !isPaused ) return;
+        firstIndex = manager.reserveIndexes(recipients.size() - position) - position;
+        isPaused = false;
+    }
+
+    /**
+     * 指定された位置の手前の宛先まで、メールを複製して送信する
+     * @param end 終わりの位置
+     */
+    private void sendUntil(int end) {
+        ArrayList<MailData> batch = new ArrayList<MailData>();
+        for ( ; position < end; position++ ) {
+            try {
+                batch.add(makeCopy(recipients.get(position), firstIndex + position));
+            } catch (Exception e) {
+                e.printStackTrace();
+                failed++;
+            }
+        }
+        if ( batch.size() > 0 ) {
+            saves.add(manager.addSentMails(batch));
+        }
+    }
+
+    /**
+     * 指定された宛先に送るメールを、複製元から作成する
+     * @param to 宛先
+     * @param index インデクス
+     * @return メール
+     */
+    private MailData makeCopy(MailSender to, int index) {
+        ArrayList<MailSender> list = new ArrayList<MailSender>();
+        list.add(to);
+        MailData copy = new MailData(list, template.getFrom(),
+                new ArrayList<String>(template.getMessage()), new ArrayList<ItemStack>(template.getAttachments()),
+                template.getCostMoney(), template.getCostItem());
+        copy.setToTotal(new ArrayList<MailSender>(list));
+        copy.setIndex(index);
+        copy.setDate(template.getDate());
+        copy.setLocation(template.getLocation());
+        copy.makeAttachmentsOriginal();
+        return copy;
+    }
+
+    /**
+     * 全てのバッチの書き込みが終わるのを待って、送り主に結果を知らせる
+     */
+    private void waitForSaves() {
+
+        // メールリストに追加したメールは、書き込みに失敗しても保存キューが再試行するので、
+        // 送信できなかったメールは、複製できなかったものだけになる
+        CompletableFuture<Integer> total = CompletableFuture.allOf(saves.toArray(new CompletableFuture<?>[0]))
+                .thenApply(new Function<Void, Integer>() {
+                    public Integer apply(Void v) {
+                        return failed;
+                    }
+                });
+
+        Utility.runOnMainThread(total, new Consumer<Integer>() {
+            public void accept(Integer failures) {
+                report(failures);
+                result.complete(failures);
+            }
+        });
+    }
+
+    /**
+     * 送り主に結果を知らせる
+     * @param failures 送信できなかったメールの数
+     */
+    private void report(int failures) {
+
+        MailSender from = template.getFrom();
+        for ( int i=0; i<UndineMailer.getInstance().getUndineConfig().getUiEmptyLines(); i++ ) {
+            from.sendMessage("");
+        }
+        if ( failures == 0 ) {
+            from.sendMessage(Messages.get("InformationYouSentMail"));
+        } else {
+            from.sendMessage(Messages.get("ErrorFanoutPartialFailure",
+                    new String[]{"%failed", "%total"},
+                    new String[]{failures + "", recipients.size() + ""}));
+            UndineMailer.getInstance().getLogger().warning("Could not send " + failures + " of "
+                    + recipients.size() + " replicated mails from " + from.getName() + ".");
+        }
+    }
+}
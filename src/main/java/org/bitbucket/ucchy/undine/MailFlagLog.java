@@ -0,0 +1,260 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2020
+ */
+package org.bitbucket.ucchy.undine;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bitbucket.ucchy.undine.sender.MailSender;
+
+/**
+ * メールの既読フラグとゴミ箱フラグの変更を、メールファイルとは別のファイルに追記していくログ。
+ * <p>
+ * フラグが変更されたときは、変更された人の分だけを「設定」「解除」のレコードとして追記するので、
+ * メールファイル全体を書き直す必要がない。メールファイル全体が保存されたときは「リセット」のレコードを追記し、
+ * それ以前のレコードを無効にする。ロード時には、メールファイルの内容にログを順に適用して、最新の状態を復元する。
+ * </p>
+ * @author ucchy
+ * @see AppendLogFile
+ */
+public class MailFlagLog {
+
+    /** ログファイルの名前 */
+    protected static final String FILE_NAME = "flags.log";
+
+    /** 既読フラグ */
+    protected static final int FLAG_READ = 0;
+
+    /** ゴミ箱フラグ */
+    protected static final int FLAG_TRASH = 1;
+
+    private static final int OP_RESET = 0;
+    private static final int OP_SET = 1;
+    private static final int OP_CLEAR = 2;
+
+    private AppendLogFile log;
+
+    // ロード時に読み込んだ、メールごとのリセット以降の操作。キーは、フラグの種類 + 送信者。
+    private HashMap<Integer, LinkedHashMap<String, Boolean>> loadedOps;
+    private int loadedRecords;
+
+    // 保存済みのフラグの状態。変更があった人を調べるために使う。
+    private HashMap<Integer, HashSet<String>> readStates;
+    private HashMap<Integer, HashSet<String>> trashStates;
+
+    /**
+     * コンストラクタ
+     * @param folder ログファイルを置くフォルダ
+     */
+    public MailFlagLog(File folder) {
+        this.log = new AppendLogFile(new File(folder, FILE_NAME));
+        this.readStates = new HashMap<Integer, HashSet<String>>();
+        this.trashStates = new HashMap<Integer, HashSet<String>>();
+    }
+
+    /**
+     * ログファイルを読み込む。読み込んだ内容は、apply でメールに適用する。
+     * 末尾に途中で途切れたレコードがある場合は、後から追記するレコードが読めなくならないように、
+     * 最後の完全なレコードの終わりまでファイルを切り詰める。
+     */
+    protected synchronized void load() {
+
+        loadedOps = new HashMap<Integer, LinkedHashMap<String, Boolean>>();
+        loadedRecords = 0;
+        readStates.clear();
+        trashStates.clear();
+
+        log.read(new AppendLogFile.RecordReader() {
+            public void read(DataInputStream in) throws IOException {
+                int op = in.readUnsignedByte();
+                int index = in.readInt();
+                if ( op == OP_RESET ) {
+                    loadedOps.remove(index);
+                } else {
+                    int flag = in.readUnsignedByte();
+                    String sender = MailDataCodec.readSender(in);
+                    LinkedHashMap<String, Boolean> ops = loadedOps.get(index);
+                    if ( ops == null ) {
+                        ops = new LinkedHashMap<String, Boolean>();
+                        loadedOps.put(index, ops);
+                    }
+                    String key = flag + sender;
+                    ops.remove(key);
+                    ops.put(key, op == OP_SET);
+                }
+                loadedRecords++;
+            }
+        });
+    }
+
+    /**
+     * 読み込んだログを、ファイルからロードしたメールに適用する
+     * @param mail メール
+     */
+    protected synchronized void apply(MailData mail) {
+
+        LinkedHashMap<String, Boolean> ops = (loadedOps != null) ? loadedOps.get(mail.getIndex()) : null;
+        if ( ops != null ) {
+            for ( Map.Entry<String, Boolean> entry : ops.entrySet() ) {
+                int flag = entry.getKey().charAt(0) - '0';
+                MailSender sender = MailSender.getMailSenderFromString(entry.getKey().substring(1));
+                if ( sender == null ) continue;
+                List<MailSender> list = (flag == FLAG_READ) ? mail.getReadFlags() : mail.getTrashFlags();
+                if ( entry.getValue() ) {
+                    if ( !list.contains(sender) ) list.add(sender);
+                } else {
+                    list.remove(sender);
+                }
+            }
+        }
+
+        remember(mail);
+    }
+
+    /**
+     * 全てのメールのロードが完了したときに呼び出す。
+     * ログが、有効な操作の数に比べて大きくなっている場合は、有効な操作だけを残すように書き直す。
+     * @param loadedIndexes ロードされたメールのインデクス
+     */
+    protected synchronized void compact(Iterable<Integer> loadedIndexes) {
+
+        if ( loadedOps == null ) return;
+
+        final HashMap<Integer, LinkedHashMap<String, Boolean>> live =
+                new HashMap<Integer, LinkedHashMap<String, Boolean>>();
+        int liveRecords = 0;
+        for ( int index : loadedIndexes ) {
+            LinkedHashMap<String, Boolean> ops = loadedOps.get(index);
+            if ( ops != null ) {
+                live.put(index, ops);
+                liveRecords += ops.size();
+            }
+        }
+
+        if ( loadedRecords > liveRecords * 2 ) {
+            log.rewrite(new AppendLogFile.RecordWriter() {
+                public void write(DataOutputStream out) throws IOException {
+                    for ( Map.Entry<Integer, LinkedHashMap<String, Boolean>> entry : live.entrySet() ) {
+                        for ( Map.Entry<String, Boolean> op : entry.getValue().entrySet() ) {
+                            writeRecord(out, op.getValue() ? OP_SET : OP_CLEAR, entry.getKey(),
+                                    op.getKey().charAt(0) - '0', op.getKey().substring(1));
+                        }
+                    }
+                }
+            });
+        }
+
+        loadedOps = null;
+    }
+
+    /**
+     * 指定されたメールのフラグの変更を、ログに追記する
+     * @param mail メール
+     * @param flag フラグの種類
+     * @throws MailStorageException 書き込みに失敗した場合
+     */
+    protected synchronized void update(MailData mail, int flag) {
+
+        HashMap<Integer, HashSet<String>> states = (flag == FLAG_READ) ? readStates : trashStates;
+        HashSet<String> previous = states.get(mail.getIndex());
+        if ( previous == null ) previous = new HashSet<String>();
+        HashSet<String> current = toStrings(
+                (flag == FLAG_READ) ? mail.getReadFlags() : mail.getTrashFlags());
+
+        long length = log.length();
+        try {
+            DataOutputStream out = log.getStream();
+            for ( String sender : current ) {
+                if ( !previous.contains(sender) ) {
+                    writeRecord(out, OP_SET, mail.getIndex(), flag, sender);
+                }
+            }
+            for ( String sender : previous ) {
+                if ( !current.contains(sender) ) {
+                    writeRecord(out, OP_CLEAR, mail.getIndex(), flag, sender);
+                }
+            }
+            out.flush();
+            states.put(mail.getIndex(), current);
+        } catch (IOException e) {
+            log.discardAppended(length);
+            throw new MailStorageException("Could not write " + FILE_NAME + ".", e);
+        }
+    }
+
+    /**
+     * メールファイル全体が保存されたときに呼び出し、それ以前のログを無効にする
+     * @param mail メール
+     * @throws MailStorageException 書き込みに失敗した場合
+     */
+    protected synchronized void reset(MailData mail) {
+        appendReset(mail.getIndex());
+        remember(mail);
+    }
+
+    /**
+     * メールが削除されたときに呼び出し、そのメールのログを無効にする
+     * @param index インデクス
+     * @throws MailStorageException 書き込みに失敗した場合
+     */
+    protected synchronized void forget(int index) {
+        appendReset(index);
+        readStates.remove(index);
+        trashStates.remove(index);
+    }
+
+    /**
+     * ログファイルを閉じる
+     */
+    protected synchronized void close() {
+        log.closeStream();
+    }
+
+    // 保存済みのフラグの状態を記録する
+    private void remember(MailData mail) {
+        readStates.put(mail.getIndex(), toStrings(mail.getReadFlags()));
+        trashStates.put(mail.getIndex(), toStrings(mail.getTrashFlags()));
+    }
+
+    // リセットのレコードを追記する
+    private void appendReset(int index) {
+        long length = log.length();
+        try {
+            DataOutputStream out = log.getStream();
+            out.writeByte(OP_RESET);
+            out.writeInt(index);
+            out.flush();
+        } catch (IOException e) {
+            log.discardAppended(length);
+            throw new MailStorageException("Could not write " + FILE_NAME + ".", e);
+        }
+    }
+
+    // 設定または解除のレコードを書き込む
+    private static void writeRecord(DataOutputStream out, int op, int index, int flag, String sender)
+            throws IOException {
+        out.writeByte(op);
+        out.writeInt(index);
+        out.writeByte(flag);
+        MailDataCodec.writeSender(out, sender);
+    }
+
+    // 送信者のリストを、文字列のセットに変換する
+    private static HashSet<String> toStrings(List<MailSender> list) {
+        HashSet<String> result = new HashSet<String>();
+        for ( MailSender sender : list ) {
+            result.add(sender.toString());
+        }
+        return result;
+    }
+}
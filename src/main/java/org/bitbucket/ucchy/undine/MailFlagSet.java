@@ -0,0 +1,275 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2020
+ */
+package org.bitbucket.ucchy.undine;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.bitbucket.ucchy.undine.sender.MailSender;
+
+/**
+ * メールの既読フラグやゴミ箱フラグを付けた人のリスト。
+ * <p>
+ * 人数が少ないうちは通常のリストとして保持するが、全体宛てのメールのように人数が増えて、
+ * プレイヤーの序数のビットマップの方が小さくなった時点で、UUIDで管理されているプレイヤーを
+ * ビットマップに移す。ビットマップに移した後は、含まれているかどうかの確認は序数のビットを見るだけになる。
+ * </p>
+ * <p>
+ * ビットマップに含まれる人は、取り出すたびに新しいMailSenderとして作り直されるので、
+ * 要素の変更はadd、remove、clearで行うこと。
+ * </p>
+ * @author ucchy
+ * @see PlayerOrdinals
+ */
+public class MailFlagSet extends AbstractList<MailSender> {
+
+    /** ビットマップに切り替える最小の人数 */
+    private static final int BITMAP_MIN_SIZE = 64;
+
+    /** 1人あたりのリストの大きさが、ビットマップの何ビット分にあたるかの目安 */
+    private static final int BITS_PER_LIST_ENTRY = 256;
+
+    // リストで保持している人（ビットマップに切り替えた後は、UUIDで管理されていない人だけ）
+    private ArrayList<MailSender> list;
+
+    // ビットマップで保持している人の序数、切り替える前はnull
+    private BitSet bits;
+    private int bitCount;
+
+    /**
+     * コンストラクタ
+     */
+    public MailFlagSet() {
+        this.list = new ArrayList<MailSender>();
+    }
+
+    /**
+     * 保存用に、このリストを複製して返す。
+     * 要素を1人ずつ追加し直すのではなく、内部のリストとビットマップをそのまま複製する。
+     * @return 複製
+     */
+    protected MailFlagSet copy() {
+        MailFlagSet copy = new MailFlagSet();
+        copy.list = new ArrayList<MailSender>(list);
+        if ( bits != null ) {
+            copy.bits = (BitSet)bits.clone();
+            copy.bitCount = bitCount;
+        }
+        return copy;
+    }
+
+    /**
+     * ビットマップで保持しているかどうかを返す
+     * @return ビットマップで保持しているかどうか
+     */
+    public boolean isBitmap() {
+        return bits != null;
+    }
+
+    /**
+     * @see java.util.AbstractCollection#contains(java.lang.Object)
+     */
+    @Override
+    public boolean contains(Object o) {
+        if ( !(o instanceof MailSender) ) return false;
+        if ( bits != null ) {
+            int ordinal = findOrdinal((MailSender)o);
+            if ( ordinal >= 0 && bits.get(ordinal) ) return true;
+        }
+        return list.contains(o);
+    }
+
+    /**
+     * @see java.util.AbstractList#add(java.lang.Object)
+     */
+    @Override
+    public boolean add(MailSender sender) {
+        if ( bits != null ) {
+            int ordinal = getOrdinal(sender);
+            if ( ordinal >= 0 ) {
+                if ( bits.get(ordinal) ) return false;
+                bits.set(ordinal);
+                bitCount++;
+                modCount++;
+                return true;
+            }
+        }
+        list.add(sender);
+        modCount++;
+        if ( bits == null ) {
+            convertToBitmapIfSmaller();
+        }
+        return true;
+    }
+
+    /**
+     * @see java.util.AbstractCollection#remove(java.lang.Object)
+     */
+    @Override
+    public boolean remove(Object o) {
+        if ( !(o instanceof MailSender) ) return false;
+        if ( bits != null ) {
+            int ordinal = findOrdinal((MailSender)o);
+            if ( ordinal >= 0 && bits.get(ordinal) ) {
+                bits.clear(ordinal);
+                bitCount--;
+                modCount++;
+                return true;
+            }
+        }
+        if ( list.remove(o) ) {
+            modCount++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @see java.util.AbstractList#clear()
+     */
+    @Override
+    public void clear() {
+        list.clear();
+        if ( bits != null ) {
+            bits.clear();
+            bitCount = 0;
+        }
+        modCount++;
+    }
+
+    /**
+     * 指定された位置の人を取得する。ビットマップで保持している場合は、先頭から数えるので遅い。
+     * @see java.util.AbstractList#get(int)
+     */
+    @Override
+    public MailSender get(int index) {
+        if ( index < 0 || index >= size() ) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+        }
+        if ( index < list.size() ) return list.get(index);
+        int ordinal = bits.nextSetBit(0);
+        for ( int i = list.size(); i < index; i++ ) {
+            ordinal = bits.nextSetBit(ordinal + 1);
+        }
+        return toSender(ordinal);
+    }
+
+    /**
+     * @see java.util.AbstractCollection#size()
+     */
+    @Override
+    public int size() {
+        return list.size() + bitCount;
+    }
+
+    /**
+     * リストで保持している人を先に、ビットマップで保持している人を序数の順に返すイテレータを取得する
+     * @see java.util.AbstractList#iterator()
+     */
+    @Override
+    public Iterator<MailSender> iterator() {
+
+        return new Iterator<MailSender>() {
+
+            private int listCursor = 0;
+            private int bitCursor = (bits != null) ? bits.nextSetBit(0) : -1;
+            private int lastListIndex = -1;
+            private int lastOrdinal = -1;
+            private int expectedModCount = modCount;
+
+            public boolean hasNext() {
+                return listCursor < list.size() || bitCursor >= 0;
+            }
+
+            public MailSender next() {
+                checkModification();
+                lastListIndex = -1;
+                lastOrdinal = -1;
+                if ( listCursor < list.size() ) {
+                    lastListIndex = listCursor;
+                    return list.get(listCursor++);
+                }
+                if ( bitCursor < 0 ) {
+                    throw new NoSuchElementException();
+                }
+                lastOrdinal = bitCursor;
+                bitCursor = bits.nextSetBit(bitCursor + 1);
+                return toSender(lastOrdinal);
+            }
+
+            public void remove() {
+                checkModification();
+                if ( lastListIndex >= 0 ) {
+                    list.remove(lastListIndex);
+                    listCursor--;
+                } else if ( lastOrdinal >= 0 ) {
+                    bits.clear(lastOrdinal);
+                    bitCount--;
+                } else {
+                    throw new IllegalStateException();
+                }
+                lastListIndex = -1;
+                lastOrdinal = -1;
+                modCount++;
+                expectedModCount = modCount;
+            }
+
+            private void checkModification() {
+                if ( modCount != expectedModCount ) {
+                    throw new ConcurrentModificationException();
+                }
+            }
+        };
+    }
+
+    /**
+     * ビットマップの方が小さくなる人数になっていれば、UUIDで管理されているプレイヤーをビットマップに移す
+     */
+    private void convertToBitmapIfSmaller() {
+
+        if ( list.size() < BITMAP_MIN_SIZE ) return;
+        if ( (long)list.size() * BITS_PER_LIST_ENTRY < PlayerOrdinals.size() ) return;
+
+        BitSet newBits = new BitSet();
+        int count = 0;
+        ArrayList<MailSender> rest = new ArrayList<MailSender>();
+        for ( MailSender sender : list ) {
+            int ordinal = getOrdinal(sender);
+            if ( ordinal < 0 ) {
+                rest.add(sender);
+            } else if ( !newBits.get(ordinal) ) {
+                newBits.set(ordinal);
+                count++;
+            }
+        }
+        list = rest;
+        bits = newBits;
+        bitCount = count;
+    }
+
+    // 指定された人の序数を取得する。UUIDで管理されていない人は-1を返す。
+    private static int getOrdinal(MailSender sender) {
+        String key = sender.toString();
+        if ( !key.startsWith("$") ) return -1;
+        return PlayerOrdinals.getOrdinal(key.substring(1));
+    }
+
+    // 指定された人の序数を、割り当てずに取得する。割り当てられていない人は-1を返す。
+    private static int findOrdinal(MailSender sender) {
+        String key = sender.toString();
+        if ( !key.startsWith("$") ) return -1;
+        return PlayerOrdinals.findOrdinal(key.substring(1));
+    }
+
+    // 指定された序数のプレイヤーを作成する
+    private static MailSender toSender(int ordinal) {
+        return MailSender.getMailSenderFromString("$" + PlayerOrdinals.getUuid(ordinal));
+    }
+}
@@ -0,0 +1,383 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2020
+ */
+package org.bitbucket.ucchy.undine;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.TreeSet;
+
+import org.bitbucket.ucchy.undine.sender.MailSender;
+
+/**
+ * メールの宛先インデクス。
+ * 宛先ごと、送信者ごとに、新しいメール順に並んだメールのセットを保持する。
+ * また宛先ごとに、未読でゴミ箱に入っていないメール（全体メールを除く）のセットと、
+ * 送信者ごとに、アイテムが残っている添付ボックスの個数も保持する。
+ * @author ucchy
+ */
+public class MailIndex {
+
+    /** 新しいメール順に並べるためのコンパレータ */
+    protected static final Comparator<MailData> NEWER_FIRST = new Comparator<MailData>() {
+        public int compare(MailData o1, MailData o2) {
+            int result = Long.compare(getTime(o2.getDate()), getTime(o1.getDate()));
+            if ( result != 0 ) return result;
+            return Integer.compare(o2.getIndex(), o1.getIndex());
+        }
+    };
+
+    private HashMap<String, TreeSet<MailData>> recipients;
+    private HashMap<String, TreeSet<MailData>> senders;
+    private TreeSet<MailData> allMails;
+    private HashMap<String, TreeSet<MailData>> unread;
+
+    // 送信者 → アイテムが残っている添付ボックスの個数、と、数えているメールのインデクス
+    private HashMap<String, Integer> attachBoxCounts;
+    private HashSet<Integer> attachBoxMails;
+
+    // 登録時のキーを、メールのインデクスごとに記録しておく
+    private HashMap<Integer, HashSet<String>> recipientKeys;
+    private HashMap<Integer, String> senderKeys;
+
+    /**
+     * コンストラクタ
+     */
+    protected MailIndex() {
+        recipients = new HashMap<String, TreeSet<MailData>>();
+        senders = new HashMap<String, TreeSet<MailData>>();
+        allMails = new TreeSet<MailData>(NEWER_FIRST);
+        unread = new HashMap<String, TreeSet<MailData>>();
+        attachBoxCounts = new HashMap<String, Integer>();
+        attachBoxMails = new HashSet<Integer>();
+        recipientKeys = new HashMap<Integer, HashSet<String>>();
+        senderKeys = new HashMap<Integer, String>();
+    }
+
+    /**
+     * 指定されたメールをインデクスに追加する
+     * @param mail メール
+     */
+    protected synchronized void add(MailData mail) {
+
+        // 既に登録済みなら、一旦削除してから登録しなおす
+        if ( recipientKeys.containsKey(mail.getIndex()) ) {
+            remove(mail);
+        }
+
+        HashSet<String> keys = new HashSet<String>();
+        for ( MailSender to : mail.getTo() ) {
+            keys.add(to.toString());
+        }
+        if ( mail.getToTotal() != null ) {
+            for ( MailSender to : mail.getToTotal() ) {
+                keys.add(to.toString());
+            }
+        }
+        for ( String key : keys ) {
+            getOrCreate(recipients, key).add(mail);
+        }
+        recipientKeys.put(mail.getIndex(), keys);
+
+        if ( mail.getFrom() != null ) {
+            String key = mail.getFrom().toString();
+            getOrCreate(senders, key).add(mail);
+            senderKeys.put(mail.getIndex(), key);
+            updateAttachBox(mail);
+        }
+
+        if ( mail.isAllMail() ) {
+            allMails.add(mail);
+        } else {
+            updateUnread(mail);
+        }
+    }
+
+    /**
+     * 指定されたメールをインデクスから削除する
+     * @param mail メール
+     */
+    protected synchronized void remove(MailData mail) {
+
+        HashSet<String> keys = recipientKeys.remove(mail.getIndex());
+        if ( keys != null ) {
+            for ( String key : keys ) {
+                removeFrom(recipients, key, mail);
+                removeFrom(unread, key, mail);
+            }
+        }
+
+        String key = senderKeys.get(mail.getIndex());
+        if ( key != null ) {
+            removeFrom(senders, key, mail);
+            countAttachBox(mail.getIndex(), key, false);
+            senderKeys.remove(mail.getIndex());
+        }
+
+        allMails.remove(mail);
+    }
+
+    /**
+     * 指定されたメールの既読フラグかゴミ箱フラグが変更されたときに、未読のメールのセットを更新する
+     * @param mail メール
+     */
+    protected synchronized void updateFlags(MailData mail) {
+        if ( recipientKeys.containsKey(mail.getIndex()) && !mail.isAllMail() ) {
+            updateUnread(mail);
+        }
+    }
+
+    /**
+     * 指定されたメールの添付アイテムが変更されたときに、送信者の添付ボックスの個数を更新する
+     * @param mail メール
+     */
+    protected synchronized void updateAttachments(MailData mail) {
+        if ( senderKeys.containsKey(mail.getIndex()) ) {
+            updateAttachBox(mail);
+        }
+    }
+
+    /**
+     * 指定されたsenderが送信したメールのうち、添付ボックスにアイテムが残っているものの個数を返す
+     * @param sender 取得する対象
+     * @return 個数
+     */
+    protected synchronized int getAttachBoxCount(MailSender sender) {
+        Integer count = attachBoxCounts.get(sender.toString());
+        return (count == null) ? 0 : count;
+    }
+
+    /**
+     * 指定されたsenderが受信した、未読でゴミ箱に入っていないメールの件数を返す
+     * @param sender 取得する対象
+     * @return 件数
+     */
+    protected synchronized int getUnreadCount(MailSender sender) {
+        TreeSet<MailData> set = unread.get(sender.toString());
+        int count = (set == null) ? 0 : set.size();
+        for ( MailData mail : allMails ) {
+            if ( MailBoxType.UNREAD.accept(mail, sender) ) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 指定されたsenderが受信した、未読でゴミ箱に入っていないメールを、新しい順に指定された件数まで取得する
+     * @param sender 取得する対象
+     * @param max 最大の件数
+     * @return メールのリスト
+     */
+    protected synchronized ArrayList<MailData> getRecentUnreadMails(final MailSender sender, final int max) {
+
+        final ArrayList<MailData> result = new ArrayList<MailData>();
+        if ( max <= 0 ) return result;
+
+        ArrayList<TreeSet<MailData>> sets = new ArrayList<TreeSet<MailData>>();
+        addIfExists(sets, unread.get(sender.toString()));
+        addIfExists(sets, allMails);
+        forEachMerged(sets, new MailVisitor() {
+            public boolean visit(MailData mail) {
+                if ( !mail.isAllMail() || MailBoxType.UNREAD.accept(mail, sender) ) {
+                    result.add(mail);
+                }
+                return result.size() < max;
+            }
+        });
+        return result;
+    }
+
+    /**
+     * 指定されたsenderが関係者（送信者または受信者）になっているメールを、新しい順で取得する。
+     * @param sender 取得する対象
+     * @return メールのリスト
+     */
+    protected synchronized ArrayList<MailData> getRelatedMails(MailSender sender) {
+        String key = sender.toString();
+        TreeSet<MailData> result = new TreeSet<MailData>(NEWER_FIRST);
+        TreeSet<MailData> received = recipients.get(key);
+        if ( received != null ) {
+            result.addAll(received);
+        }
+        TreeSet<MailData> sent = senders.get(key);
+        if ( sent != null ) {
+            result.addAll(sent);
+        }
+        result.addAll(allMails);
+        return new ArrayList<MailData>(result);
+    }
+
+    /**
+     * 指定されたsenderのメールボックスのメールを、新しい順にたどる。
+     * リストを作成せずに、インデクスのセットを直接たどる。
+     * @param sender メールボックスの持ち主
+     * @param type メールボックスの種類
+     * @param visitor 1通ずつ呼び出されるビジター
+     */
+    protected synchronized void forEach(MailSender sender, MailBoxType type, MailVisitor visitor) {
+
+        String key = sender.toString();
+        ArrayList<TreeSet<MailData>> sets = new ArrayList<TreeSet<MailData>>();
+        if ( type != MailBoxType.OUTBOX ) {
+            addIfExists(sets, recipients.get(key));
+            addIfExists(sets, allMails);
+        }
+        if ( type == MailBoxType.OUTBOX || type == MailBoxType.TRASH ) {
+            addIfExists(sets, senders.get(key));
+        }
+        forEachMerged(sets, visitor);
+    }
+
+    /**
+     * 新しい順に並んだセットを、重複を除きながら併合してたどる
+     * @param sets セット（空でないもの）
+     * @param visitor 1通ずつ呼び出されるビジター
+     */
+    private static void forEachMerged(ArrayList<TreeSet<MailData>> sets, MailVisitor visitor) {
+
+        ArrayList<Iterator<MailData>> iterators = new ArrayList<Iterator<MailData>>();
+        ArrayList<MailData> heads = new ArrayList<MailData>();
+        for ( TreeSet<MailData> set : sets ) {
+            Iterator<MailData> it = set.iterator();
+            iterators.add(it);
+            heads.add(it.next());
+        }
+        while ( heads.size() > 0 ) {
+            MailData newest = heads.get(0);
+            for ( int i = 1; i < heads.size(); i++ ) {
+                if ( NEWER_FIRST.compare(heads.get(i), newest) < 0 ) {
+                    newest = heads.get(i);
+                }
+            }
+            for ( int i = heads.size() - 1; i >= 0; i-- ) {
+                if ( NEWER_FIRST.compare(heads.get(i), newest) != 0 ) continue;
+                if ( iterators.get(i).hasNext() ) {
+                    heads.set(i, iterators.get(i).next());
+                } else {
+                    heads.remove(i);
+                    iterators.remove(i);
+                }
+            }
+            if ( !visitor.visit(newest) ) return;
+        }
+    }
+
+    /**
+     * メールボックスのメールを、1通ずつ受け取るビジター
+     */
+    protected interface MailVisitor {
+
+        /**
+         * メールを1通受け取る
+         * @param mail メール
+         * @return 続けてたどるかどうか
+         */
+        public boolean visit(MailData mail);
+    }
+
+    /**
+     * 指定されたメールの宛先ごとに、未読でゴミ箱に入っていないかどうかを確認して、未読のメールのセットを更新する
+     * @param mail メール（全体メールではないもの）
+     */
+    private void updateUnread(MailData mail) {
+        HashMap<String, MailSender> targets = new HashMap<String, MailSender>();
+        for ( MailSender to : mail.getTo() ) {
+            targets.put(to.toString(), to);
+        }
+        if ( mail.getToTotal() != null ) {
+            for ( MailSender to : mail.getToTotal() ) {
+                targets.put(to.toString(), to);
+            }
+        }
+        for ( String key : targets.keySet() ) {
+            MailSender to = targets.get(key);
+            if ( !mail.isRead(to) && !mail.isSetTrash(to) ) {
+                getOrCreate(unread, key).add(mail);
+            } else {
+                removeFrom(unread, key, mail);
+            }
+        }
+    }
+
+    /**
+     * 指定されたメールの添付ボックスにアイテムが残っているかどうかを確認して、送信者の添付ボックスの個数を更新する
+     * @param mail メール（送信者が登録済みのもの）
+     */
+    private void updateAttachBox(MailData mail) {
+        boolean hasItems = mail.getAttachments() != null && mail.getAttachments().size() > 0;
+        countAttachBox(mail.getIndex(), senderKeys.get(mail.getIndex()), hasItems);
+    }
+
+    /**
+     * 送信者の添付ボックスの個数を、指定されたメールを数えるかどうかに合わせて増減する
+     * @param index メールのインデクス
+     * @param key 送信者
+     * @param count 数えるかどうか
+     */
+    private void countAttachBox(int index, String key, boolean count) {
+        if ( count == attachBoxMails.contains(index) ) return;
+        Integer current = attachBoxCounts.get(key);
+        int value = ((current == null) ? 0 : current) + (count ? 1 : -1);
+        if ( count ) {
+            attachBoxMails.add(index);
+        } else {
+            attachBoxMails.remove(index);
+        }
+        if ( value > 0 ) {
+            attachBoxCounts.put(key, value);
+        } else {
+            attachBoxCounts.remove(key);
+        }
+    }
+
+    // セットがあって空でないなら、リストに追加する
+    private static void addIfExists(ArrayList<TreeSet<MailData>> sets, TreeSet<MailData> set) {
+        if ( set != null && !set.isEmpty() ) {
+            sets.add(set);
+        }
+    }
+
+    /**
+     * 指定されたマップからセットを取得する。セットが無い場合は作成する。
+     * @param map マップ
+     * @param key キー
+     * @return セット
+     */
+    private static TreeSet<MailData> getOrCreate(
+            HashMap<String, TreeSet<MailData>> map, String key) {
+        TreeSet<MailData> set = map.get(key);
+        if ( set == null ) {
+            set = new TreeSet<MailData>(NEWER_FIRST);
+            map.put(key, set);
+        }
+        return set;
+    }
+
+    /**
+     * 指定されたマップのセットからメールを削除する。セットが空になったらセットも削除する。
+     * @param map マップ
+     * @param key キー
+     * @param mail メール
+     */
+    private static void removeFrom(
+            HashMap<String, TreeSet<MailData>> map, String key, MailData mail) {
+        TreeSet<MailData> set = map.get(key);
+        if ( set == null ) return;
+        set.remove(mail);
+        if ( set.isEmpty() ) {
+            map.remove(key);
+        }
+    }
+
+    // 日時をミリ秒に変換する。nullなら0とする。
+    private static long getTime(Date date) {
+        return date == null ? 0 : date.getTime();
+    }
+}
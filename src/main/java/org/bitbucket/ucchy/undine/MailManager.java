@@ -6,15 +6,19 @@
 package org.bitbucket.ucchy.undine;
 
 import java.io.File;
-import java.io.FilenameFilter;
 import java.io.IOException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.bitbucket.ucchy.undine.bridge.VaultEcoBridge;
 import org.bitbucket.ucchy.undine.command.GroupCommand;
@@ -54,9 +58,15 @@ public class MailManager {
 
     private static final int PAGE_SIZE = 10;
     private static final int MESSAGE_ADD_SIZE = 3;
+    private static final int LOAD_THREADS_MAX = 4;
 
     private ArrayList<MailData> mails;
+    private HashMap<Integer, MailData> mailsByIndex;
+    private MailIndex mailIndex;
+    private MailSaveQueue storage;
+    private RecipientResolver recipientResolver;
     private HashMap<String, MailData> editmodeMails;
+    private ArrayList<MailFanout> fanouts;
     private int nextIndex;
     private boolean isLoaded;
 
@@ -67,6 +77,12 @@ public class MailManager {
      */
     public MailManager(UndineMailer parent) {
         this.parent = parent;
+
+        // 保存はキューに溜めて、バックグラウンドでまとめて書き込む
+        this.storage = new MailSaveQueue(createStorage());
+        this.storage.startTask();
+        this.recipientResolver = new RecipientResolver();
+        this.fanouts = new ArrayList<MailFanout>();
         restoreEditmodeMail();
         reload(null);
     }
@@ -84,46 +100,86 @@ public class MailManager {
 
                 isLoaded = false;
                 mails = new ArrayList<MailData>();
+                mailsByIndex = new HashMap<Integer, MailData>();
+                mailIndex = new MailIndex();
                 nextIndex = 1;
 
-                File folder = parent.getMailFolder();
-                File[] files = folder.listFiles(new FilenameFilter() {
-                    public boolean accept(File dir, String name) {
-                        return name.endsWith(".yml");
-                    }
-                });
-
-                if ( files != null ) {
-                    for ( File file : files ) {
-                        MailData data = MailData.load(file);
-                        mails.add(data);
+                // 読み込めなかった場合は、既存のメールを新しいメールで上書きしないように、
+                // ロードが完了していない状態のままにする
+                try {
+                    storage.load(new MailStorage.LoadHandler() {
+                        public void onLoad(MailData data) {
+                            mails.add(data);
+                            mailsByIndex.put(data.getIndex(), data);
+
+                            if ( nextIndex <= data.getIndex() ) {
+                                nextIndex = data.getIndex() + 1;
+                            }
+                        }
+                    });
+                } catch (MailStorageException e) {
+                    e.printStackTrace();
+                    UndineMailer.getInstance().getLogger().severe(
+                            "Could not load mail data. Mails cannot be sent until it is reloaded successfully.");
+                    return;
+                }
 
-                        if ( nextIndex <= data.getIndex() ) {
-                            nextIndex = data.getIndex() + 1;
+                long loadEnd = System.currentTimeMillis();
+
+                // アップグレード処理は、メールごとに並列で実行する
+                ArrayList<MailData> upgraded = new ArrayList<MailData>();
+                ExecutorService executor = createLoadExecutor();
+                try {
+                    ArrayList<Future<Boolean>> results = new ArrayList<Future<Boolean>>(mails.size());
+                    for ( final MailData mail : mails ) {
+                        results.add(executor.submit(new Callable<Boolean>() {
+                            public Boolean call() {
+                                return mail.upgrade();
+                            }
+                        }));
+                    }
+                    for ( int i = 0; i < results.size(); i++ ) {
+                        try {
+                            if ( results.get(i).get() ) {
+                                upgraded.add(mails.get(i));
+                            }
+                        } catch (ExecutionException e) {
+                            e.printStackTrace();
                         }
                     }
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                } finally {
+                    executor.shutdown();
                 }
+                storage.saveAll(upgraded);
 
-                UndineMailer.getInstance().getLogger().info("Async load mail data... Done. Time: "
-                        + (System.currentTimeMillis() - start) + "ms, Data: " + mails.size() + ".");
-
-                long upgradeStart = System.currentTimeMillis();
+                long upgradeEnd = System.currentTimeMillis();
 
-                int total = 0;
+                // アップグレード後の宛先で、インデクスを作成する
                 for ( MailData mail : mails ) {
-                    if ( mail.upgrade() ) {
-                        saveMail(mail);
-                        total++;
-                    }
+                    mailIndex.add(mail);
                 }
 
-                if ( total > 0 ) {
-                    UndineMailer.getInstance().getLogger().info("Async upgrade mail data... Done.  Time: "
-                            + (System.currentTimeMillis() - upgradeStart) + "ms, Data: " + total + ".");
-                }
+                long indexEnd = System.currentTimeMillis();
+
+                UndineMailer.getInstance().getLogger().info("Async load mail data... Done. Time: "
+                        + (indexEnd - start) + "ms (load: " + (loadEnd - start)
+                        + "ms, upgrade: " + (upgradeEnd - loadEnd)
+                        + "ms, index: " + (indexEnd - upgradeEnd) + "ms), Data: " + mails.size()
+                        + ", Upgraded: " + upgraded.size() + ".");
 
                 isLoaded = true;
 
+                // 前回の停止時に送信しきれなかった分があれば、メインスレッドで再開する
+                if ( getFanoutFile().exists() ) {
+                    new BukkitRunnable() {
+                        public void run() {
+                            restoreFanouts();
+                        }
+                    }.runTask(UndineMailer.getInstance());
+                }
+
                 if ( sender != null ) {
                     sender.sendMessage(Messages.get("InformationReload"));
                 }
@@ -131,6 +187,15 @@ public class MailManager {
         }.runTaskAsynchronously(UndineMailer.getInstance());
     }
 
+    /**
+     * メールデータのロードで使用する、スレッド数に上限のあるスレッドプールを作成する
+     * @return スレッドプール
+     */
+    protected static ExecutorService createLoadExecutor() {
+        int threads = Math.min(Runtime.getRuntime().availableProcessors(), LOAD_THREADS_MAX);
+        return Executors.newFixedThreadPool(Math.max(threads, 1));
+    }
+
     /**
      * メールデータがロード完了したかどうか。
      * UndineMailerは、保存されているメールデータをバックグラウンドで読み取ってロードするため、
@@ -142,6 +207,14 @@ public class MailManager {
         return isLoaded;
     }
 
+    /**
+     * 統合宛先の作成に使用する、RecipientResolverを返す
+     * @return RecipientResolver
+     */
+    public RecipientResolver getRecipientResolver() {
+        return recipientResolver;
+    }
+
     /**
      * 指定されたインデクスのメールを取得する
      * @param index インデクス
@@ -150,12 +223,7 @@ public class MailManager {
     public MailData getMail(int index) {
 
         if ( !isLoaded ) return null;
-        for ( MailData m : mails ) {
-            if ( m.getIndex() == index ) {
-                return m;
-            }
-        }
-        return null;
+        return mailsByIndex.get(index);
     }
 
     /**
@@ -220,24 +288,157 @@ public class MailManager {
         }
 
         // 統合宛先を設定する。
-        ArrayList<MailSender> to_total = new ArrayList<MailSender>();
-        for ( MailSender t : mail.getTo() ) {
-            if ( !to_total.contains(t) ) {
-                to_total.add(t);
+        mail.setToTotal(new ArrayList<MailSender>(recipientResolver.resolve(mail)));
+
+        // インデクスを設定する
+        mail.setIndex(nextIndex);
+        nextIndex++;
+
+        prepareNewMail(mail);
+
+        // 保存する
+        mails.add(mail);
+        mailsByIndex.put(mail.getIndex(), mail);
+        mailIndex.add(mail);
+        saveMail(mail);
+
+        // 宛先の人がログイン中なら知らせる
+        notifyNewMail(mail);
+
+        // 送った時刻を、メタデータに記録する
+        long time = System.currentTimeMillis();
+        mail.getFrom().setStringMetadata(SENDTIME_METAKEY, time + "");
+    }
+
+    /**
+     * 指定されたメールを、宛先それぞれに1通ずつ複製して送信する。
+     * 複製と保存は数tickに分けて少しずつ行い、進捗と結果を送り主に知らせる。
+     * @param mail 複製元のメール
+     * @param recipients 宛先
+     * @return 送信処理、ロードが完了していないために送信できない場合はnull
+     * @see MailFanout
+     */
+    public MailFanout sendNewMailToEach(MailData mail, Collection<MailSender> recipients) {
+
+        // ロードが完了していないうちは、メールを送信できないようにする
+        if ( !isLoaded ) {
+            UndineMailer.getInstance().getLogger().warning(
+                    "Because mailer has not yet been initialized, mailer dropped new mail.");
+            UndineMailer.getInstance().getLogger().warning(mail.getInboxSummary());
+            return null;
+        }
+
+        MailFanout fanout = new MailFanout(this, mail, recipients);
+        fanouts.add(fanout);
+        fanout.start();
+
+        // 送った時刻を、メタデータに記録する
+        long time = System.currentTimeMillis();
+        mail.getFrom().setStringMetadata(SENDTIME_METAKEY, time + "");
+
+        return fanout;
+    }
+
+    /**
+     * 送信が終わった複製の送信処理を、送信中の一覧から外す
+     * @param fanout 送信処理
+     */
+    protected void removeFanout(MailFanout fanout) {
+        fanouts.remove(fanout);
+    }
+
+    /**
+     * 送信中の複製の送信処理を片付ける。プラグインが停止されるときに、保存先を閉じる前に呼び出す。
+     * ロードが完了している場合は、残りの分をその場で全て送信する。
+     * 完了していない場合は、残りの宛先をfanouts.ymlに保存して、次回のロード後に再開する。
+     */
+    protected void storeFanouts() {
+
+        if ( fanouts.isEmpty() ) return;
+
+        if ( isLoaded ) {
+            for ( MailFanout fanout : fanouts ) {
+                fanout.drain();
             }
+            fanouts.clear();
+            return;
         }
-        for ( GroupData group : mail.getToGroupsConv() ) {
-            for ( MailSender t : group.getMembers() ) {
-                if ( !to_total.contains(t) ) {
-                    to_total.add(t);
-                }
+
+        YamlConfiguration config = new YamlConfiguration();
+        for ( int i=0; i<fanouts.size(); i++ ) {
+            fanouts.get(i).saveToConfigSection(config.createSection(i + ""));
+        }
+        fanouts.clear();
+
+        try {
+            config.save(getFanoutFile());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * fanouts.ymlから、前回の停止時に送信しきれなかった複製の送信を再開する
+     */
+    private void restoreFanouts() {
+
+        File file = getFanoutFile();
+        if ( !file.exists() || !isLoaded ) return;
+
+        YamlConfiguration config = YamlConfiguration.loadConfiguration(file);
+        file.delete();
+
+        for ( String key : config.getKeys(false) ) {
+            ConfigurationSection section = config.getConfigurationSection(key);
+            if ( section == null ) continue;
+            MailFanout fanout = MailFanout.loadFromConfigSection(this, section);
+            if ( fanout != null && fanout.getTotal() > 0 ) {
+                fanouts.add(fanout);
+                fanout.start();
             }
         }
-        mail.setToTotal(to_total);
+    }
 
-        // インデクスを設定する
-        mail.setIndex(nextIndex);
-        nextIndex++;
+    // 送信しきれなかった複製の送信を保存するファイル
+    private File getFanoutFile() {
+        return new File(parent.getDataFolder(), "fanouts.yml");
+    }
+
+    /**
+     * 指定された数のインデクスを、まとめて予約する
+     * @param count 数
+     * @return 予約したインデクスの先頭
+     */
+    protected int reserveIndexes(int count) {
+        int first = nextIndex;
+        nextIndex += count;
+        return first;
+    }
+
+    /**
+     * インデクスを設定済みの送信メールを、まとめてメールリストに追加して保存し、宛先の人に知らせる。
+     * 書き込みに失敗した場合は、保存キューが成功するまで再試行する。
+     * @param sent 送信メール
+     * @return 保存先への書き込みが終わったら完了するCompletableFuture
+     */
+    protected CompletableFuture<Void> addSentMails(List<MailData> sent) {
+        for ( MailData mail : sent ) {
+            mails.add(mail);
+            mailsByIndex.put(mail.getIndex(), mail);
+            mailIndex.add(mail);
+        }
+        CompletableFuture<Void> result = storage.saveAllAndWait(sent);
+        for ( MailData mail : sent ) {
+            notifyNewMail(mail);
+        }
+        return result;
+    }
+
+    /**
+     * 送信するメールの、送信時間、送信地点、着払い設定などを整える
+     * @param mail メール
+     */
+    protected void prepareNewMail(MailData mail) {
 
         // 送信時間を設定する
         mail.setDate(new Date());
@@ -268,35 +469,58 @@ public class MailManager {
         if ( !parent.getUndineConfig().isEnableCODItem() ) {
             mail.setCostItem(null);
         }
+    }
 
-        // 保存する
-        mails.add(mail);
-        saveMail(mail);
+    /**
+     * 送信したメールの宛先の人がログイン中なら知らせる。
+     * 通知の内容は全員同じなので、最初に1度だけ作成して使い回す。
+     * @param mail メール
+     */
+    private void notifyNewMail(MailData mail) {
 
-        // 宛先の人がログイン中なら知らせる
-        String msg = Messages.get("InformationYouGotMail",
+        final String msg = Messages.get("InformationYouGotMail",
                 "%from", mail.getFrom().getName());
+        final MessageComponent line = makeMailLine(
+                Messages.get("ListVerticalParts"), ChatColor.GOLD + mail.getInboxSummary(), mail);
 
         if ( mail.isAllMail() ) {
-            for ( Player player : Utility.getOnlinePlayers() ) {
-                player.sendMessage(msg);
-                String pre = Messages.get("ListVerticalParts");
-                sendMailLine(MailSender.getMailSender(player),
-                        pre, ChatColor.GOLD + mail.getInboxSummary(), mail);
+            // 全体メールは、ログイン中のプレイヤーに直接送る（プレイヤーごとのMailSenderは作らない）
+            final ArrayList<Player> players = Utility.getOnlinePlayers();
+            final int perTick = parent.getUndineConfig().getBroadcastNotificationPerTick();
+            if ( perTick <= 0 || players.size() <= perTick ) {
+                for ( Player player : players ) {
+                    player.sendMessage(msg);
+                    line.send(player);
+                }
+                return;
             }
+
+            // 人数が多い場合は、数tickに分けて送る
+            new BukkitRunnable() {
+                private int position = 0;
+                public void run() {
+                    int end = Math.min(position + perTick, players.size());
+                    for ( ; position < end; position++ ) {
+                        Player player = players.get(position);
+                        if ( player.isOnline() ) {
+                            player.sendMessage(msg);
+                            line.send(player);
+                        }
+                    }
+                    if ( position >= players.size() ) {
+                        cancel();
+                    }
+                }
+            }.runTaskTimer(parent, 0, 1);
+
         } else {
             for ( MailSender to : mail.getToTotal() ) {
                 if ( to.isOnline() ) {
                     to.sendMessage(msg);
-                    String pre = Messages.get("ListVerticalParts");
-                    sendMailLine(to, pre, ChatColor.GOLD + mail.getInboxSummary(), mail);
+                    sendMessageComponent(line, to);
                 }
             }
         }
-
-        // 送った時刻を、メタデータに記録する
-        long time = System.currentTimeMillis();
-        mail.getFrom().setStringMetadata(SENDTIME_METAKEY, time + "");
     }
 
     /**
@@ -310,18 +534,7 @@ public class MailManager {
             return null;
         }
 
-        ArrayList<MailData> box = new ArrayList<MailData>();
-        for ( MailData mail : mails ) {
-            if ( mail.isAllMail()
-                    || (mail.getToTotal() != null && mail.getToTotal().contains(sender))
-                    || mail.getTo().contains(sender) ) {
-                if ( !mail.isSetTrash(sender) ) {
-                    box.add(mail);
-                }
-            }
-        }
-        sortNewer(box);
-        return box;
+        return getMailBoxMails(sender, MailBoxType.INBOX);
     }
 
     /**
@@ -335,18 +548,38 @@ public class MailManager {
             return null;
         }
 
-        ArrayList<MailData> box = new ArrayList<MailData>();
-        for ( MailData mail : mails ) {
-            if ( mail.isAllMail()
-                    || (mail.getToTotal() != null && mail.getToTotal().contains(sender))
-                    || mail.getTo().contains(sender) ) {
-                if ( !mail.isRead(sender) && !mail.isSetTrash(sender) ) {
-                    box.add(mail);
-                }
-            }
+        return getMailBoxMails(sender, MailBoxType.UNREAD);
+    }
+
+    /**
+     * 受信したメールで、未読でゴミ箱に入っていないものの件数を取得する。
+     * 件数はメールの送信、既読フラグとゴミ箱フラグの更新、削除のたびに更新されているので、
+     * メールを走査せずに取得できる（全体メールだけは、その都度確認する）。
+     * @param sender 取得する対象
+     * @return 件数、ロード中の場合は-1
+     */
+    public int getUnreadCount(MailSender sender) {
+
+        if ( !isLoaded ) {
+            return -1;
         }
-        sortNewer(box);
-        return box;
+
+        return mailIndex.getUnreadCount(sender);
+    }
+
+    /**
+     * 受信したメールで、未読でゴミ箱に入っていないものを、新しい順に指定された件数まで取得する
+     * @param sender 取得する対象
+     * @param max 最大の件数
+     * @return メールのリスト、ロード中の場合はnull
+     */
+    public ArrayList<MailData> getRecentUnreadMails(MailSender sender, int max) {
+
+        if ( !isLoaded ) {
+            return null;
+        }
+
+        return mailIndex.getRecentUnreadMails(sender, max);
     }
 
     /**
@@ -360,14 +593,7 @@ public class MailManager {
             return null;
         }
 
-        ArrayList<MailData> box = new ArrayList<MailData>();
-        for ( MailData mail : mails ) {
-            if ( mail.getFrom().equals(sender) && !mail.isSetTrash(sender) ) {
-                box.add(mail);
-            }
-        }
-        sortNewer(box);
-        return box;
+        return getMailBoxMails(sender, MailBoxType.OUTBOX);
     }
 
     /**
@@ -382,13 +608,11 @@ public class MailManager {
         }
 
         ArrayList<MailData> box = new ArrayList<MailData>();
-        for ( MailData mail : mails ) {
-            if ( mail.isRelatedWith(sender) && mail.isRead(sender)
-                    && !mail.isSetTrash(sender) ) {
+        for ( MailData mail : mailIndex.getRelatedMails(sender) ) {
+            if ( mail.isRead(sender) && !mail.isSetTrash(sender) ) {
                 box.add(mail);
             }
         }
-        sortNewer(box);
         return box;
     }
 
@@ -403,16 +627,68 @@ public class MailManager {
             return null;
         }
 
-        ArrayList<MailData> box = new ArrayList<MailData>();
-        for ( MailData mail : mails ) {
-            if ( mail.isRelatedWith(sender) && mail.isSetTrash(sender) ) {
-                box.add(mail);
+        return getMailBoxMails(sender, MailBoxType.TRASH);
+    }
+
+    /**
+     * メールボックスの全てのメールを、新しい順のリストで取得する
+     * @param sender メールボックスの持ち主
+     * @param type メールボックスの種類
+     * @return メールのリスト
+     */
+    private ArrayList<MailData> getMailBoxMails(final MailSender sender, final MailBoxType type) {
+        final ArrayList<MailData> box = new ArrayList<MailData>();
+        mailIndex.forEach(sender, type, new MailIndex.MailVisitor() {
+            public boolean visit(MailData mail) {
+                if ( type.accept(mail, sender) ) {
+                    box.add(mail);
+                }
+                return true;
             }
-        }
-        sortNewer(box);
+        });
         return box;
     }
 
+    /**
+     * メールボックスの指定されたページを取得する。
+     * メールボックス全体のリストは作成せず、インデクスを新しい順にたどって、
+     * 指定されたページのメールだけを取り出す。
+     * @param sender メールボックスの持ち主
+     * @param type メールボックスの種類
+     * @param page ページ（1から始まる）
+     * @return ページ、ロード中の場合はnull
+     */
+    public MailBoxPage getMailBoxPage(MailSender sender, MailBoxType type, int page) {
+
+        if ( !isLoaded ) {
+            return null;
+        }
+
+        MailBoxPage result = new MailBoxPage(sender, type, page, PAGE_SIZE, 0);
+        mailIndex.forEach(sender, type, result);
+        return result;
+    }
+
+    /**
+     * メールボックスの中での、指定されたメールの位置と、最初、前、次、最後のメールを取得する。
+     * メールボックス全体のリストは作成しない。
+     * @param sender メールボックスの持ち主
+     * @param type メールボックスの種類
+     * @param index メールのインデクス
+     * @return 位置の情報、ロード中の場合はnull
+     * @see MailBoxPage#getPosition()
+     */
+    public MailBoxPage getMailBoxCursor(MailSender sender, MailBoxType type, int index) {
+
+        if ( !isLoaded ) {
+            return null;
+        }
+
+        MailBoxPage result = new MailBoxPage(sender, type, 0, PAGE_SIZE, index);
+        mailIndex.forEach(sender, type, result);
+        return result;
+    }
+
     /**
      * 指定されたメールを開いて確認する
      * @param sender 確認する対象
@@ -431,7 +707,7 @@ public class MailManager {
         // 添付ボックスがからっぽになっているか、キャンセルされているなら、既読を付ける
         if ( mail.getAttachments().size() == 0 || mail.isAttachmentsCancelled() ) {
             mail.setReadFlag(sender);
-            saveMail(mail);
+            updateReadFlags(mail);
         }
     }
 
@@ -446,10 +722,39 @@ public class MailManager {
             return;
         }
 
-        String filename = String.format("%1$08d.yml", mail.getIndex());
-        File folder = parent.getMailFolder();
-        File file = new File(folder, filename);
-        mail.save(file);
+        // 添付アイテムの受け取り、キャンセル、拒否は保存を伴うので、ここで添付ボックスの個数を更新する
+        mailIndex.updateAttachments(mail);
+        storage.save(mail);
+    }
+
+    /**
+     * 指定されたメールデータの既読フラグを保存する
+     * @param mail メールデータ
+     */
+    public void updateReadFlags(MailData mail) {
+
+        // 編集中で未送信のメールは保存できません。
+        if ( mail.getIndex() == 0 ) {
+            return;
+        }
+
+        mailIndex.updateFlags(mail);
+        storage.updateReadFlags(mail);
+    }
+
+    /**
+     * 指定されたメールデータのゴミ箱フラグを保存する
+     * @param mail メールデータ
+     */
+    public void updateTrashFlags(MailData mail) {
+
+        // 編集中で未送信のメールは保存できません。
+        if ( mail.getIndex() == 0 ) {
+            return;
+        }
+
+        mailIndex.updateFlags(mail);
+        storage.updateTrashFlags(mail);
     }
 
     /**
@@ -459,18 +764,14 @@ public class MailManager {
     public void deleteMail(int index) {
 
         if ( isLoaded ) {
-            MailData mail = getMail(index);
+            MailData mail = mailsByIndex.remove(index);
             if ( mail != null ) {
                 mails.remove(mail);
+                mailIndex.remove(mail);
             }
         }
 
-        String filename = String.format("%1$08d.yml", index);
-        File folder = parent.getMailFolder();
-        File file = new File(folder, filename);
-        if ( file.exists() ) {
-            file.delete();
-        }
+        storage.delete(index);
     }
 
     /**
@@ -482,20 +783,30 @@ public class MailManager {
             return;
         }
 
-        ArrayList<Integer> queue = new ArrayList<Integer>();
+        HashSet<MailData> queue = new HashSet<MailData>();
         int period = parent.getUndineConfig().getMailStorageTermDays();
         Date now = new Date();
 
         for ( MailData mail : mails ) {
             int days = (int)((now.getTime() - mail.getDate().getTime()) / (1000*60*60*24));
             if ( days > period ) {
-                queue.add(mail.getIndex());
+                queue.add(mail);
             }
         }
 
-        for ( int index : queue ) {
-            deleteMail(index);
+        if ( queue.size() == 0 ) {
+            return;
+        }
+
+        // リストからはまとめて削除し、削除1件ごとにリストを走査しないようにする
+        mails.removeAll(queue);
+        ArrayList<Integer> indexes = new ArrayList<Integer>();
+        for ( MailData mail : queue ) {
+            mailsByIndex.remove(mail.getIndex());
+            mailIndex.remove(mail);
+            indexes.add(mail.getIndex());
         }
+        storage.deleteAll(indexes);
     }
 
     /**
@@ -555,32 +866,17 @@ public class MailManager {
         String parts = Messages.get("ListHorizontalParts");
         String pre = Messages.get("ListVerticalParts");
 
-        ArrayList<MailData> mails = getInboxMails(sender);
-        int max = (int)((mails.size() - 1) / PAGE_SIZE) + 1;
-        int unread = 0;
-        for ( MailData m : mails ) {
-            if ( !m.isRead(sender) ) {
-                unread++;
-            }
-        }
+        MailBoxPage box = getMailBoxPage(sender, MailBoxType.INBOX, page);
 
-        String title = Messages.get("InboxTitle", "%unread", unread);
+        String title = Messages.get("InboxTitle", "%unread", box.getUnread());
         sender.sendMessage(parts + parts + " " + title + " " + parts + parts);
 
-        for ( int i=0; i<10; i++ ) {
-
-            int index = (page - 1) * 10 + i;
-            if ( index < 0 || mails.size() <= index ) {
-                continue;
-            }
-
-            MailData mail = mails.get(index);
+        for ( MailData mail : box.getMails() ) {
             ChatColor color = mail.isRead(sender) ? ChatColor.GRAY : ChatColor.GOLD;
-
             sendMailLine(sender, pre, color + mail.getInboxSummary(), mail);
         }
 
-        sendPager(sender, UndineCommand.COMMAND + " inbox", page, max);
+        sendPager(sender, UndineCommand.COMMAND + " inbox", page, box.getMaxPage());
 
         // 表示した人にメタデータを設定する
         sender.setStringMetadata(MAILLIST_METAKEY, "inbox");
@@ -606,26 +902,16 @@ public class MailManager {
         String parts = Messages.get("ListHorizontalParts");
         String pre = Messages.get("ListVerticalParts");
 
-        ArrayList<MailData> mails = getOutboxMails(sender);
-        int max = (int)((mails.size() - 1) / PAGE_SIZE) + 1;
+        MailBoxPage box = getMailBoxPage(sender, MailBoxType.OUTBOX, page);
 
         String title = Messages.get("OutboxTitle");
         sender.sendMessage(parts + parts + " " + title + " " + parts + parts);
 
-        for ( int i=0; i<PAGE_SIZE; i++ ) {
-
-            int index = (page - 1) * PAGE_SIZE + i;
-            if ( index < 0 || mails.size() <= index ) {
-                continue;
-            }
-
-            MailData mail = mails.get(index);
-            ChatColor color = ChatColor.GRAY;
-
-            sendMailLine(sender, pre, color + mail.getOutboxSummary(), mail);
+        for ( MailData mail : box.getMails() ) {
+            sendMailLine(sender, pre, ChatColor.GRAY + mail.getOutboxSummary(), mail);
         }
 
-        sendPager(sender, UndineCommand.COMMAND + " outbox", page, max);
+        sendPager(sender, UndineCommand.COMMAND + " outbox", page, box.getMaxPage());
 
         // 表示した人にメタデータを設定する
         sender.setStringMetadata(MAILLIST_METAKEY, "outbox");
@@ -642,23 +928,19 @@ public class MailManager {
             return;
         }
 
-        List<MailData> unread = getUnreadMails(sender);
+        int count = getUnreadCount(sender);
 
-        if ( unread.size() == 0 ) {
+        if ( count <= 0 ) {
             return;
         }
 
         // 未読のメールを表示する
         sender.sendMessage(Messages.get(
-                "InformationPlayerJoin", "%unread", unread.size()));
+                "InformationPlayerJoin", "%unread", count));
 
         // 最大5件まで、メールのサマリーを表示する
         String pre = Messages.get("ListVerticalParts");
-        for ( int i=0; i<5; i++ ) {
-            if ( i >= unread.size() ) {
-                break;
-            }
-            MailData mail = unread.get(i);
+        for ( MailData mail : getRecentUnreadMails(sender, 5) ) {
             sendMailLine(sender, pre, ChatColor.GOLD + mail.getInboxSummary(), mail);
         }
 
@@ -686,26 +968,16 @@ public class MailManager {
         String parts = Messages.get("ListHorizontalParts");
         String pre = Messages.get("ListVerticalParts");
 
-        ArrayList<MailData> mails = getTrashboxMails(sender);
-        int max = (int)((mails.size() - 1) / PAGE_SIZE) + 1;
+        MailBoxPage box = getMailBoxPage(sender, MailBoxType.TRASH, page);
 
         String title = Messages.get("TrashboxTitle");
         sender.sendMessage(parts + parts + " " + title + " " + parts + parts);
 
-        for ( int i=0; i<PAGE_SIZE; i++ ) {
-
-            int index = (page - 1) * PAGE_SIZE + i;
-            if ( index < 0 || mails.size() <= index ) {
-                continue;
-            }
-
-            MailData mail = mails.get(index);
-            ChatColor color = ChatColor.GRAY;
-
-            sendMailLine(sender, pre, color + mail.getInboxSummary(), mail);
+        for ( MailData mail : box.getMails() ) {
+            sendMailLine(sender, pre, ChatColor.GRAY + mail.getInboxSummary(), mail);
         }
 
-        sendPager(sender, UndineCommand.COMMAND + " trash", page, max);
+        sendPager(sender, UndineCommand.COMMAND + " trash", page, box.getMaxPage());
 
         // 表示した人にメタデータを設定する
         sender.setStringMetadata(MAILLIST_METAKEY, "trash");
@@ -730,6 +1002,61 @@ public class MailManager {
         }
     }
 
+    /**
+     * メールフォルダ内のメールファイルを、全てコンフィグで指定されている保存形式に変換し、
+     * 保存先をその形式のものに切り替えてから、メールデータを再読込する。処理は非同期で行われる。
+     * @param sender 変換が完了した時に、通知する先。通知が不要なら、nullでよい。
+     */
+    public void convertMailFiles(final CommandSender sender) {
+
+        final StorageType type = parent.getUndineConfig().getStorageType();
+        final MailStorage next = createStorage();
+
+        new BukkitRunnable() {
+            public void run() {
+
+                // 書き込みタスクを止め、保存されていないメールデータを全て書き込んで今の保存先を閉じてから変換し、
+                // 変換後の形式を読み書きする保存先に切り替える
+                final int[] count = new int[1];
+                storage.replaceStorage(new Runnable() {
+                    public void run() {
+                        count[0] = BinaryMailStorage.convertFolder(
+                                parent.getMailFolder(), type == StorageType.BINARY);
+                    }
+                }, next);
+
+                if ( sender != null ) {
+                    sender.sendMessage(Messages.get("InformationConverted",
+                            new String[]{"%num", "%type"},
+                            new String[]{count[0] + "", type.toString().toLowerCase()}));
+                }
+
+                reload(sender);
+            }
+        }.runTaskAsynchronously(UndineMailer.getInstance());
+    }
+
+    /**
+     * コンフィグで指定されている保存形式の、メールデータの保存先を作成する
+     * @return 保存先
+     */
+    private MailStorage createStorage() {
+        if ( parent.getDatabase() != null ) {
+            return new SqliteMailStorage(parent.getDatabase());
+        } else if ( parent.getUndineConfig().getStorageType() == StorageType.BINARY ) {
+            return new BinaryMailStorage(parent.getMailFolder());
+        } else {
+            return new YamlMailStorage(parent.getMailFolder());
+        }
+    }
+
+    /**
+     * 保存されていないメールデータを全て書き込んでから、メールデータの保存先を閉じる
+     */
+    protected void closeStorage() {
+        storage.close();
+    }
+
     /**
      * editmails.ymlから編集中メールを復帰する
      */
@@ -765,13 +1092,7 @@ public class MailManager {
             return Integer.MAX_VALUE;
         }
 
-        int count = 0;
-        for ( MailData mail : mails ) {
-            if ( mail.getFrom().equals(sender) && mail.getAttachments().size() > 0 ) {
-                count++;
-            }
-        }
-        return count;
+        return mailIndex.getAttachBoxCount(sender);
     }
 
     /**
@@ -799,7 +1120,7 @@ public class MailManager {
         }
 
         String num = mail.isEditmode() ? Messages.get("Editmode") : mail.getIndex() + "";
-        String fdate = mail.isEditmode() ? null : getFormattedDate(mail.getDate());
+        String fdate = mail.isEditmode() ? null : Messages.formatDate(mail.getDate());
 
         String parts = Messages.get("DetailHorizontalParts");
         String pre = Messages.get("DetailVerticalParts");
@@ -1319,23 +1640,11 @@ public class MailManager {
             return;
         }
 
-        // リストの取得
-        ArrayList<MailData> list;
-        if ( meta.equals("inbox") ) {
-            list = UndineMailer.getInstance().getMailManager().getInboxMails(sender);
-        } else if ( meta.equals("outbox") ) {
-            list = UndineMailer.getInstance().getMailManager().getOutboxMails(sender);
-        } else if ( meta.equals("trash") ) {
-            list = UndineMailer.getInstance().getMailManager().getTrashboxMails(sender);
-        } else {
-            list = UndineMailer.getInstance().getMailManager().getUnreadMails(sender);
-        }
-
-        // ページ番号の取得
-        int page = getIndexOfMailList(index, list);
+        // リストの中での位置と、前後のメールの取得
+        MailBoxPage cursor = getMailBoxCursor(sender, MailBoxType.getFromString(meta, null), index);
 
         // 該当のメールがリストに含まれていないなら、ページャーを表示しない
-        if ( page == -1 ) {
+        if ( cursor == null || cursor.getPosition() == -1 ) {
             sender.sendMessage(Messages.get("DetailLastLine"));
             return;
         }
@@ -1372,9 +1681,9 @@ public class MailManager {
             msg.addText(" ");
         }
 
-        if ( page > 0 ) {
-            int first = list.get(0).getIndex();
-            int prev = list.get(page - 1).getIndex();
+        if ( cursor.getPrevious() != null ) {
+            int first = cursor.getFirst().getIndex();
+            int prev = cursor.getPrevious().getIndex();
 
             MessageParts firstButton = new MessageParts(
                     firstLabel, ChatColor.AQUA);
@@ -1397,11 +1706,11 @@ public class MailManager {
 
         }
 
-        msg.addText(" (" + (page + 1) + "/" + list.size() + ") ");
+        msg.addText(" (" + (cursor.getPosition() + 1) + "/" + cursor.getTotal() + ") ");
 
-        if ( page < (list.size() - 1) ) {
-            int next = list.get(page + 1).getIndex();
-            int last = list.get(list.size() - 1).getIndex();
+        if ( cursor.getNext() != null ) {
+            int next = cursor.getNext().getIndex();
+            int last = cursor.getLast().getIndex();
 
             MessageParts nextButton = new MessageParts(
                     nextLabel, ChatColor.AQUA);
@@ -1428,21 +1737,6 @@ public class MailManager {
         sendMessageComponent(msg, sender);
     }
 
-    /**
-     * 指定されたインデクスのメールが、リストの何番目にあるかを返す
-     * @param index インデクス
-     * @param list リスト
-     * @return 何番目にあるか。含まれていないなら-1が返されることに注意
-     */
-    private int getIndexOfMailList(int index, ArrayList<MailData> list) {
-        for ( int i=0; i<list.size(); i++ ) {
-            if ( list.get(i).getIndex() == index ) {
-                return i;
-            }
-        }
-        return -1;
-    }
-
     /**
      * アイテムを簡単な文字列表現にして返す
      * @param item アイテム
@@ -1459,18 +1753,6 @@ public class MailManager {
         return desc + " " + item.getAmount();
     }
 
-    /**
-     * メールデータのリストを、新しいメール順に並び替えする
-     * @param list リスト
-     */
-    private static void sortNewer(List<MailData> list) {
-        Collections.sort(list, new Comparator<MailData>() {
-            public int compare(MailData o1, MailData o2) {
-                return o2.getDate().compareTo(o1.getDate());
-            }
-        });
-    }
-
     /**
      * メールサマリー表示を対象プレイヤーに表示する
      * @param sender 表示対象
@@ -1480,6 +1762,17 @@ public class MailManager {
      */
     private void sendMailLine(
             MailSender sender, String pre, String summary, MailData mail) {
+        sendMessageComponent(makeMailLine(pre, summary, mail), sender);
+    }
+
+    /**
+     * メールサマリー表示を作成する
+     * @param pre プレフィックス
+     * @param summary サマリーの文字列
+     * @param mail メールデータ
+     * @return メールサマリー表示
+     */
+    private MessageComponent makeMailLine(String pre, String summary, MailData mail) {
 
         MessageComponent msg = new MessageComponent();
 
@@ -1497,7 +1790,7 @@ public class MailManager {
 
         msg.addText(summary);
 
-        sendMessageComponent(msg, sender);
+        return msg;
     }
 
     /**
@@ -1569,15 +1862,6 @@ public class MailManager {
         sendMessageComponent(msg, sender);
     }
 
-    /**
-     * 言語リソース設定に従ってフォーマットされた日時の文字列を取得します。
-     * @param date フォーマットする日時
-     * @return フォーマットされた文字列
-     */
-    private String getFormattedDate(Date date) {
-        return new SimpleDateFormat(Messages.get("DateFormat")).format(date);
-    }
-
     /**
      * 宛先のリストを、コンマを使ってつなげる
      * @param mail メール
@@ -0,0 +1,350 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2020
+ */
+package org.bitbucket.ucchy.undine;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.concurrent.CompletableFuture;
+
+import org.bukkit.scheduler.BukkitRunnable;
+import org.bukkit.scheduler.BukkitTask;
+
+/**
+ * メールデータの保存要求を溜めておき、バックグラウンドでまとめて保存先に書き込む保存キュー。
+ * 同じメールに対する保存要求は、次の書き込みまでの間に1回にまとめられる。
+ * <p>
+ * 保存要求を受け付けたときに、呼び出し元のスレッド（通常はメインスレッド）でメールの複製を作成しておき、
+ * バックグラウンドではその複製だけを書き込む。書き込みに失敗した要求は破棄せずに、次回の書き込みで再試行する。
+ * </p>
+ * @author ucchy
+ */
+public class MailSaveQueue implements MailStorage {
+
+    /** 書き込みの間隔（tick）。保存要求から書き込みまでの最大の遅延になる。 */
+    private static final long FLUSH_INTERVAL_TICKS = 20;
+
+    private static final int TYPE_SAVE = 1;
+    private static final int TYPE_READ_FLAGS = 2;
+    private static final int TYPE_TRASH_FLAGS = 4;
+
+    private volatile MailStorage storage;
+    private BukkitTask task;
+
+    private LinkedHashMap<Integer, MailData> dirtyMails;
+    private HashMap<Integer, Integer> dirtyTypes;
+    private LinkedHashSet<Integer> deleted;
+    // 次の書き込みが終わったら完了させる、保存要求の結果
+    private ArrayList<CompletableFuture<Void>> callbacks;
+
+    // 書き込み処理が同時に実行されないようにするためのロック
+    private final Object flushLock = new Object();
+
+    /**
+     * コンストラクタ
+     * @param storage 実際の保存先
+     */
+    public MailSaveQueue(MailStorage storage) {
+        this.storage = storage;
+        this.dirtyMails = new LinkedHashMap<Integer, MailData>();
+        this.dirtyTypes = new HashMap<Integer, Integer>();
+        this.deleted = new LinkedHashSet<Integer>();
+        this.callbacks = new ArrayList<CompletableFuture<Void>>();
+    }
+
+    /**
+     * バックグラウンドでの書き込みタスクを開始する
+     */
+    protected void startTask() {
+        task = new BukkitRunnable() {
+            public void run() {
+                flush();
+            }
+        }.runTaskTimerAsynchronously(
+                UndineMailer.getInstance(), FLUSH_INTERVAL_TICKS, FLUSH_INTERVAL_TICKS);
+    }
+
+    /**
+     * 指定されたメールデータの保存を要求する
+     * @param mail メールデータ
+     * @see org.bitbucket.ucchy.undine.MailStorage#save(org.bitbucket.ucchy.undine.MailData)
+     */
+    @Override
+    public void save(MailData mail) {
+        enqueue(mail, TYPE_SAVE);
+    }
+
+    /**
+     * 指定されたメールデータの保存をまとめて要求する
+     * @param mails メールデータ
+     * @see org.bitbucket.ucchy.undine.MailStorage#saveAll(java.util.Collection)
+     */
+    @Override
+    public void saveAll(Collection<MailData> mails) {
+        for ( MailData mail : mails ) {
+            enqueue(mail, TYPE_SAVE);
+        }
+    }
+
+    /**
+     * 指定されたメールデータの保存をまとめて要求し、書き込みが終わったら完了するCompletableFutureを返す。
+     * 書き込みに失敗した場合は、成功するまで再試行してから完了する。
+     * @param mails メールデータ
+     * @return 書き込みの結果
+     */
+    protected CompletableFuture<Void> saveAllAndWait(Collection<MailData> mails) {
+        CompletableFuture<Void> future = new CompletableFuture<Void>();
+        synchronized (this) {
+            for ( MailData mail : mails ) {
+                enqueue(mail, TYPE_SAVE);
+            }
+            callbacks.add(future);
+        }
+        return future;
+    }
+
+    /**
+     * 指定されたインデクスのメールデータの削除を要求する。
+     * まだ書き込まれていない保存要求は破棄される。
+     * @param index インデクス
+     * @see org.bitbucket.ucchy.undine.MailStorage#delete(int)
+     */
+    @Override
+    public synchronized void delete(int index) {
+        dirtyMails.remove(index);
+        dirtyTypes.remove(index);
+        deleted.add(index);
+    }
+
+    /**
+     * 指定されたインデクスのメールデータの削除をまとめて要求する
+     * @param indexes インデクス
+     * @see org.bitbucket.ucchy.undine.MailStorage#deleteAll(java.util.Collection)
+     */
+    @Override
+    public synchronized void deleteAll(Collection<Integer> indexes) {
+        for ( int index : indexes ) {
+            delete(index);
+        }
+    }
+
+    /**
+     * 溜まっている要求を全て書き込んでから、保存されている全てのメールデータをロードする
+     * @param handler ハンドラ
+     * @see org.bitbucket.ucchy.undine.MailStorage#load(org.bitbucket.ucchy.undine.MailStorage.LoadHandler)
+     */
+    @Override
+    public void load(LoadHandler handler) {
+        flush();
+        storage.load(handler);
+    }
+
+    /**
+     * 指定されたメールデータの既読フラグの保存を要求する
+     * @param mail メールデータ
+     * @see org.bitbucket.ucchy.undine.MailStorage#updateReadFlags(org.bitbucket.ucchy.undine.MailData)
+     */
+    @Override
+    public void updateReadFlags(MailData mail) {
+        enqueue(mail, TYPE_READ_FLAGS);
+    }
+
+    /**
+     * 指定されたメールデータのゴミ箱フラグの保存を要求する
+     * @param mail メールデータ
+     * @see org.bitbucket.ucchy.undine.MailStorage#updateTrashFlags(org.bitbucket.ucchy.undine.MailData)
+     */
+    @Override
+    public void updateTrashFlags(MailData mail) {
+        enqueue(mail, TYPE_TRASH_FLAGS);
+    }
+
+    /**
+     * 書き込みタスクを停止し、溜まっている要求を全て書き込んでから、保存先を閉じる
+     * @see org.bitbucket.ucchy.undine.MailStorage#close()
+     */
+    @Override
+    public void close() {
+        if ( task != null ) {
+            task.cancel();
+            task = null;
+        }
+        flush();
+        storage.close();
+    }
+
+    /**
+     * 保存先を切り替える。
+     * 書き込みタスクを止め、溜まっている要求を全て書き込んで今の保存先を閉じてから、
+     * 指定された処理（保存形式の変換など）を実行し、新しい保存先で書き込みタスクを再開する。
+     * 処理の実行中に受け付けた要求は、新しい保存先に書き込まれる。
+     * @param conversion 保存先を閉じている間に実行する処理
+     * @param next 新しい保存先
+     */
+    protected void replaceStorage(Runnable conversion, MailStorage next) {
+
+        synchronized (flushLock) {
+            boolean isRunning = (task != null);
+            if ( isRunning ) {
+                task.cancel();
+                task = null;
+            }
+            flush();
+            storage.close();
+            try {
+                conversion.run();
+            } finally {
+                storage = next;
+                if ( isRunning ) {
+                    startTask();
+                }
+            }
+        }
+    }
+
+    /**
+     * 溜まっている要求を、全て保存先に書き込む
+     */
+    protected void flush() {
+
+        synchronized (flushLock) {
+
+            // 溜まっている要求を取り出して、新しい要求は次回の書き込みに回す
+            LinkedHashMap<Integer, MailData> mails;
+            HashMap<Integer, Integer> types;
+            LinkedHashSet<Integer> deletes;
+            ArrayList<CompletableFuture<Void>> waiting;
+            synchronized (this) {
+                if ( dirtyMails.isEmpty() && deleted.isEmpty() && callbacks.isEmpty() ) return;
+                mails = dirtyMails;
+                types = dirtyTypes;
+                deletes = deleted;
+                waiting = callbacks;
+                dirtyMails = new LinkedHashMap<Integer, MailData>();
+                dirtyTypes = new HashMap<Integer, Integer>();
+                deleted = new LinkedHashSet<Integer>();
+                callbacks = new ArrayList<CompletableFuture<Void>>();
+            }
+
+            // 全体の保存が必要なものはまとめて書き込み、フラグだけのものはフラグだけ書き込む
+            ArrayList<MailData> saves = new ArrayList<MailData>();
+            boolean isRetrying = false;
+            for ( MailData mail : mails.values() ) {
+                int type = types.get(mail.getIndex());
+                if ( (type & TYPE_SAVE) != 0 ) {
+                    saves.add(mail);
+                    continue;
+                }
+                try {
+                    if ( (type & TYPE_READ_FLAGS) != 0 ) {
+                        storage.updateReadFlags(mail);
+                    }
+                    if ( (type & TYPE_TRASH_FLAGS) != 0 ) {
+                        storage.updateTrashFlags(mail);
+                    }
+                } catch (RuntimeException e) {
+                    // 書き込みに失敗した。次回の書き込みで再試行する。
+                    e.printStackTrace();
+                    requeue(mail, type, deletes);
+                    isRetrying = true;
+                }
+            }
+
+            if ( saves.size() > 0 ) {
+                try {
+                    storage.saveAll(saves);
+                } catch (RuntimeException e) {
+                    // 書き込みに失敗した。次回の書き込みで再試行する。
+                    e.printStackTrace();
+                    for ( MailData mail : saves ) {
+                        requeue(mail, TYPE_SAVE, deletes);
+                    }
+                    isRetrying = true;
+                }
+            }
+
+            if ( deletes.size() > 0 ) {
+                try {
+                    storage.deleteAll(deletes);
+                } catch (RuntimeException e) {
+                    // 削除に失敗した。次回の書き込みで再試行する。
+                    e.printStackTrace();
+                    deleteAll(deletes);
+                    isRetrying = true;
+                }
+            }
+
+            // 書き込みを待っている要求に、結果を知らせる。再試行する場合は、次回の書き込みまで待たせる。
+            if ( isRetrying ) {
+                synchronized (this) {
+                    callbacks.addAll(waiting);
+                }
+            } else {
+                for ( CompletableFuture<Void> future : waiting ) {
+                    future.complete(null);
+                }
+            }
+        }
+    }
+
+    /**
+     * 要求を追加する。既に要求がある場合は、1つにまとめる。
+     * メールデータは、この時点の状態の複製を保存する。全体の保存ではメール全体を複製するが、
+     * フラグだけの保存では、変更されたフラグだけを複製する。
+     * @param mail メールデータ
+     * @param type 要求の種類
+     */
+    private synchronized void enqueue(MailData mail, int type) {
+        int index = mail.getIndex();
+        if ( deleted.contains(index) ) return;
+        Integer current = dirtyTypes.get(index);
+        dirtyTypes.put(index, current == null ? type : (current | type));
+        MailData queued = dirtyMails.get(index);
+        if ( type == TYPE_SAVE ) {
+            dirtyMails.put(index, mail.snapshot());
+        } else if ( queued == null ) {
+            dirtyMails.put(index, mail.flagSnapshot(
+                    (type & TYPE_READ_FLAGS) != 0, (type & TYPE_TRASH_FLAGS) != 0));
+        } else {
+            queued.copyFlagsFrom(mail,
+                    (type & TYPE_READ_FLAGS) != 0, (type & TYPE_TRASH_FLAGS) != 0);
+        }
+    }
+
+    /**
+     * 書き込めなかった要求を、次回の書き込みのために戻す。
+     * 既に新しい要求がある場合は、新しい方の複製を残して、要求の種類だけをまとめる。
+     * ただし、新しい方がフラグだけの複製の場合は、新しい方に含まれていない内容を、
+     * 書き込めなかった方の複製から補う。
+     * @param snapshot 書き込めなかったメールデータの複製
+     * @param type 要求の種類
+     * @param deletes 今回削除するインデクス
+     */
+    private synchronized void requeue(MailData snapshot, int type, Collection<Integer> deletes) {
+        int index = snapshot.getIndex();
+        if ( deletes.contains(index) || deleted.contains(index) ) return;
+        Integer current = dirtyTypes.get(index);
+        dirtyTypes.put(index, current == null ? type : (current | type));
+        MailData newer = dirtyMails.get(index);
+        if ( newer == null ) {
+            dirtyMails.put(index, snapshot);
+        } else if ( (current & TYPE_SAVE) == 0 ) {
+            if ( (type & TYPE_SAVE) != 0 ) {
+                // 書き込めなかった方がメール全体なので、新しい方のフラグを載せて戻す
+                snapshot.copyFlagsFrom(newer,
+                        (current & TYPE_READ_FLAGS) != 0, (current & TYPE_TRASH_FLAGS) != 0);
+                dirtyMails.put(index, snapshot);
+            } else {
+                // どちらもフラグだけなので、新しい方に無いフラグだけを補う
+                newer.copyFlagsFrom(snapshot,
+                        (type & TYPE_READ_FLAGS) != 0 && (current & TYPE_READ_FLAGS) == 0,
+                        (type & TYPE_TRASH_FLAGS) != 0 && (current & TYPE_TRASH_FLAGS) == 0);
+            }
+        }
+    }
+}
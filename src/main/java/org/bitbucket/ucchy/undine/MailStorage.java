@@ -0,0 +1,82 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2020
+ */
+package org.bitbucket.ucchy.undine;
+
+import java.util.Collection;
+
+/**
+ * メールデータの保存先
+ * @author ucchy
+ */
+public interface MailStorage {
+
+    /**
+     * ロードされたメールデータを受け取るハンドラ
+     * @author ucchy
+     */
+    public interface LoadHandler {
+
+        /**
+         * メールデータが1件ロードされたときに呼び出される
+         * @param mail ロードされたメールデータ
+         */
+        public void onLoad(MailData mail);
+    }
+
+    /**
+     * 指定されたメールデータを保存する
+     * @param mail メールデータ
+     * @throws MailStorageException 書き込みに失敗した場合
+     */
+    public void save(MailData mail);
+
+    /**
+     * 指定されたメールデータをまとめて保存する
+     * @param mails メールデータ
+     * @throws MailStorageException 書き込みに失敗した場合
+     */
+    public void saveAll(Collection<MailData> mails);
+
+    /**
+     * 指定されたインデクスのメールデータを削除する
+     * @param index インデクス
+     * @throws MailStorageException 書き込みに失敗した場合
+     */
+    public void delete(int index);
+
+    /**
+     * 指定されたインデクスのメールデータをまとめて削除する
+     * @param indexes インデクス
+     * @throws MailStorageException 書き込みに失敗した場合
+     */
+    public void deleteAll(Collection<Integer> indexes);
+
+    /**
+     * 保存されている全てのメールデータを、1件ずつロードしてハンドラに渡す
+     * @param handler ハンドラ
+     * @throws MailStorageException 保存先から読み込めなかった場合
+     */
+    public void load(LoadHandler handler);
+
+    /**
+     * 指定されたメールデータの既読フラグを保存する
+     * @param mail メールデータ
+     * @throws MailStorageException 書き込みに失敗した場合
+     */
+    public void updateReadFlags(MailData mail);
+
+    /**
+     * 指定されたメールデータのゴミ箱フラグを保存する
+     * @param mail メールデータ
+     * @throws MailStorageException 書き込みに失敗した場合
+     */
+    public void updateTrashFlags(MailData mail);
+
+    /**
+     * 保存先を閉じる
+     */
+    public void close();
+}
@@ -0,0 +1,25 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2020
+ */
+package org.bitbucket.ucchy.undine;
+
+/**
+ * メールデータの保存先への書き込みに失敗したときに投げられる例外
+ * @author ucchy
+ * @see MailStorage
+ */
+public class MailStorageException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * コンストラクタ
+     * @param message メッセージ
+     * @param cause 原因となった例外
+     */
+    public MailStorageException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2020
+ */
+package org.bitbucket.ucchy.undine;
+
+import java.util.ArrayList;
+
+/**
+ * キーワード（%name など）の位置を、あらかじめ解析しておいたメッセージ。
+ * <p>
+ * メッセージを、固定の文字列とキーワードに分けて保持しておき、
+ * キーワードの置き換えは、先頭から1回たどるだけで行う。
+ * キーワードは、"%" の後に英数字か "_" が1文字以上続くものとする。
+ * 置き換える値にキーワードと同じ文字列が含まれていても、それがさらに置き換えられることはない。
+ * </p>
+ * @author ucchy
+ */
+public class MessageTemplate {
+
+    /** 空のメッセージ */
+    public static final MessageTemplate EMPTY = compile("");
+
+    private final String text;
+    private final String[] literals;
+    private final String[] keywords;
+    private final int literalLength;
+
+    /**
+     * コンストラクタ
+     * @param text メッセージ全体
+     * @param literals 固定の文字列（キーワードの数＋1個）
+     * @param keywords キーワード
+     */
+    private MessageTemplate(String text, String[] literals, String[] keywords) {
+        this.text = text;
+        this.literals = literals;
+        this.keywords = keywords;
+        int length = 0;
+        for ( String literal : literals ) {
+            length += literal.length();
+        }
+        this.literalLength = length;
+    }
+
+    /**
+     * メッセージを解析して、テンプレートを作成する
+     * @param text メッセージ
+     * @return テンプレート
+     */
+    public static MessageTemplate compile(String text) {
+
+        ArrayList<String> literals = new ArrayList<String>();
+        ArrayList<String> keywords = new ArrayList<String>();
+
+        int start = 0;
+        int pos = text.indexOf('%');
+        while ( pos >= 0 ) {
+            int end = pos + 1;
+            while ( end < text.length() && isKeywordChar(text.charAt(end)) ) {
+                end++;
+            }
+            if ( end > pos + 1 ) {
+                literals.add(text.substring(start, pos));
+                keywords.add(text.substring(pos, end));
+                start = end;
+            }
+            pos = text.indexOf('%', end);
+        }
+        literals.add(text.substring(start));
+
+        return new MessageTemplate(text,
+                literals.toArray(new String[literals.size()]),
+                keywords.toArray(new String[keywords.size()]));
+    }
+
+    /**
+     * キーワードを置き換えていない、メッセージ全体を返す
+     * @return メッセージ
+     */
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * キーワードを置き換えたメッセージを返す
+     * @param keyword キーワード
+     * @param value キーワードの置き換え値
+     * @return メッセージ
+     */
+    public String render(String keyword, String value) {
+        return render(new String[]{keyword}, new String[]{value});
+    }
+
+    /**
+     * キーワードを置き換えたメッセージを返す。
+     * 値が指定されていないキーワードは、そのまま残す。
+     * @param keys キーワード
+     * @param values キーワードの置き換え値
+     * @return メッセージ
+     */
+    public String render(String[] keys, String[] values) {
+
+        if ( keywords.length == 0 ) return text;
+
+        StringBuilder builder = new StringBuilder(literalLength + keywords.length * 16);
+        builder.append(literals[0]);
+        for ( int i = 0; i < keywords.length; i++ ) {
+            String value = keywords[i];
+            for ( int j = 0; j < keys.length && j < values.length; j++ ) {
+                if ( keywords[i].equals(keys[j]) ) {
+                    value = values[j];
+                    break;
+                }
+            }
+            builder.append(value);
+            builder.append(literals[i + 1]);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * 指定された文字列が、1つのキーワードとして扱える形式かどうかを返す
+     * @param keyword 文字列
+     * @return キーワードとして扱えるかどうか
+     */
+    public static boolean isKeyword(String keyword) {
+        if ( keyword == null || keyword.length() < 2 || keyword.charAt(0) != '%' ) return false;
+        for ( int i = 1; i < keyword.length(); i++ ) {
+            if ( !isKeywordChar(keyword.charAt(i)) ) return false;
+        }
+        return true;
+    }
+
+    /**
+     * キーワードに使える文字かどうかを返す
+     * @param c 文字
+     * @return キーワードに使える文字かどうか
+     */
+    private static boolean isKeywordChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+    }
+}
@@ -13,6 +13,10 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.jar.JarFile;
 import java.util.zip.ZipEntry;
 
@@ -30,9 +34,16 @@ public class Messages {
     private static File jar;
 
     private static Messages instance;
+    private static volatile int generation;
 
     private YamlConfiguration resources;
 
+    // リソースキー → 解析済みのメッセージ
+    private ConcurrentHashMap<String, MessageTemplate> templates;
+
+    // 日時のフォーマッタ。SimpleDateFormatはスレッドセーフではないので、スレッドごとに作成する。
+    private ThreadLocal<SimpleDateFormat> dateFormat;
+
     /**
      * コンストラクタ
      * @param filename メッセージファイル
@@ -52,6 +63,22 @@ public class Messages {
 
         // デフォルトメッセージをデフォルトとして足す。
         resources.addDefaults(defaultMessages);
+
+        // 全てのメッセージを、あらかじめ解析しておく
+        templates = new ConcurrentHashMap<String, MessageTemplate>();
+        HashSet<String> keys = new HashSet<String>(resources.getKeys(false));
+        keys.addAll(defaultMessages.getKeys(false));
+        for ( String key : keys ) {
+            templates.put(key, compile(key));
+        }
+
+        final String datePattern = getTemplate("DateFormat").getText();
+        dateFormat = new ThreadLocal<SimpleDateFormat>() {
+            @Override
+            protected SimpleDateFormat initialValue() {
+                return new SimpleDateFormat(datePattern);
+            }
+        };
     }
 
     /**
@@ -60,10 +87,7 @@ public class Messages {
      * @return リソース
      */
     public static String get(String key) {
-        String message = instance.resources.getString(key);
-        if ( message == null ) return "";
-        message = message.replace("\\n", "\n");
-        return ChatColor.translateAlternateColorCodes('&', message);
+        return instance.getTemplate(key).getText();
     }
 
     /**
@@ -74,8 +98,10 @@ public class Messages {
      * @return リソース
      */
     public static String get(String key, String keyword, String value) {
-        String message = get(key).replace(keyword, value);
-        return message;
+        if ( !MessageTemplate.isKeyword(keyword) ) {
+            return get(key).replace(keyword, value);
+        }
+        return instance.getTemplate(key).render(keyword, value);
     }
 
     /**
@@ -86,8 +112,7 @@ public class Messages {
      * @return リソース
      */
     public static String get(String key, String keyword, int value) {
-        String message = get(key).replace(keyword, value + "");
-        return message;
+        return get(key, keyword, value + "");
     }
 
     /**
@@ -99,6 +124,24 @@ public class Messages {
      */
     public static String get(String key, String[] keys, String[] values) {
 
+        for ( String keyword : keys ) {
+            if ( !MessageTemplate.isKeyword(keyword) ) {
+                return getByReplace(key, keys, values);
+            }
+        }
+        return instance.getTemplate(key).render(keys, values);
+    }
+
+    /**
+     * リソースを、キーワードを順に置き換えつつ取得する。
+     * キーワードとして扱えない文字列を置き換える場合に使う。
+     * @param key リソースキー
+     * @param keys キーワード
+     * @param values キーワードの置き換え値
+     * @return リソース
+     */
+    private static String getByReplace(String key, String[] keys, String[] values) {
+
         String message = get(key);
 
         for ( int index=0; index<keys.length; index++ ) {
@@ -109,6 +152,51 @@ public class Messages {
         return message;
     }
 
+    /**
+     * 解析済みのメッセージを取得する。まだ解析していない場合は、ここで解析する。
+     * @param key リソースキー
+     * @return 解析済みのメッセージ
+     */
+    private MessageTemplate getTemplate(String key) {
+        MessageTemplate template = templates.get(key);
+        if ( template == null ) {
+            template = compile(key);
+            templates.put(key, template);
+        }
+        return template;
+    }
+
+    /**
+     * リソースを取得して解析する
+     * @param key リソースキー
+     * @return 解析済みのメッセージ、リソースが無い場合は空のメッセージ
+     */
+    private MessageTemplate compile(String key) {
+        String message = resources.getString(key);
+        if ( message == null ) return MessageTemplate.EMPTY;
+        message = message.replace("\\n", "\n");
+        return MessageTemplate.compile(ChatColor.translateAlternateColorCodes('&', message));
+    }
+
+    /**
+     * 言語リソース設定（DateFormat）に従って、日時をフォーマットする。
+     * フォーマッタはリロードするまで使い回すので、どのスレッドから呼び出しても良い。
+     * @param date 日時
+     * @return フォーマットされた文字列
+     */
+    public static String formatDate(Date date) {
+        return instance.dateFormat.get().format(date);
+    }
+
+    /**
+     * リロードされた回数を返す。リソースから作成した文字列をキャッシュする場合に、
+     * キャッシュが古くなっていないかどうかを確認するために使う。
+     * @return リロードされた回数
+     */
+    public static int getGeneration() {
+        return generation;
+    }
+
     /**
      * Jarファイル内から直接 messages_en.yml を読み込み、
      * defaultMessagesとしてロードする。
@@ -226,5 +314,6 @@ public class Messages {
      */
     protected static void reload(String lang) {
         instance = new Messages(String.format("messages_%s.yml", lang));
+        generation++;
     }
 }
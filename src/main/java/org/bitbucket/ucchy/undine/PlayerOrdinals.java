@@ -0,0 +1,72 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2020
+ */
+package org.bitbucket.ucchy.undine;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * プレイヤーのUUIDに、0から始まる連番（序数）を割り当てるテーブル。
+ * 序数はサーバーの起動中だけ有効で、ファイルには保存しない。
+ * @author ucchy
+ * @see MailFlagSet
+ */
+public class PlayerOrdinals {
+
+    private static ConcurrentHashMap<String, Integer> ordinals = new ConcurrentHashMap<String, Integer>();
+    private static ArrayList<String> uuids = new ArrayList<String>();
+
+    /**
+     * 指定されたUUIDの序数を取得する。まだ割り当てられていない場合は、新しく割り当てる。
+     * @param uuid UUID
+     * @return 序数、UUIDがnullの場合は-1
+     */
+    protected static int getOrdinal(String uuid) {
+        if ( uuid == null ) return -1;
+        Integer ordinal = ordinals.get(uuid);
+        if ( ordinal != null ) return ordinal;
+        synchronized (uuids) {
+            ordinal = ordinals.get(uuid);
+            if ( ordinal != null ) return ordinal;
+            ordinal = uuids.size();
+            uuids.add(uuid);
+            ordinals.put(uuid, ordinal);
+            return ordinal;
+        }
+    }
+
+    /**
+     * 指定されたUUIDの序数を取得する。割り当ては行わない。
+     * @param uuid UUID
+     * @return 序数、割り当てられていない場合は-1
+     */
+    protected static int findOrdinal(String uuid) {
+        if ( uuid == null ) return -1;
+        Integer ordinal = ordinals.get(uuid);
+        return ordinal != null ? ordinal : -1;
+    }
+
+    /**
+     * 指定された序数のUUIDを取得する
+     * @param ordinal 序数
+     * @return UUID
+     */
+    protected static String getUuid(int ordinal) {
+        synchronized (uuids) {
+            return uuids.get(ordinal);
+        }
+    }
+
+    /**
+     * 割り当て済みの序数の数を取得する
+     * @return 序数の数
+     */
+    protected static int size() {
+        synchronized (uuids) {
+            return uuids.size();
+        }
+    }
+}
@@ -1,38 +1,96 @@
 package org.bitbucket.ucchy.undine;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.List;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.bukkit.Bukkit;
 import org.bukkit.OfflinePlayer;
 import org.bukkit.scheduler.BukkitRunnable;
 
 /**
- * プレイヤーのUUIDのキャッシュを管理するクラス
+ * プレイヤーのUUIDのキャッシュを管理するクラス。
+ * プレイヤー名からUUID、UUIDからプレイヤー名の両方向のマップを、キャッシュの更新に合わせて保持する。
  * @author ucchy
  */
 public class PlayerUuidCache {
 
-    private HashMap<String, PlayerUuidCacheData> caches;
-    private boolean isPlayerCacheLoaded;
+    // リフレッシュの進捗状況をログに出力する間隔（ミリ秒）
+    private static final long PROGRESS_LOG_INTERVAL = 60000L;
+
+    // 前回のリフレッシュで確認したプレイヤーを保存するファイルの名前
+    private static final String SEEN_FILE_NAME = "players_seen.dat";
+    private static final int SEEN_MAGIC = 0x55445345;
+    private static final int SEEN_VERSION = 1;
+
+    // プレイヤー名 → キャッシュデータ
+    private ConcurrentHashMap<String, PlayerUuidCacheData> caches;
+    // UUID → プレイヤー名
+    private ConcurrentHashMap<String, String> names;
+    // 外部に公開する、読み取り専用のビュー
+    private Set<String> playerNamesView;
+    private Set<String> playerUuidsView;
+    private volatile boolean isPlayerCacheLoaded;
     private UUIDResolver resolver;
+    // 前回のリフレッシュで確認した、オフラインプレイヤーのUUID → プレイヤー名
+    private ConcurrentHashMap<UUID, String> lastSeen;
+    // リフレッシュを実行中かどうか
+    private AtomicBoolean isRefreshing;
+    // 問い合わせ中のプレイヤー名と、その結果
+    private ConcurrentHashMap<String, CompletableFuture<String>> pendings;
+    // キャッシュの保存先、データベースを使う場合はnull
+    private PlayerUuidCacheLog log;
+    // 実行中のリフレッシュの進捗状況、実行していない場合はnull
+    private volatile UUIDResolveProgress refreshProgress;
+    // キャッシュされているUUIDの構成が変わるたびに増える値
+    private AtomicLong version;
+    // キャッシュされているUUIDのプレイヤー名が変わるたびに増える値
+    private AtomicLong nameVersion;
 
     // コンストラクタ
     private PlayerUuidCache() {
-        caches = new HashMap<String, PlayerUuidCacheData>();
+        caches = new ConcurrentHashMap<String, PlayerUuidCacheData>();
+        names = new ConcurrentHashMap<String, String>();
+        pendings = new ConcurrentHashMap<String, CompletableFuture<String>>();
+        lastSeen = new ConcurrentHashMap<UUID, String>();
+        isRefreshing = new AtomicBoolean(false);
+        version = new AtomicLong();
+        nameVersion = new AtomicLong();
+        playerNamesView = Collections.unmodifiableSet(caches.keySet());
+        playerUuidsView = Collections.unmodifiableSet(names.keySet());
         isPlayerCacheLoaded = false;
-        resolver = new UUIDResolver(
-                UndineMailer.getInstance().getUndineConfig().isUuidOnlineMode());
+        UndineConfig config = UndineMailer.getInstance().getUndineConfig();
+        // コマンドからの問い合わせが、リフレッシュでまとめて問い合わせている間に待たされないように、
+        // トークンバケットを分けておく
+        resolver = new UUIDResolver(config.isUuidOnlineMode(),
+                new TokenBucket(config.getUuidRequestBurst(), config.getUuidRequestsPerMinute()),
+                new TokenBucket(config.getUuidRequestBurst(), config.getUuidRequestsPerMinute()));
+        UUIDResolver.getNegativeCache().setTtl(1000L*3600* config.getUuidNegativeCacheHours());
     }
 
     /**
-     * PlayerUuidCacheを、キャッシュフォルダ内のファイルからロードする。
+     * PlayerUuidCacheを、キャッシュフォルダ内のログファイル（またはデータベース）からロードする。
+     * 以前の形式の、1プレイヤー1ファイルのキャッシュが残っている場合は、ログファイルに移行する。
      * @return PlayerUuidCache
      */
     protected static PlayerUuidCache load() {
@@ -40,18 +98,53 @@ public class PlayerUuidCache {
         PlayerUuidCache puc = new PlayerUuidCache();
         long start = System.currentTimeMillis();
 
-        File folder = UndineMailer.getInstance().getCacheFolder();
-        File[] children =  folder.listFiles();
-        if ( children != null ) {
-            for ( File file : children ) {
-                if ( !file.getName().endsWith(".yml") ) {
-                    continue;
+        UUIDResolver.getNegativeCache().load(UndineMailer.getInstance().getCacheFolder());
+        puc.loadLastSeen(UndineMailer.getInstance().getCacheFolder());
+
+        UndineDatabase database = UndineMailer.getInstance().getDatabase();
+        if ( database != null ) {
+            for ( PlayerUuidCacheData cache : database.loadPlayerUuidCaches() ) {
+                puc.put(cache);
+            }
+        } else {
+            File folder = UndineMailer.getInstance().getCacheFolder();
+            puc.log = new PlayerUuidCacheLog(folder);
+            LinkedHashMap<String, PlayerUuidCacheData> datas = puc.log.load();
+
+            File[] children = folder.listFiles(new FilenameFilter() {
+                public boolean accept(File dir, String name) {
+                    return name.endsWith(".yml");
+                }
+            });
+            if ( children != null && children.length > 0 ) {
+                // 1プレイヤー1ファイルのキャッシュを、ログファイルに移行する
+                for ( File file : children ) {
+                    PlayerUuidCacheData cache = PlayerUuidCacheData.load(file);
+                    if ( cache.getName() == null || cache.getUuid() == null ) continue;
+                    PlayerUuidCacheData current = datas.get(cache.getName());
+                    if ( current == null || current.getLastKnownDate().before(cache.getLastKnownDate()) ) {
+                        datas.put(cache.getName(), cache);
+                    }
+                }
+                if ( puc.log.compact(datas.values()) ) {
+                    for ( File file : children ) {
+                        file.delete();
+                    }
+                    UndineMailer.getInstance().getLogger().info("Migrate player cache files to "
+                            + PlayerUuidCacheLog.FILE_NAME + "... Done. Files: " + children.length + ".");
                 }
-                PlayerUuidCacheData cache = PlayerUuidCacheData.load(file);
-                puc.caches.put(cache.getName(), cache);
+            } else {
+                puc.log.compactIfNeeded(datas.values());
+            }
+
+            for ( PlayerUuidCacheData cache : datas.values() ) {
+                puc.put(cache);
             }
         }
 
+        // 保存されていたキャッシュがあれば、最初のリフレッシュを待たずにそのまま使えるようにする
+        puc.isPlayerCacheLoaded = puc.caches.size() > 0;
+
         UndineMailer.getInstance().getLogger().info("Load offline player data from cache... Done. Time: "
                 + (System.currentTimeMillis() - start) + "ms, Data: " + puc.caches.size() + ".");
 
@@ -60,94 +153,158 @@ public class PlayerUuidCache {
 
     /**
      * サーバーのプレイヤー一覧を取得し、UUIDをキャッシュする。
+     * <p>
+     * 前回確認したプレイヤーと比べて、新しいプレイヤーと、確認してから30日以上経ったプレイヤーだけを問い合わせる。
+     * 前回確認したプレイヤーはキャッシュフォルダに保存しておくので、サーバーを起動した直後のリフレッシュでも、
+     * 全てのプレイヤーのプレイヤー名を取得し直すことはない。問い合わせている間も、これまでのキャッシュはそのまま使用でき、
+     * サーバーからいなくなったプレイヤーは、問い合わせが終わった後でキャッシュから外す。
+     * </p>
      */
     protected void refresh() {
 
+        // 既に実行中なら、その結果を待つ
+        if ( !isRefreshing.compareAndSet(false, true) ) return;
+
         final long start = System.currentTimeMillis();
-        isPlayerCacheLoaded = false;
+        final Date startDate = new Date(start);
 
         new BukkitRunnable() {
             public void run() {
-
-                // UUIDがキャッシュされているかどうか確認し、キャッシュされていないプレイヤー名をリストして、
-                // 10プレイヤーずつ、10秒ごとに、UUIDの確認と更新を行う。
-                ArrayList<String> namesToCheck = new ArrayList<>();
-                HashMap<String, PlayerUuidCacheData> temp = new HashMap<String, PlayerUuidCacheData>();
-
-                for ( OfflinePlayer player : Bukkit.getOfflinePlayers() ) {
-
-                    String name = player.getName();
-                    if ( name == null ) continue;
-
-                    if ( caches.containsKey(name) ) {
-                        if ( isBefore30Days(caches.get(name).getLastKnownDate()) ) {
-                            namesToCheck.add(name);
-                        } else {
-                            temp.put(name, caches.get(name));
-                        }
-                    } else {
-                        namesToCheck.add(name);
-                    }
+                try {
+                    refreshIncrementally(start, startDate);
+                } finally {
+                    refreshProgress = null;
+                    isRefreshing.set(false);
                 }
+            }
+        }.runTaskAsynchronously(UndineMailer.getInstance());
+    }
 
-                int pageSize = 10; // 10 names per a request.
-                long waitTime = 1000L * 10; // 10 seconds.
-
-                for ( int index = 0; index < namesToCheck.size(); index += pageSize ) {
-                    int endIndex = (index + pageSize > namesToCheck.size()) ? namesToCheck.size() : index + pageSize;
-                    List<String> next = namesToCheck.subList(index, endIndex);
+    // 新しいプレイヤーと古くなったプレイヤーだけ、UUIDの確認と更新を行う。非同期スレッドで実行すること。
+    private void refreshIncrementally(long start, Date startDate) {
+
+        // 前回確認したUUIDのプレイヤーは、キャッシュが新しいうちはプレイヤー名を取得し直さない
+        // （OfflinePlayer.getName() は、プレイヤーデータのファイルを読み込むことがあるため）。
+        ArrayList<String> namesToCheck = new ArrayList<>();
+        HashMap<UUID, String> seen = new HashMap<UUID, String>();
+        HashSet<String> seenNames = new HashSet<String>();
+
+        for ( OfflinePlayer player : Bukkit.getOfflinePlayers() ) {
+
+            UUID id = player.getUniqueId();
+            String name = lastSeen.get(id);
+            PlayerUuidCacheData data = (name != null) ? caches.get(name) : null;
+            if ( data == null || isBefore30Days(data.getLastKnownDate()) || player.isOnline() ) {
+                name = player.getName();
+                if ( name == null ) continue;
+                data = caches.get(name);
+                if ( data == null || isBefore30Days(data.getLastKnownDate()) ) {
+                    namesToCheck.add(name);
+                }
+            }
+            seen.put(id, name);
+            seenNames.add(name);
+        }
 
-                    Map<String, String> results = resolver.getUUIDsFromNames(next);
-                    for ( String name : results.keySet() ) {
-                        String uuid = results.get(name);
-                        PlayerUuidCacheData data = new PlayerUuidCacheData(name, uuid, new Date());
-                        data.save();
-                        temp.put(name, data);
+        // 確認できたプレイヤーは、バッチごとにキャッシュへ反映して保存するので、途中でサーバーが停止しても、
+        // 次回はまだ確認していないプレイヤーから再開される。
+        final UUIDResolveProgress progress = new UUIDResolveProgress(namesToCheck.size());
+        refreshProgress = progress;
+
+        if ( namesToCheck.size() > 0 ) {
+            resolver.getUUIDsFromNames(namesToCheck, new UUIDResolver.ResolveListener() {
+                private long lastLogged = System.currentTimeMillis();
+                public void onResolved(Map<String, UUID> resolved, int done) {
+                    for ( String name : resolved.keySet() ) {
+                        PlayerUuidCacheData data = new PlayerUuidCacheData(
+                                name, resolved.get(name).toString(), new Date());
+                        save(data);
+                        put(data);
                     }
-
-                    if ( index + pageSize < namesToCheck.size() ) {
-                        try {
-                            Thread.sleep(waitTime);
-                        } catch (InterruptedException e) {
-                            // do nothing.
-                        }
+                    progress.setDone(done);
+                    long now = System.currentTimeMillis();
+                    if ( now - lastLogged >= PROGRESS_LOG_INTERVAL && !progress.isFinished() ) {
+                        lastLogged = now;
+                        UndineMailer.getInstance().getLogger().info(
+                                "Async refresh offline player data... " + progress);
                     }
                 }
+            });
+        }
 
-                UndineMailer.getInstance().getLogger().info("Async refresh offline player data... Done. Time: "
-                        + (System.currentTimeMillis() - start) + "ms, Data: " + temp.size() + ".");
-                caches = temp;
-                isPlayerCacheLoaded = true;
+        // サーバーからいなくなったプレイヤーを、キャッシュから外す。
+        // リフレッシュ中に別途キャッシュされたプレイヤーは残す。
+        int removed = 0;
+        for ( PlayerUuidCacheData data : new ArrayList<PlayerUuidCacheData>(caches.values()) ) {
+            if ( !seenNames.contains(data.getName()) && data.getLastKnownDate().before(startDate) ) {
+                remove(data.getName());
+                removed++;
             }
-        }.runTaskAsynchronously(UndineMailer.getInstance());
+        }
+        lastSeen.keySet().retainAll(seen.keySet());
+        lastSeen.putAll(seen);
+        saveLastSeen(UndineMailer.getInstance().getCacheFolder());
+
+        if ( log != null ) {
+            log.compactIfNeeded(caches.values());
+        }
+        UUIDResolver.getNegativeCache().save(UndineMailer.getInstance().getCacheFolder());
+
+        UndineMailer.getInstance().getLogger().info("Async refresh offline player data... Done. Time: "
+                + (System.currentTimeMillis() - start) + "ms, Data: " + caches.size()
+                + ", Checked: " + namesToCheck.size() + ", Removed: " + removed + ".");
+        isPlayerCacheLoaded = true;
     }
 
     /**
-     * プレイヤーキャッシュがロードされているかどうかを返す
+     * プレイヤーキャッシュがロードされているかどうかを返す。
+     * 保存されていたキャッシュをロードした後か、最初のリフレッシュが終わった後は、
+     * 再度リフレッシュしている間もtrueを返す。
      * @return プレイヤーキャッシュがロードされているかどうか
      */
     protected boolean isPlayerCacheLoaded() {
         return isPlayerCacheLoaded;
     }
 
+    /**
+     * 実行中のリフレッシュの進捗状況を返す
+     * @return 進捗状況、リフレッシュを実行していない場合はnull
+     */
+    protected UUIDResolveProgress getRefreshProgress() {
+        return refreshProgress;
+    }
+
     /**
      * キャッシュしているプレイヤー名の一覧を返す
-     * @return プレイヤー名一覧
+     * @return プレイヤー名一覧（キャッシュの更新が反映される、読み取り専用のビュー）
      */
     protected  Set<String> getPlayerNames() {
-        return caches.keySet();
+        return playerNamesView;
     }
 
     /**
      * キャッシュされているすべてのUUIDを取得する
-     * @return すべてのUUID
+     * @return すべてのUUID（キャッシュの更新が反映される、読み取り専用のビュー）
      */
-    protected HashSet<String> getPlayerUuids() {
-        HashSet<String> uuids = new HashSet<>();
-        for ( PlayerUuidCacheData d : caches.values() ) {
-            uuids.add(d.getUuid());
-        }
-        return uuids;
+    protected Set<String> getPlayerUuids() {
+        return playerUuidsView;
+    }
+
+    /**
+     * キャッシュされているUUIDの構成のバージョンを返す。UUIDが追加または削除されるたびに変化する。
+     * @return バージョン
+     */
+    protected long getVersion() {
+        return version.get();
+    }
+
+    /**
+     * キャッシュされているUUIDの、プレイヤー名のバージョンを返す。
+     * プレイヤー名の変更など、UUIDに対応するプレイヤー名が変わるたびに変化する。
+     * @return バージョン
+     */
+    protected long getNameVersion() {
+        return nameVersion.get();
     }
 
     /**
@@ -156,22 +313,73 @@ public class PlayerUuidCache {
      * @return UUID
      */
     protected String getUUID(String name) {
-        if ( caches.containsKey(name) ) {
-            return caches.get(name).getUuid();
+        PlayerUuidCacheData data = caches.get(name);
+        if ( data != null ) {
+            return data.getUuid();
+        }
+
+        // 同じプレイヤー名を問い合わせ中なら、その結果を待つ
+        CompletableFuture<String> pending = pendings.get(name);
+        if ( pending != null ) {
+            return pending.join();
         }
         return refreshPlayerUuid(name);
     }
 
+    /**
+     * 指定されたプレイヤー名のUUIDを、キャッシュだけから取得する。問い合わせは行わない。
+     * @param name プレイヤー名
+     * @return UUID、キャッシュに無い場合はnull
+     */
+    protected String getCachedUUID(String name) {
+        PlayerUuidCacheData data = caches.get(name);
+        return (data != null) ? data.getUuid() : null;
+    }
+
+    /**
+     * 指定されたプレイヤー名のUUIDを、非同期で取得する。
+     * キャッシュに無い場合は非同期スレッドで問い合わせを行い、同じプレイヤー名への問い合わせが
+     * 実行中の場合は、新しく問い合わせずにその結果を共有する。
+     * @param name プレイヤー名
+     * @return UUIDを返すCompletableFuture、UUIDが見つからない場合はnullで完了する
+     */
+    protected CompletableFuture<String> getUUIDAsync(final String name) {
+
+        PlayerUuidCacheData data = caches.get(name);
+        if ( data != null ) {
+            return CompletableFuture.completedFuture(data.getUuid());
+        }
+
+        final CompletableFuture<String> future = new CompletableFuture<String>();
+        CompletableFuture<String> pending = pendings.putIfAbsent(name, future);
+        if ( pending != null ) {
+            return pending;
+        }
+
+        new BukkitRunnable() {
+            public void run() {
+                try {
+                    future.complete(refreshPlayerUuid(name));
+                } catch (Exception e) {
+                    future.completeExceptionally(e);
+                } finally {
+                    pendings.remove(name, future);
+                }
+            }
+        }.runTaskAsynchronously(UndineMailer.getInstance());
+
+        return future;
+    }
+
     /**
      * 指定されたUUIDのプレイヤー名をキャッシュから取得する
      * @param uuid UUID
      * @return プレイヤー名
      */
     protected String getName(String uuid) {
-        for ( PlayerUuidCacheData d : caches.values() ) {
-            if ( d.getUuid().equals(uuid) ) {
-                return d.getName();
-            }
+        String name = names.get(uuid);
+        if ( name != null ) {
+            return name;
         }
         return resolver.getNameFromUUID(uuid);
     }
@@ -190,15 +398,15 @@ public class PlayerUuidCache {
                 uuid = resolver.getUUIDFromName(name, new Date());
                 if ( uuid == null ) return null;
                 data = new PlayerUuidCacheData(name, uuid, new Date());
-                caches.put(name, data);
-                data.save();
+                put(data);
+                save(data);
             }
         } else {
             uuid = resolver.getUUIDFromName(name, new Date());
             if ( uuid == null ) return null;
             data = new PlayerUuidCacheData(name, uuid, new Date());
-            caches.put(name, data);
-            data.save();
+            put(data);
+            save(data);
         }
 
         return uuid;
@@ -217,6 +425,117 @@ public class PlayerUuidCache {
         }.runTaskAsynchronously(UndineMailer.getInstance());
     }
 
+    /**
+     * キャッシュの保存先を閉じる。UUIDが見つからなかったプレイヤー名のキャッシュも保存する。
+     */
+    protected void close() {
+        if ( log != null ) {
+            log.close();
+        }
+        UUIDResolver.getNegativeCache().save(UndineMailer.getInstance().getCacheFolder());
+    }
+
+    /**
+     * キャッシュデータを保存する。データベースを使っていない場合は、ログファイルに追記する。
+     * @param data キャッシュデータ
+     */
+    private void save(PlayerUuidCacheData data) {
+        UndineDatabase database = UndineMailer.getInstance().getDatabase();
+        if ( database != null ) {
+            database.savePlayerUuidCache(data);
+        } else if ( log != null ) {
+            log.append(data);
+        }
+    }
+
+    /**
+     * キャッシュデータを追加する。両方向のマップを更新する。
+     * @param data キャッシュデータ
+     */
+    private void put(PlayerUuidCacheData data) {
+        if ( data.getName() == null || data.getUuid() == null ) return;
+        PlayerUuidCacheData previous = caches.put(data.getName(), data);
+        if ( previous != null && !previous.getUuid().equals(data.getUuid())
+                && names.remove(previous.getUuid(), previous.getName()) ) {
+            version.incrementAndGet();
+            nameVersion.incrementAndGet();
+        }
+        String previousName = names.put(data.getUuid(), data.getName());
+        if ( previousName == null ) {
+            version.incrementAndGet();
+        } else if ( !previousName.equals(data.getName()) ) {
+            nameVersion.incrementAndGet();
+        }
+        PlayerOrdinals.getOrdinal(data.getUuid());
+    }
+
+    /**
+     * キャッシュデータを削除する。両方向のマップを更新する。
+     * @param name プレイヤー名
+     */
+    private void remove(String name) {
+        PlayerUuidCacheData previous = caches.remove(name);
+        if ( previous != null && names.remove(previous.getUuid(), name) ) {
+            version.incrementAndGet();
+        }
+    }
+
+    /**
+     * 前回のリフレッシュで確認したプレイヤーを、指定されたフォルダのファイルから読み込む
+     * @param folder フォルダ
+     */
+    private void loadLastSeen(File folder) {
+
+        File file = new File(folder, SEEN_FILE_NAME);
+        if ( !file.exists() ) return;
+
+        try {
+            DataInputStream in = new DataInputStream(
+                    new ByteArrayInputStream(Files.readAllBytes(file.toPath())));
+            if ( in.readInt() != SEEN_MAGIC || in.readInt() > SEEN_VERSION ) return;
+            while ( true ) {
+                UUID id = new UUID(in.readLong(), in.readLong());
+                lastSeen.put(id, in.readUTF());
+            }
+        } catch (EOFException e) {
+            // ファイルの終端。
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 前回のリフレッシュで確認したプレイヤーを、指定されたフォルダのファイルへ保存する
+     * @param folder フォルダ
+     */
+    private void saveLastSeen(File folder) {
+
+        File file = new File(folder, SEEN_FILE_NAME);
+        File temp = new File(folder, SEEN_FILE_NAME + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(SEEN_MAGIC);
+            out.writeInt(SEEN_VERSION);
+            for ( Map.Entry<UUID, String> entry : lastSeen.entrySet() ) {
+                out.writeLong(entry.getKey().getMostSignificantBits());
+                out.writeLong(entry.getKey().getLeastSignificantBits());
+                out.writeUTF(entry.getValue());
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            temp.delete();
+            return;
+        }
+
+        try {
+            Utility.replaceFile(temp, file);
+        } catch (IOException e) {
+            e.printStackTrace();
+            temp.delete();
+            UndineMailer.getInstance().getLogger().warning("Could not save " + file.getName() + ".");
+        }
+    }
+
     // 指定されたDateが、30日以前かどうかを判定する。
     private static boolean isBefore30Days(Date date) {
         return date.before(new Date(System.currentTimeMillis() - 1000L*24*3600* 30));
@@ -1,7 +1,6 @@
 package org.bitbucket.ucchy.undine;
 
 import java.io.File;
-import java.io.IOException;
 import java.util.Date;
 
 import org.bukkit.configuration.file.YamlConfiguration;
@@ -38,21 +37,6 @@ public class PlayerUuidCacheData {
         return new PlayerUuidCacheData(name, uuid, date);
     }
 
-    protected void save() {
-
-        File folder = UndineMailer.getInstance().getCacheFolder();
-        YamlConfiguration conf = new YamlConfiguration();
-        conf.set("name", name);
-        conf.set("uuid", uuid);
-        conf.set("lastKnownDate", lastKnownDate.getTime());
-
-        try {
-            conf.save(new File(folder, uuid + ".yml"));
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-    }
-
     /**
      * @return name
      */
@@ -0,0 +1,128 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2020
+ */
+package org.bitbucket.ucchy.undine;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashMap;
+
+/**
+ * プレイヤーのUUIDキャッシュを、1つのファイルに追記していくログ。
+ * <p>
+ * キャッシュが更新されるたびに (プレイヤー名, UUID, 最終確認日時) のレコードを末尾に追記し、
+ * ロード時はファイル全体を1度に読み込んで、同じプレイヤー名は後のレコードで上書きする。
+ * 古いレコードが増えてきたら、有効なレコードだけを書き直して小さくする。
+ * </p>
+ * @author ucchy
+ * @see AppendLogFile
+ */
+public class PlayerUuidCacheLog {
+
+    /** ログファイルの名前 */
+    protected static final String FILE_NAME = "players.log";
+
+    private static final int MAGIC = 0x55445543;
+    private static final int VERSION = 1;
+
+    private AppendLogFile log;
+    private int records;
+
+    /**
+     * コンストラクタ
+     * @param folder ログファイルを置くフォルダ
+     */
+    public PlayerUuidCacheLog(File folder) {
+        this.log = new AppendLogFile(new File(folder, FILE_NAME), MAGIC, VERSION);
+    }
+
+    /**
+     * ログファイルを読み込む。
+     * 末尾に途中で途切れたレコードがある場合は、最後の完全なレコードの終わりまでファイルを切り詰める。
+     * 形式がわからないファイルは、追記で壊さないように別名で退避して、新しいファイルから始める。
+     * @return プレイヤー名をキーにした、キャッシュデータのマップ
+     */
+    protected synchronized LinkedHashMap<String, PlayerUuidCacheData> load() {
+
+        final LinkedHashMap<String, PlayerUuidCacheData> result = new LinkedHashMap<String, PlayerUuidCacheData>();
+        records = 0;
+
+        log.read(new AppendLogFile.RecordReader() {
+            public void read(DataInputStream in) throws IOException {
+                String name = in.readUTF();
+                String uuid = in.readUTF();
+                Date date = new Date(in.readLong());
+                result.remove(name);
+                result.put(name, new PlayerUuidCacheData(name, uuid, date));
+                records++;
+            }
+        });
+
+        return result;
+    }
+
+    /**
+     * キャッシュデータを追記する
+     * @param data キャッシュデータ
+     */
+    protected synchronized void append(PlayerUuidCacheData data) {
+        try {
+            DataOutputStream out = log.getStream();
+            writeRecord(out, data);
+            out.flush();
+            records++;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 有効なレコードの数に比べてログが大きくなっている場合は、ログを書き直す
+     * @param datas 有効なキャッシュデータ
+     */
+    protected synchronized void compactIfNeeded(Collection<PlayerUuidCacheData> datas) {
+        if ( records > datas.size() * 2 ) {
+            compact(datas);
+        }
+    }
+
+    /**
+     * 指定されたキャッシュデータだけを含むように、ログを書き直す
+     * @param datas 有効なキャッシュデータ
+     * @return 書き直しに成功したかどうか
+     */
+    protected synchronized boolean compact(final Collection<PlayerUuidCacheData> datas) {
+
+        boolean success = log.rewrite(new AppendLogFile.RecordWriter() {
+            public void write(DataOutputStream out) throws IOException {
+                for ( PlayerUuidCacheData data : datas ) {
+                    writeRecord(out, data);
+                }
+            }
+        });
+        if ( success ) {
+            records = datas.size();
+        }
+        return success;
+    }
+
+    /**
+     * ログファイルを閉じる
+     */
+    protected synchronized void close() {
+        log.closeStream();
+    }
+
+    // レコードを書き込む
+    private static void writeRecord(DataOutputStream out, PlayerUuidCacheData data) throws IOException {
+        out.writeUTF(data.getName());
+        out.writeUTF(data.getUuid());
+        out.writeLong(data.getLastKnownDate().getTime());
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2020
+ */
+package org.bitbucket.ucchy.undine;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.bitbucket.ucchy.undine.group.GroupData;
+import org.bitbucket.ucchy.undine.sender.MailSender;
+
+/**
+ * メールの宛先と宛先グループを展開して、統合宛先を作成するクラス。
+ * <p>
+ * 宛先、宛先グループのメンバーの順に、重複を除いて1度だけ並べる。
+ * グループのメンバーの一覧は、グループのバージョンが変わるまでキャッシュして使い回す。
+ * </p>
+ * @author ucchy
+ * @see GroupData#getVersion()
+ */
+public class RecipientResolver {
+
+    // グループ → 展開済みのメンバー一覧
+    private Map<GroupData, Expansion> expansions;
+
+    /**
+     * コンストラクタ
+     */
+    public RecipientResolver() {
+        expansions = new WeakHashMap<GroupData, Expansion>();
+    }
+
+    /**
+     * 指定されたメールの統合宛先を作成する
+     * @param mail メール
+     * @return 統合宛先（宛先＋宛先グループのメンバーの和集合、順序は宛先、グループの順）
+     */
+    public LinkedHashSet<MailSender> resolve(MailData mail) {
+        return resolve(mail.getTo(), mail.getToGroupsConv());
+    }
+
+    /**
+     * 指定された宛先と宛先グループから、統合宛先を作成する
+     * @param to 宛先
+     * @param groups 宛先グループ
+     * @return 統合宛先（宛先＋宛先グループのメンバーの和集合、順序は宛先、グループの順）
+     */
+    public LinkedHashSet<MailSender> resolve(List<MailSender> to, List<GroupData> groups) {
+        LinkedHashSet<MailSender> result = new LinkedHashSet<MailSender>(to);
+        for ( GroupData group : groups ) {
+            result.addAll(expand(group));
+        }
+        return result;
+    }
+
+    /**
+     * 展開済みのメンバー一覧のキャッシュを全て破棄する
+     */
+    public synchronized void clear() {
+        expansions.clear();
+    }
+
+    /**
+     * グループのメンバー一覧を取得する。バージョンが変わっていなければ、キャッシュを返す。
+     * @param group グループ
+     * @return メンバー一覧（読み取り専用）
+     */
+    @SuppressWarnings("deprecation")
+    private synchronized List<MailSender> expand(GroupData group) {
+
+        long version = group.getVersion();
+        if ( version < 0 ) {
+            return group.getMembers();
+        }
+
+        Expansion expansion = expansions.get(group);
+        if ( expansion == null || expansion.version != version ) {
+            expansion = new Expansion(version, Collections.unmodifiableList(
+                    new ArrayList<MailSender>(group.getMembers())));
+            expansions.put(group, expansion);
+        }
+        return expansion.members;
+    }
+
+    /**
+     * 展開済みのメンバー一覧と、展開したときのグループのバージョン
+     */
+    private static class Expansion {
+
+        private final long version;
+        private final List<MailSender> members;
+
+        private Expansion(long version, List<MailSender> members) {
+            this.version = version;
+            this.members = members;
+        }
+    }
+}
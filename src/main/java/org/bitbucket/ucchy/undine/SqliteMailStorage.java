@@ -0,0 +1,335 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2020
+ */
+package org.bitbucket.ucchy.undine;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+import org.bitbucket.ucchy.undine.sender.MailSender;
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.YamlConfiguration;
+
+/**
+ * メールデータを、SQLiteデータベースに保存する保存先。
+ * 宛先、送信者、送信日時、既読フラグ、ゴミ箱フラグは、検索できるように個別のカラムやテーブルに格納し、
+ * それ以外のメールデータはYaml文字列として格納する。
+ * @author ucchy
+ */
+public class SqliteMailStorage implements MailStorage {
+
+    private static final String KEY_READ_FLAGS = "readFlags";
+    private static final String KEY_TRASH_FLAGS = "trashFlags";
+
+    private UndineDatabase database;
+
+    /**
+     * コンストラクタ
+     * @param database データベース
+     */
+    public SqliteMailStorage(UndineDatabase database) {
+        this.database = database;
+    }
+
+    /**
+     * 指定されたメールデータを保存する
+     * @param mail メールデータ
+     * @see org.bitbucket.ucchy.undine.MailStorage#save(org.bitbucket.ucchy.undine.MailData)
+     */
+    @Override
+    public void save(MailData mail) {
+        ArrayList<MailData> mails = new ArrayList<MailData>();
+        mails.add(mail);
+        saveAll(mails);
+    }
+
+    /**
+     * 指定されたメールデータを、1つのトランザクションでまとめて保存する。
+     * 失敗した場合は、トランザクションをロールバックしてから例外を投げる。
+     * @param mails メールデータ
+     * @throws MailStorageException 書き込みに失敗した場合
+     * @see org.bitbucket.ucchy.undine.MailStorage#saveAll(java.util.Collection)
+     */
+    @Override
+    public void saveAll(Collection<MailData> mails) {
+
+        if ( mails.isEmpty() ) return;
+
+        synchronized (database) {
+            Connection connection = database.getConnection();
+            try {
+                connection.setAutoCommit(false);
+                try (PreparedStatement insertMail = connection.prepareStatement(
+                            "INSERT OR REPLACE INTO mails (idx, sender, sent_date, attachments, cancelled, data) "
+                            + "VALUES (?, ?, ?, ?, ?, ?)");
+                        PreparedStatement deleteRecipients = connection.prepareStatement(
+                            "DELETE FROM mail_recipients WHERE idx = ?");
+                        PreparedStatement insertRecipient = connection.prepareStatement(
+                            "INSERT OR IGNORE INTO mail_recipients (idx, recipient) VALUES (?, ?)");
+                        PreparedStatement deleteFlags = connection.prepareStatement(
+                            "DELETE FROM mail_flags WHERE idx = ?");
+                        PreparedStatement insertFlag = connection.prepareStatement(
+                            "INSERT OR IGNORE INTO mail_flags (idx, player, flag) VALUES (?, ?, ?)")) {
+
+                    for ( MailData mail : mails ) {
+                        int index = mail.getIndex();
+
+                        YamlConfiguration config = new YamlConfiguration();
+                        mail.saveToConfigSection(config);
+                        config.set(KEY_READ_FLAGS, null);
+                        config.set(KEY_TRASH_FLAGS, null);
+
+                        insertMail.setInt(1, index);
+                        insertMail.setString(2, mail.getFrom().toString());
+                        insertMail.setLong(3, mail.getDate() != null ? mail.getDate().getTime() : 0);
+                        insertMail.setInt(4, mail.getAttachments() != null ? mail.getAttachments().size() : 0);
+                        insertMail.setInt(5, mail.isAttachmentsCancelled() ? 1 : 0);
+                        insertMail.setString(6, config.saveToString());
+                        insertMail.addBatch();
+
+                        deleteRecipients.setInt(1, index);
+                        deleteRecipients.addBatch();
+                        for ( String recipient : getRecipientKeys(mail) ) {
+                            insertRecipient.setInt(1, index);
+                            insertRecipient.setString(2, recipient);
+                            insertRecipient.addBatch();
+                        }
+
+                        deleteFlags.setInt(1, index);
+                        deleteFlags.addBatch();
+                        addFlagBatch(insertFlag, index, mail.getReadFlags(), UndineDatabase.FLAG_READ);
+                        addFlagBatch(insertFlag, index, mail.getTrashFlags(), UndineDatabase.FLAG_TRASH);
+                    }
+
+                    insertMail.executeBatch();
+                    deleteRecipients.executeBatch();
+                    insertRecipient.executeBatch();
+                    deleteFlags.executeBatch();
+                    insertFlag.executeBatch();
+                }
+                connection.commit();
+            } catch (SQLException e) {
+                database.rollback();
+                throw new MailStorageException("Could not save " + mails.size() + " mails.", e);
+            } finally {
+                database.resetAutoCommit();
+            }
+        }
+    }
+
+    /**
+     * 指定されたインデクスのメールデータを削除する
+     * @param index インデクス
+     * @see org.bitbucket.ucchy.undine.MailStorage#delete(int)
+     */
+    @Override
+    public void delete(int index) {
+        ArrayList<Integer> indexes = new ArrayList<Integer>();
+        indexes.add(index);
+        deleteAll(indexes);
+    }
+
+    /**
+     * 指定されたインデクスのメールデータを、1つのトランザクションでまとめて削除する。
+     * 失敗した場合は、トランザクションをロールバックしてから例外を投げる。
+     * @param indexes インデクス
+     * @throws MailStorageException 書き込みに失敗した場合
+     * @see org.bitbucket.ucchy.undine.MailStorage#deleteAll(java.util.Collection)
+     */
+    @Override
+    public void deleteAll(Collection<Integer> indexes) {
+
+        if ( indexes.isEmpty() ) return;
+
+        synchronized (database) {
+            Connection connection = database.getConnection();
+            try {
+                connection.setAutoCommit(false);
+                for ( String table : new String[]{"mails", "mail_recipients", "mail_flags"} ) {
+                    try (PreparedStatement statement = connection.prepareStatement(
+                            "DELETE FROM " + table + " WHERE idx = ?")) {
+                        for ( int index : indexes ) {
+                            statement.setInt(1, index);
+                            statement.addBatch();
+                        }
+                        statement.executeBatch();
+                    }
+                }
+                connection.commit();
+            } catch (SQLException e) {
+                database.rollback();
+                throw new MailStorageException("Could not delete " + indexes.size() + " mails.", e);
+            } finally {
+                database.resetAutoCommit();
+            }
+        }
+    }
+
+    /**
+     * 保存されている全てのメールデータを、1件ずつロードしてハンドラに渡す。
+     * 内容を解析できないメールは読み飛ばすが、データベースから読み込めない場合は例外を投げる。
+     * @param handler ハンドラ
+     * @throws MailStorageException 読み込みに失敗した場合
+     * @see org.bitbucket.ucchy.undine.MailStorage#load(org.bitbucket.ucchy.undine.MailStorage.LoadHandler)
+     */
+    @Override
+    public void load(LoadHandler handler) {
+
+        synchronized (database) {
+            Connection connection = database.getConnection();
+
+            // フラグを先にまとめて読み込んでおく
+            HashMap<Integer, List<String>> reads = new HashMap<Integer, List<String>>();
+            HashMap<Integer, List<String>> trashes = new HashMap<Integer, List<String>>();
+            try (Statement statement = connection.createStatement();
+                    ResultSet rs = statement.executeQuery("SELECT idx, player, flag FROM mail_flags")) {
+                while ( rs.next() ) {
+                    HashMap<Integer, List<String>> map =
+                            (rs.getInt(3) == UndineDatabase.FLAG_READ) ? reads : trashes;
+                    int index = rs.getInt(1);
+                    List<String> list = map.get(index);
+                    if ( list == null ) {
+                        list = new ArrayList<String>();
+                        map.put(index, list);
+                    }
+                    list.add(rs.getString(2));
+                }
+            } catch (SQLException e) {
+                throw new MailStorageException("Could not load mail flags.", e);
+            }
+
+            try (Statement statement = connection.createStatement();
+                    ResultSet rs = statement.executeQuery("SELECT idx, data FROM mails ORDER BY idx")) {
+                while ( rs.next() ) {
+                    int index = rs.getInt(1);
+                    YamlConfiguration config = new YamlConfiguration();
+                    try {
+                        config.loadFromString(rs.getString(2));
+                    } catch (InvalidConfigurationException e) {
+                        e.printStackTrace();
+                        continue;
+                    }
+                    config.set(KEY_READ_FLAGS, getOrEmpty(reads, index));
+                    config.set(KEY_TRASH_FLAGS, getOrEmpty(trashes, index));
+                    handler.onLoad(MailData.loadFromConfigSection(config));
+                }
+            } catch (SQLException e) {
+                throw new MailStorageException("Could not load mails.", e);
+            }
+        }
+    }
+
+    /**
+     * 指定されたメールデータの既読フラグを保存する。フラグのテーブルだけを更新する。
+     * @param mail メールデータ
+     * @see org.bitbucket.ucchy.undine.MailStorage#updateReadFlags(org.bitbucket.ucchy.undine.MailData)
+     */
+    @Override
+    public void updateReadFlags(MailData mail) {
+        updateFlags(mail.getIndex(), mail.getReadFlags(), UndineDatabase.FLAG_READ);
+    }
+
+    /**
+     * 指定されたメールデータのゴミ箱フラグを保存する。フラグのテーブルだけを更新する。
+     * @param mail メールデータ
+     * @see org.bitbucket.ucchy.undine.MailStorage#updateTrashFlags(org.bitbucket.ucchy.undine.MailData)
+     */
+    @Override
+    public void updateTrashFlags(MailData mail) {
+        updateFlags(mail.getIndex(), mail.getTrashFlags(), UndineDatabase.FLAG_TRASH);
+    }
+
+    /**
+     * 保存先を閉じる。データベースはプラグイン側で閉じるので、ここでは何もしない。
+     * @see org.bitbucket.ucchy.undine.MailStorage#close()
+     */
+    @Override
+    public void close() {
+        // do nothing.
+    }
+
+    /**
+     * 指定されたメールの、指定された種類のフラグを置き換える
+     * @param index インデクス
+     * @param flags フラグが設定されている人
+     * @param flag フラグの種類
+     * @throws MailStorageException 書き込みに失敗した場合
+     */
+    private void updateFlags(int index, List<MailSender> flags, int flag) {
+
+        synchronized (database) {
+            Connection connection = database.getConnection();
+            try {
+                connection.setAutoCommit(false);
+                try (PreparedStatement delete = connection.prepareStatement(
+                            "DELETE FROM mail_flags WHERE idx = ? AND flag = ?");
+                        PreparedStatement insert = connection.prepareStatement(
+                            "INSERT OR IGNORE INTO mail_flags (idx, player, flag) VALUES (?, ?, ?)")) {
+                    delete.setInt(1, index);
+                    delete.setInt(2, flag);
+                    delete.executeUpdate();
+                    addFlagBatch(insert, index, flags, flag);
+                    insert.executeBatch();
+                }
+                connection.commit();
+            } catch (SQLException e) {
+                database.rollback();
+                throw new MailStorageException("Could not save flags of mail " + index + ".", e);
+            } finally {
+                database.resetAutoCommit();
+            }
+        }
+    }
+
+    /**
+     * フラグの挿入をバッチに追加する
+     * @param statement ステートメント
+     * @param index インデクス
+     * @param flags フラグが設定されている人
+     * @param flag フラグの種類
+     * @throws SQLException
+     */
+    private static void addFlagBatch(PreparedStatement statement,
+            int index, List<MailSender> flags, int flag) throws SQLException {
+        for ( MailSender sender : flags ) {
+            statement.setInt(1, index);
+            statement.setString(2, sender.toString());
+            statement.setInt(3, flag);
+            statement.addBatch();
+        }
+    }
+
+    /**
+     * 指定されたメールの宛先（宛先と、グループを展開した宛先）を取得する
+     * @param mail メール
+     * @return 宛先
+     */
+    private static HashSet<String> getRecipientKeys(MailData mail) {
+        HashSet<String> keys = new HashSet<String>();
+        for ( MailSender to : mail.getTo() ) {
+            keys.add(to.toString());
+        }
+        if ( mail.getToTotal() != null ) {
+            for ( MailSender to : mail.getToTotal() ) {
+                keys.add(to.toString());
+            }
+        }
+        return keys;
+    }
+
+    // マップからリストを取得する。無い場合は空のリストを返す。
+    private static List<String> getOrEmpty(HashMap<Integer, List<String>> map, int index) {
+        List<String> list = map.get(index);
+        return list != null ? list : new ArrayList<String>();
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2020
+ */
+package org.bitbucket.ucchy.undine;
+
+/**
+ * データの保存形式
+ * @author ucchy
+ */
+public enum StorageType {
+
+    /** 1データ1ファイルのYamlで保存する */
+    YAML,
+
+    /** 1データ1ファイルのバイナリ形式で保存する（メールデータ以外はYamlで保存する） */
+    BINARY,
+
+    /** 単一ファイルのSQLiteデータベースに保存する */
+    SQLITE,
+    ;
+
+    /**
+     * 文字列からStorageTypeを作成して返す
+     * @param str 文字列
+     * @param def デフォルト
+     * @return StorageType
+     */
+    public static StorageType getFromString(String str, StorageType def) {
+        if ( str == null ) return def;
+        for ( StorageType type : values() ) {
+            if ( type.toString().equals(str.toUpperCase()) ) return type;
+        }
+        return def;
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2020
+ */
+package org.bitbucket.ucchy.undine;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * リクエストの送信間隔を制御するトークンバケット。
+ * トークンは一定の速度で補充され、バケットの容量まで貯めておける。
+ * リクエストを送る前にトークンを1つ取得し、トークンが無い場合は補充されるまで待つ。
+ * @author ucchy
+ */
+public class TokenBucket {
+
+    private final int capacity;
+    private final double tokensPerNano;
+
+    private double tokens;
+    private long lastRefill;
+    private long pausedUntil;
+
+    /**
+     * コンストラクタ
+     * @param capacity バケットの容量（連続して取得できるトークンの数）
+     * @param perMinute 1分あたりに補充されるトークンの数
+     */
+    public TokenBucket(int capacity, int perMinute) {
+        this.capacity = Math.max(capacity, 1);
+        this.tokensPerNano = Math.max(perMinute, 1) / (double)TimeUnit.MINUTES.toNanos(1);
+        this.tokens = this.capacity;
+        this.lastRefill = System.nanoTime();
+        this.pausedUntil = lastRefill;
+    }
+
+    /**
+     * トークンを1つ取得する。取得できるまで、呼び出し元のスレッドを待機させる。
+     * @throws InterruptedException 待機中に割り込まれた場合
+     */
+    public void acquire() throws InterruptedException {
+        long wait;
+        while ( (wait = tryAcquire()) > 0 ) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+
+    /**
+     * トークンを1つ取得する。取得できない場合は待機せずに、取得できるまでの時間を返す。
+     * @return 取得できた場合は0、取得できなかった場合は取得できるまでの時間（ナノ秒）
+     */
+    public synchronized long tryAcquire() {
+        long now = System.nanoTime();
+        if ( now - pausedUntil < 0 ) {
+            return pausedUntil - now;
+        }
+        refill(now);
+        if ( tokens >= 1 ) {
+            tokens -= 1;
+            return 0;
+        }
+        return Math.max((long)Math.ceil((1 - tokens) / tokensPerNano), 1);
+    }
+
+    /**
+     * 指定された時間だけ、トークンの取得を停止する。
+     * サーバーからリクエスト過多の応答があった場合などに使用する。
+     * @param millis 停止する時間（ミリ秒）
+     */
+    public synchronized void pause(long millis) {
+        long now = System.nanoTime();
+        long until = now + TimeUnit.MILLISECONDS.toNanos(millis);
+        if ( until - pausedUntil > 0 ) {
+            pausedUntil = until;
+        }
+        tokens = 0;
+        lastRefill = pausedUntil;
+    }
+
+    /**
+     * 1分あたりに補充されるトークンの数を返す
+     * @return 1分あたりのトークンの数
+     */
+    public double getRatePerMinute() {
+        return tokensPerNano * TimeUnit.MINUTES.toNanos(1);
+    }
+
+    // 経過時間に応じてトークンを補充する
+    private void refill(long now) {
+        long elapsed = now - lastRefill;
+        if ( elapsed <= 0 ) return;
+        tokens = Math.min(capacity, tokens + elapsed * tokensPerNano);
+        lastRefill = now;
+    }
+}
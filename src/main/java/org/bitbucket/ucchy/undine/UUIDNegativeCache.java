@@ -0,0 +1,192 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2020
+ */
+package org.bitbucket.ucchy.undine;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * UUIDが見つからなかったプレイヤー名のキャッシュ。
+ * <p>
+ * 存在しないプレイヤー名（/mail to の打ち間違いや、名前を変更したプレイヤーの古い名前など）を
+ * 何度もMojangのサーバーへ問い合わせないように、一定時間（TTL）の間は「見つからない」という結果を覚えておく。
+ * 保持する件数には上限があり、上限を超えた場合は最も長く参照されていないものから削除する。
+ * </p>
+ * @author ucchy
+ */
+public class UUIDNegativeCache {
+
+    /** キャッシュファイルの名前 */
+    protected static final String FILE_NAME = "negative.dat";
+
+    private static final int MAGIC = 0x554e4547;
+    private static final int VERSION = 1;
+
+    // 小文字にしたプレイヤー名 → 有効期限（ミリ秒）、参照順
+    private LinkedHashMap<String, Long> entries;
+    private long ttl;
+    private boolean isDirty;
+
+    /**
+     * コンストラクタ
+     * @param maxSize 保持する最大の件数
+     * @param ttl 見つからなかった結果を覚えておく時間（ミリ秒）
+     */
+    public UUIDNegativeCache(final int maxSize, long ttl) {
+        this.entries = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > maxSize;
+            }
+        };
+        this.ttl = ttl;
+    }
+
+    /**
+     * 見つからなかった結果を覚えておく時間を設定する。設定済みのデータの有効期限は変わらない。
+     * @param ttl 時間（ミリ秒）
+     */
+    public synchronized void setTtl(long ttl) {
+        this.ttl = ttl;
+    }
+
+    /**
+     * 指定されたプレイヤー名が、見つからなかったプレイヤー名として記録されているかどうかを返す
+     * @param name プレイヤー名
+     * @return 有効期限内の記録があるかどうか
+     */
+    public synchronized boolean contains(String name) {
+        if ( name == null ) return false;
+        String key = name.toLowerCase();
+        Long expires = entries.get(key);
+        if ( expires == null ) return false;
+        if ( expires < System.currentTimeMillis() ) {
+            entries.remove(key);
+            isDirty = true;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 指定されたプレイヤー名を、見つからなかったプレイヤー名として記録する
+     * @param name プレイヤー名
+     */
+    public synchronized void add(String name) {
+        if ( name == null || ttl <= 0 ) return;
+        entries.put(name.toLowerCase(), System.currentTimeMillis() + ttl);
+        isDirty = true;
+    }
+
+    /**
+     * 指定されたプレイヤー名の記録を削除する。UUIDが見つかった場合に使用する。
+     * @param name プレイヤー名
+     */
+    public synchronized void remove(String name) {
+        if ( name == null ) return;
+        if ( entries.remove(name.toLowerCase()) != null ) {
+            isDirty = true;
+        }
+    }
+
+    /**
+     * 記録されている件数を返す（有効期限切れのものも含む）
+     * @return 件数
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * 全ての記録を削除する
+     */
+    public synchronized void clear() {
+        entries.clear();
+        isDirty = true;
+    }
+
+    /**
+     * 指定されたフォルダのキャッシュファイルから、有効期限内の記録を読み込む
+     * @param folder フォルダ
+     */
+    public synchronized void load(File folder) {
+
+        File file = new File(folder, FILE_NAME);
+        if ( !file.exists() ) return;
+
+        long now = System.currentTimeMillis();
+        try {
+            DataInputStream in = new DataInputStream(
+                    new ByteArrayInputStream(Files.readAllBytes(file.toPath())));
+            if ( in.readInt() != MAGIC || in.readInt() > VERSION ) return;
+            while ( true ) {
+                String name = in.readUTF();
+                long expires = in.readLong();
+                if ( expires >= now ) {
+                    entries.put(name, expires);
+                }
+            }
+        } catch (EOFException e) {
+            // ファイルの終端。
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        isDirty = false;
+    }
+
+    /**
+     * 変更があった場合は、有効期限内の記録を、指定されたフォルダのキャッシュファイルへ保存する
+     * @param folder フォルダ
+     */
+    public synchronized void save(File folder) {
+
+        if ( !isDirty ) return;
+
+        File file = new File(folder, FILE_NAME);
+        File temp = new File(folder, FILE_NAME + ".tmp");
+        long now = System.currentTimeMillis();
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+            while ( it.hasNext() ) {
+                Map.Entry<String, Long> entry = it.next();
+                if ( entry.getValue() < now ) {
+                    it.remove();
+                    continue;
+                }
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue());
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            temp.delete();
+            return;
+        }
+
+        try {
+            Utility.replaceFile(temp, file);
+        } catch (IOException e) {
+            e.printStackTrace();
+            temp.delete();
+            UndineMailer.getInstance().getLogger().warning("Could not save " + file.getName() + ".");
+            return;
+        }
+        isDirty = false;
+    }
+}
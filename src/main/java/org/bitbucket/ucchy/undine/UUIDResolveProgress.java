@@ -0,0 +1,90 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2020
+ */
+package org.bitbucket.ucchy.undine;
+
+/**
+ * 複数のプレイヤー名のUUIDをまとめて問い合わせるときの、進捗状況。
+ * @author ucchy
+ */
+public class UUIDResolveProgress {
+
+    private final int total;
+    private final long startTime;
+    private volatile int done;
+
+    /**
+     * コンストラクタ
+     * @param total 問い合わせるプレイヤー名の数
+     */
+    public UUIDResolveProgress(int total) {
+        this.total = total;
+        this.startTime = System.currentTimeMillis();
+    }
+
+    /**
+     * 処理が終わったプレイヤー名の数を設定する
+     * @param done 処理が終わったプレイヤー名の数
+     */
+    protected void setDone(int done) {
+        this.done = done;
+    }
+
+    /**
+     * 問い合わせるプレイヤー名の数を返す
+     * @return プレイヤー名の数
+     */
+    public int getTotal() {
+        return total;
+    }
+
+    /**
+     * 処理が終わったプレイヤー名の数を返す
+     * @return 処理が終わったプレイヤー名の数
+     */
+    public int getDone() {
+        return done;
+    }
+
+    /**
+     * 処理が終わったかどうかを返す
+     * @return 処理が終わったかどうか
+     */
+    public boolean isFinished() {
+        return done >= total;
+    }
+
+    /**
+     * 進捗の割合を返す
+     * @return 進捗（0から100までのパーセント）
+     */
+    public int getPercentage() {
+        if ( total <= 0 ) return 100;
+        return (int)(done * 100L / total);
+    }
+
+    /**
+     * これまでの処理速度から、残りの処理にかかる時間を見積もる
+     * @return 残りの時間（ミリ秒）、見積もれない場合は-1
+     */
+    public long getEtaMillis() {
+        int current = done;
+        if ( current >= total ) return 0;
+        if ( current <= 0 ) return -1;
+        long elapsed = System.currentTimeMillis() - startTime;
+        return elapsed * (total - current) / current;
+    }
+
+    /**
+     * 進捗状況を、ログに出力する形式の文字列にする
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        long eta = getEtaMillis();
+        return done + "/" + total + " (" + getPercentage() + "%), ETA: "
+                + (eta < 0 ? "-" : (eta / 1000) + "s");
+    }
+}
@@ -8,6 +8,7 @@ package org.bitbucket.ucchy.undine;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
@@ -23,13 +24,14 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
 import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -51,12 +53,27 @@ public class UUIDResolver {
     private static final Pattern API_MAX_PROFILE_BATCH_SIZE_PATTERN = Pattern.compile(".*Not more that (?<batchSize>\\d+) profile name per call is allowed.*");
     private static final String UUID_FORMAT_REGEX = "(\\w{8})(\\w{4})(\\w{4})(\\w{4})(\\w{12})";
     private static final String UUID_FORMAT_REPLACE_TO = "$1-$2-$3-$4-$5";
-    private static final long MOJANG_QUERY_RETRY_TIME = 600000L;
+    private static final long MOJANG_QUERY_RETRY_TIME = 600000L; // Max wait time after "too many requests".
+    private static final long DEFAULT_RETRY_AFTER = 60000L; // Wait time when Retry-After is not given.
+    private static final int DEFAULT_REQUESTS_PER_MINUTE = 60;
+    private static final int DEFAULT_REQUEST_BURST = 10;
+    private static final String DEFAULT_API_URL = "https://api.mojang.com";
+    private static final int NEGATIVE_CACHE_MAX_SIZE = 10000;
+    private static final long DEFAULT_NEGATIVE_CACHE_TTL = 1000L*3600* 24;
 
     private static final Gson GSON = new Gson();
-    private static final Map<String, String> UUID_CACHE = new HashMap<String, String>();
+    private static final Logger FALLBACK_LOGGER = Logger.getLogger(UUIDResolver.class.getName());
+    private static final Map<String, String> UUID_CACHE = new ConcurrentHashMap<String, String>();
+    // UUIDが見つからなかったプレイヤー名
+    private static final UUIDNegativeCache NEGATIVE_CACHE =
+            new UUIDNegativeCache(NEGATIVE_CACHE_MAX_SIZE, DEFAULT_NEGATIVE_CACHE_TTL);
+
+    // MojangのAPIのURL。テストではローカルのスタブサーバーに差し替える。
+    private static volatile String apiUrl = DEFAULT_API_URL;
 
     private boolean onlineMode = false;
+    private TokenBucket limiter;
+    private TokenBucket interactiveLimiter;
 
     /**
      * コンストラクタ
@@ -70,10 +87,48 @@ public class UUIDResolver {
      * @param useUserCacheJson usercache.jsonからキャッシュの初期値を取得するかどうか
      */
     public UUIDResolver(boolean onlineMode) {
+        this(onlineMode, new TokenBucket(DEFAULT_REQUEST_BURST, DEFAULT_REQUESTS_PER_MINUTE));
+    }
+
+    /**
+     * コンストラクタ
+     * @param onlineMode Mojangのサーバーに問い合わせるかどうか
+     * @param limiter Mojangのサーバーへのリクエストの送信間隔を制御するトークンバケット
+     */
+    public UUIDResolver(boolean onlineMode, TokenBucket limiter) {
+        this(onlineMode, limiter, new TokenBucket(DEFAULT_REQUEST_BURST, DEFAULT_REQUESTS_PER_MINUTE));
+    }
+
+    /**
+     * コンストラクタ
+     * @param onlineMode Mojangのサーバーに問い合わせるかどうか
+     * @param limiter まとめて問い合わせるときの、リクエストの送信間隔を制御するトークンバケット
+     * @param interactiveLimiter 1人ずつ問い合わせるときの、リクエストの送信間隔を制御するトークンバケット。
+     * コマンドからの問い合わせが、まとめて問い合わせている間に待たされないように、別のものを指定する。
+     */
+    public UUIDResolver(boolean onlineMode, TokenBucket limiter, TokenBucket interactiveLimiter) {
         this.onlineMode = onlineMode;
+        this.limiter = limiter;
+        this.interactiveLimiter = interactiveLimiter;
         if ( !onlineMode ) loadUserCache();
     }
 
+    /**
+     * オンラインモードで問い合わせる、MojangのAPIのURLを設定する
+     * @param url APIのURL（末尾の "/" は付けない）、nullを指定した場合は既定のURLに戻す
+     */
+    protected static void setApiUrl(String url) {
+        apiUrl = (url != null) ? url : DEFAULT_API_URL;
+    }
+
+    /**
+     * UUIDが見つからなかったプレイヤー名のキャッシュを取得する
+     * @return UUIDが見つからなかったプレイヤー名のキャッシュ
+     */
+    protected static UUIDNegativeCache getNegativeCache() {
+        return NEGATIVE_CACHE;
+    }
+
     // usercache.jsonを、uuidCacheの初期値としてロードする
     private void loadUserCache() {
 
@@ -88,7 +143,7 @@ public class UUIDResolver {
             CacheData[] dat = new Gson().fromJson(reader, CacheData[].class);
             Date now = new Date();
             for (CacheData d : dat) {
-                if (now.before(d.getExpiresDate())) {
+                if (d.name != null && d.uuid != null && now.before(d.getExpiresDate())) {
                     loaded++;
                     UUID_CACHE.put(d.name, d.uuid);
                 }
@@ -97,7 +152,7 @@ public class UUIDResolver {
             e.printStackTrace();
         }
 
-        System.out.println("Loaded " + loaded + " UUIDs from local cache.");
+        getLogger().info("Loaded " + loaded + " UUIDs from local cache.");
     }
 
     /**
@@ -127,17 +182,21 @@ public class UUIDResolver {
     private NameChange[] getOnlineNamesFromUUID(String uuid) {
         NameChange[] names = null;
         try {
-            Scanner jsonScanner = new Scanner((new URL("https://api.mojang.com/user/profiles/" + uuid.replaceAll("-", "") + "/names")).openConnection().getInputStream(), "UTF-8");
+            if ( !acquireInteractive() ) return null;
+            Scanner jsonScanner = new Scanner((new URL(apiUrl + "/user/profiles/" + uuid.replaceAll("-", "") + "/names")).openConnection().getInputStream(), "UTF-8");
             names = GSON.fromJson(jsonScanner.next(), NameChange[].class);
             jsonScanner.close();
         } catch(IOException e) {
             if (e.getMessage().contains("HTTP response code: 429")) {
-                System.out.println("You have reached the request limit of the Mojang api! Please retry later!");
+                getLogger().warning("You have reached the request limit of the Mojang api! Please retry later!");
+                pause(DEFAULT_RETRY_AFTER);
             } else {
-                System.out.println("Looks like there is a problem with the connection with Mojang. Please retry later.");
+                getLogger().warning("Looks like there is a problem with the connection with Mojang. Please retry later.");
             }
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
         } catch(Exception e) {
-            System.out.println("Looks like there is no player with this uuid!\n UUID: \"" + uuid + "\"");
+            getLogger().warning("Looks like there is no player with this uuid!\n UUID: \"" + uuid + "\"");
         }
         return names;
     }
@@ -172,39 +231,63 @@ public class UUIDResolver {
         if ((at == null || at.after(new Date(System.currentTimeMillis() - 1000L*24*3600* 30))) && UUID_CACHE.containsKey(name)) {
             return UUID_CACHE.get(name);
         }
+        if (NEGATIVE_CACHE.contains(name)) {
+            // Recently looked up and not found, including all of the fallbacks below.
+            return null;
+        }
 
         String uuid = null;
+        try {
+            if ( !acquireInteractive() ) return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
         try (BufferedReader in = new BufferedReader(new InputStreamReader(
-                new URL("https://api.mojang.com/users/profiles/minecraft/" + name + ((at != null) ? "?at=" + (at.getTime()/1000L) : "")).openStream(), StandardCharsets.UTF_8))) {
+                new URL(apiUrl + "/users/profiles/minecraft/" + name + ((at != null) ? "?at=" + (at.getTime()/1000L) : "")).openStream(), StandardCharsets.UTF_8))) {
             uuid = (((JsonObject) new JsonParser().parse(in)).get("id")).getAsString();
             if (uuid != null && (at == null || at.after(new Date(System.currentTimeMillis() - 1000L*24*3600* 30)))) {
                 UUID_CACHE.put(name, uuid);
+                NEGATIVE_CACHE.remove(name);
             }
+        } catch(FileNotFoundException e) {
+            // 404 Not Found
+            uuid = getOnlineUUIDFallback(name, at);
         } catch(MalformedURLException e) {
-            System.out.println("Failed to get uuid cause of a malformed url!\n Name: \"" + name + "\" Date: " + ((at != null) ? "?at=" + at.getTime()/1000L : "null"));
+            getLogger().warning("Failed to get uuid cause of a malformed url!\n Name: \"" + name + "\" Date: " + ((at != null) ? "?at=" + at.getTime()/1000L : "null"));
         } catch(IOException e) {
             if (e.getMessage().contains("HTTP response code: 429")) {
-                System.out.println("You have reached the request limit of the mojang api! Please retry later!");
+                getLogger().warning("You have reached the request limit of the mojang api! Please retry later!");
+                pause(DEFAULT_RETRY_AFTER);
             } else {
-                System.out.println("Looks like there is a problem with the connection with mojang. Please retry later.");
+                getLogger().warning("Looks like there is a problem with the connection with mojang. Please retry later.");
             }
         } catch(Exception e) {
-            if(at == null) {
-                // We can't resolve the uuid for the player
-                System.out.println("Unable to get UUID for: " + name + "!");
-            } else if(at.getTime() == 0) {
-                // If it's not his first name maybe it's his current name
-                System.out.println("Unable to get UUID for: " + name + " at 0! Trying without date!");
-                uuid = getOnlineUUID(name, null);
-            } else {
-                // If we cant get the player with the date he was here last time it's likely that it is his first name
-                System.out.println("Unable to get UUID for: " + name + " at " + at.getTime()/1000L + "! Trying at=0!");
-                uuid = getOnlineUUID(name, new Date(0));
-            }
+            // 204 No Content
+            uuid = getOnlineUUIDFallback(name, at);
         }
         return uuid;
     }
 
+    // 指定された時点でプレイヤーが見つからなかった場合に、時点を変えて問い合わせ直す。
+    // 時点を指定せずに問い合わせても見つからなかった場合は、見つからなかったプレイヤー名として記録する。
+    private String getOnlineUUIDFallback(String name, Date at) {
+        if(at == null) {
+            // We can't resolve the uuid for the player
+            getLogger().info("Unable to get UUID for: " + name + "!");
+            NEGATIVE_CACHE.add(name);
+            return null;
+        } else if(at.getTime() == 0) {
+            // If it's not his first name maybe it's his current name
+            getLogger().info("Unable to get UUID for: " + name + " at 0! Trying without date!");
+            return getOnlineUUID(name, null);
+        } else {
+            // If we cant get the player with the date he was here last time it's likely that it is his first name
+            getLogger().info("Unable to get UUID for: " + name + " at " + at.getTime()/1000L + "! Trying at=0!");
+            return getOnlineUUID(name, new Date(0));
+        }
+    }
+
     private static int BATCH_SIZE = 10; // Limit from Mojang
 
     /**
@@ -213,8 +296,18 @@ public class UUIDResolver {
      * @return UUID
      */
     protected Map<String, String> getUUIDsFromNames(Collection<String> names) {
+        return getUUIDsFromNames(names, null);
+    }
+
+    /**
+     * 複数のプレイヤー名からUUIDをまとめて取得する
+     * @param names プレイヤー名
+     * @param listener バッチごとの結果を受け取るリスナー、不要ならnull
+     * @return UUID
+     */
+    protected Map<String, String> getUUIDsFromNames(Collection<String> names, ResolveListener listener) {
         Map<String, String> result = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
-        for (Map.Entry<String, UUID> entry : getUUIDsFromNamesAsUUIDs(names).entrySet()) {
+        for (Map.Entry<String, UUID> entry : getUUIDsFromNamesAsUUIDs(names, listener).entrySet()) {
             result.put(entry.getKey(), entry.getValue().toString());
         }
         return result;
@@ -226,6 +319,18 @@ public class UUIDResolver {
      * @return UUID
      */
     protected Map<String, UUID> getUUIDsFromNamesAsUUIDs(Collection<String> names) {
+        return getUUIDsFromNamesAsUUIDs(names, null);
+    }
+
+    /**
+     * 複数のプレイヤー名からUUIDをまとめて取得する。
+     * オンラインモードでは、トークンバケットで送信間隔を制御しながら、許可されている最大の件数ずつ問い合わせる。
+     * リクエスト過多の応答があった場合は、Retry-Afterで指定された時間だけ停止してから、同じバッチを再送する。
+     * @param names プレイヤー名
+     * @param listener バッチごとの結果を受け取るリスナー、不要ならnull
+     * @return UUID
+     */
+    protected Map<String, UUID> getUUIDsFromNamesAsUUIDs(Collection<String> names, ResolveListener listener) {
 
         Map<String, UUID> result = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
 
@@ -237,89 +342,185 @@ public class UUIDResolver {
                 if ( p == null ) continue;
                 result.put(name, p.getUniqueId());
             }
+            if ( listener != null ) listener.onResolved(result, names.size());
             return result;
         }
 
-        List<String> batch = new ArrayList<>(BATCH_SIZE);
-        Iterator<String> players = names.iterator();
-        boolean success;
-        int fromCache = 0, fromWeb = 0;
-        while (players.hasNext()) {
-            while (players.hasNext() && batch.size() < BATCH_SIZE) {
-                String name = players.next();
-                if (UUID_CACHE.containsKey(name)) {
-                    result.put(name, UUID.fromString(UUID_CACHE.get(name).replaceAll(UUID_FORMAT_REGEX, UUID_FORMAT_REPLACE_TO)));
-                    fromCache++;
-                } else {
-                    batch.add(name);
-                }
+        // キャッシュにあるものは、問い合わせずに結果に入れる。
+        // 見つからなかったことが記録されているものは、問い合わせずに処理済みにする。
+        List<String> pending = new ArrayList<>();
+        Map<String, UUID> cached = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        int skipped = 0;
+        for (String name : names) {
+            String uuid = UUID_CACHE.get(name);
+            if (uuid != null) {
+                cached.put(name, UUID.fromString(uuid.replaceAll(UUID_FORMAT_REGEX, UUID_FORMAT_REPLACE_TO)));
+            } else if (NEGATIVE_CACHE.contains(name)) {
+                skipped++;
+            } else {
+                pending.add(name);
             }
+        }
+        result.putAll(cached);
+        int fromCache = cached.size(), fromWeb = 0;
+        int done = fromCache + skipped;
+        if ( listener != null && done > 0 ) listener.onResolved(cached, done);
 
-            do {
-                HttpURLConnection connection = null;
-                try {
-                    connection = (HttpURLConnection) new URL("https://api.mojang.com/profiles/minecraft").openConnection();
-                    connection.setRequestMethod("POST");
-                    connection.setRequestProperty("Content-Type", "application/json; encoding=UTF-8");
-                    connection.setUseCaches(false);
-                    connection.setDoInput(true);
-                    connection.setDoOutput(true);
-                    try (OutputStream out = connection.getOutputStream()) {
-                        out.write(GSON.toJson(batch).getBytes(Charsets.UTF_8));
-                    }
-                    Profile[] profiles;
-                    try (Reader in = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
-                        profiles = GSON.fromJson(in, Profile[].class);
-                    }
-                    for (Profile profile : profiles) {
-                        result.put(profile.name, profile.getUUID());
-                        UUID_CACHE.put(profile.name, profile.getUUID().toString());
-                        fromWeb++;
+        int position = 0;
+        long backoff = DEFAULT_RETRY_AFTER;
+        while (position < pending.size()) {
+
+            int size = Math.min(BATCH_SIZE, pending.size() - position);
+            List<String> batch = pending.subList(position, position + size);
+
+            HttpURLConnection connection = null;
+            try {
+                limiter.acquire();
+                connection = (HttpURLConnection) new URL(apiUrl + "/profiles/minecraft").openConnection();
+                connection.setRequestMethod("POST");
+                connection.setRequestProperty("Content-Type", "application/json; encoding=UTF-8");
+                connection.setUseCaches(false);
+                connection.setDoInput(true);
+                connection.setDoOutput(true);
+                try (OutputStream out = connection.getOutputStream()) {
+                    out.write(GSON.toJson(batch).getBytes(Charsets.UTF_8));
+                }
+                Profile[] profiles;
+                try (Reader in = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
+                    profiles = GSON.fromJson(in, Profile[].class);
+                }
+                Map<String, UUID> resolved = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+                for (Profile profile : profiles) {
+                    resolved.put(profile.name, profile.getUUID());
+                    UUID_CACHE.put(profile.name, profile.getUUID().toString());
+                    NEGATIVE_CACHE.remove(profile.name);
+                    fromWeb++;
+                }
+                for (String name : batch) {
+                    if (!resolved.containsKey(name)) {
+                        NEGATIVE_CACHE.add(name);
                     }
-                } catch(IOException e) {
-                    try {
-                        if(connection != null) {
-                            if(connection.getResponseCode() == 429) {
-                                System.out.println("Reached the request limit of the mojang api!\nConverting will be paused for 10 minutes and then continue!");
-                                Thread.sleep(MOJANG_QUERY_RETRY_TIME);
-                                success = false;
+                }
+                result.putAll(resolved);
+                position += size;
+                done += size;
+                backoff = DEFAULT_RETRY_AFTER;
+                if ( listener != null ) listener.onResolved(resolved, done);
+
+            } catch(InterruptedException e) {
+                getLogger().warning("Converting was interrupted. " + done + "/" + names.size() + " names are processed.");
+                Thread.currentThread().interrupt();
+                return result;
+
+            } catch(IOException e) {
+                try {
+                    if(connection != null) {
+                        if(connection.getResponseCode() == 429) {
+                            long wait = getRetryAfter(connection, backoff);
+                            getLogger().warning("Reached the request limit of the mojang api!\nConverting will be paused for " + (wait / 1000L) + " seconds and then continue!");
+                            pause(wait);
+                            backoff = Math.min(backoff * 2, MOJANG_QUERY_RETRY_TIME);
+                            continue;
+                        } else {
+                            InputStream errorStream = connection.getErrorStream();
+                            StringBuilder errorBuilder = new StringBuilder();
+                            int c;
+                            while (errorStream != null && (c = errorStream.read()) != -1) {
+                                errorBuilder.append((char) c);
+                            }
+                            String errorMessage = errorBuilder.toString();
+                            getLogger().warning("Mojang responded with status code: " + connection.getResponseCode() + " Message: " + errorMessage);
+                            Matcher matcher = API_MAX_PROFILE_BATCH_SIZE_PATTERN.matcher(errorMessage);
+                            if (connection.getResponseCode() == 400 && matcher.matches()) {
+                                BATCH_SIZE = Integer.parseInt(matcher.group("batchSize"));
+                                getLogger().info("Reducing batch size to " + BATCH_SIZE + " and try again ...");
                                 continue;
                             } else {
-                                InputStream errorStream = connection.getErrorStream();
-                                StringBuilder errorBuilder = new StringBuilder();
-                                int c;
-                                while ((c = errorStream.read()) != -1) {
-                                    errorBuilder.append((char) c);
-                                }
-                                String errorMessage = errorBuilder.toString();
-                                System.out.println("Mojang responded with status code: " + connection.getResponseCode() + " Message: " + errorMessage);
-                                Matcher matcher = API_MAX_PROFILE_BATCH_SIZE_PATTERN.matcher(errorMessage);
-                                if (connection.getResponseCode() == 400 && matcher.matches()) {
-                                    BATCH_SIZE = Integer.parseInt(matcher.group("batchSize"));
-                                    System.out.println("Reducing batch size to " + BATCH_SIZE + " and try again ...");
-                                    return getUUIDsFromNamesAsUUIDs(names);
-                                } else {
-                                    e.printStackTrace();
-                                }
+                                e.printStackTrace();
                             }
-                        } else {
-                            e.printStackTrace();
                         }
+                    } else {
+                        e.printStackTrace();
                     }
-                    catch(InterruptedException | IOException ignore) {}
-
-                    System.out.println("Could not convert all names to uuids because of an issue. Please check the log.");
-                    return result;
                 }
-                batch.clear();
-                success = true;
-            } while(!success);
+                catch(IOException ignore) {}
+
+                getLogger().warning("Could not convert all names to uuids because of an issue. Please check the log.");
+                return result;
+            }
         }
 
-        System.out.println("Converted " + (fromCache + fromWeb) + "/" + names.size() + " UUIDs (" + fromCache + " of them from the cache and " + fromWeb + " from Mojang).");
+        getLogger().info("Converted " + (fromCache + fromWeb) + "/" + names.size() + " UUIDs (" + fromCache + " of them from the cache and " + fromWeb + " from Mojang).");
         return result;
     }
 
+    // 1人ずつ問い合わせるためのトークンを取得する。
+    // メインスレッドでは、サーバーを止めないように待機せず、取得できなければすぐにfalseを返す。
+    private boolean acquireInteractive() throws InterruptedException {
+        if ( isPrimaryThread() ) {
+            if ( interactiveLimiter.tryAcquire() == 0 ) return true;
+            getLogger().warning("Skipped a lookup on the main thread because of the request limit of the mojang api.");
+            return false;
+        }
+        interactiveLimiter.acquire();
+        return true;
+    }
+
+    // リクエスト過多の応答があった場合に、どちらのトークンバケットも停止する
+    private void pause(long millis) {
+        limiter.pause(millis);
+        interactiveLimiter.pause(millis);
+    }
+
+    // メインスレッドで実行されているかどうか
+    private static boolean isPrimaryThread() {
+        return Bukkit.getServer() != null && Bukkit.isPrimaryThread();
+    }
+
+    // ログの出力先を取得する。プラグインが動作していない場合（テストなど）は、このクラスのロガーを返す。
+    private static Logger getLogger() {
+        if ( Bukkit.getServer() != null ) {
+            UndineMailer plugin = UndineMailer.getInstance();
+            if ( plugin != null ) return plugin.getLogger();
+        }
+        return FALLBACK_LOGGER;
+    }
+
+    /**
+     * リクエスト過多の応答のRetry-Afterヘッダーから、待機する時間を取得する
+     * @param connection 接続
+     * @param defaultMillis ヘッダーが無い場合の待機時間（ミリ秒）
+     * @return 待機する時間（ミリ秒）
+     */
+    private static long getRetryAfter(HttpURLConnection connection, long defaultMillis) {
+        String value = connection.getHeaderField("Retry-After");
+        if ( value != null ) {
+            try {
+                return Math.max(Long.parseLong(value.trim()), 1) * 1000L;
+            } catch (NumberFormatException e) {
+                long date = connection.getHeaderFieldDate("Retry-After", -1);
+                if ( date > 0 ) {
+                    return Math.max(date - System.currentTimeMillis(), 1000L);
+                }
+            }
+        }
+        return defaultMillis;
+    }
+
+    /**
+     * まとめて問い合わせたUUIDを、バッチごとに受け取るリスナー
+     * @author ucchy
+     */
+    public interface ResolveListener {
+
+        /**
+         * バッチの問い合わせが完了したときに呼び出される
+         * @param resolved このバッチで見つかったUUID
+         * @param done これまでに処理が終わったプレイヤー名の数
+         */
+        public void onResolved(Map<String, UUID> resolved, int done);
+    }
+
     public class NameChange {
         public String name;
         public long changedToAt;
@@ -120,6 +120,9 @@ public class UndineConfig {
     /** プレイヤーがログインした時に、未読一覧を表示するまでの時間（秒） */
     private int loginNotificationDelaySeconds;
 
+    /** 全体メールを受信した通知を、1tickあたりに送るプレイヤーの数（0なら全員に一度に送る） */
+    private int broadcastNotificationPerTick;
+
     /** ウェルカムメールを利用するかどうか。 */
     private boolean useWelcomeMail;
 
@@ -132,6 +135,18 @@ public class UndineConfig {
     /** UUIDのオンラインモード */
     private boolean uuidOnlineMode;
 
+    /** UUIDのオンラインモードで、1分あたりに送るリクエストの上限 */
+    private int uuidRequestsPerMinute;
+
+    /** UUIDのオンラインモードで、連続して送れるリクエストの上限 */
+    private int uuidRequestBurst;
+
+    /** UUIDが見つからなかったプレイヤー名を、問い合わせずに済ませる時間（時間単位） */
+    private int uuidNegativeCacheHours;
+
+    /** メールデータ、グループデータ、UUIDキャッシュの保存形式 */
+    private StorageType storageType;
+
     private UndineMailer parent;
 
     /**
@@ -223,6 +238,7 @@ public class UndineConfig {
         mailStorageTermDays = conf.getInt("mailStorageTermDays", 30);
         mailSpamProtectionSeconds = conf.getInt("mailSpamProtectionSeconds", 15);
         loginNotificationDelaySeconds = conf.getInt("loginNotificationDelaySeconds", 3);
+        broadcastNotificationPerTick = conf.getInt("broadcastNotificationPerTick", 0);
         useWelcomeMail = conf.getBoolean("useWelcomeMail", true);
         welcomeMailDelaySeconds = conf.getInt("welcomeMailDelaySeconds", 30);
         welcomeMailAttachments = getItemStackListFromConfig(
@@ -231,12 +247,28 @@ public class UndineConfig {
         prohibitItemsToAttach = conf.getStringList("prohibitItemsToAttach");
 
         uuidOnlineMode = conf.getBoolean("uuidOnlineMode", false);
+        uuidRequestsPerMinute = conf.getInt("uuidRequestsPerMinute", 60);
+        uuidRequestBurst = conf.getInt("uuidRequestBurst", 10);
+        uuidNegativeCacheHours = conf.getInt("uuidNegativeCacheHours", 24);
+        storageType = StorageType.getFromString(
+                conf.getString("storageType"), StorageType.YAML);
 
         // sendFeeは、マイナスが指定されていたら0に変更する
         if ( sendFee < 0 ) {
             sendFee = 0;
         }
 
+        // リクエストの上限は、1以上の数値に制限する
+        if ( uuidRequestsPerMinute < 1 ) {
+            uuidRequestsPerMinute = 1;
+        }
+        if ( uuidRequestBurst < 1 ) {
+            uuidRequestBurst = 1;
+        }
+        if ( uuidNegativeCacheHours < 0 ) {
+            uuidNegativeCacheHours = 0;
+        }
+
         // 添付ボックスは、1から6までの数値に制限する
         if ( attachBoxSize < 1 ) {
             attachBoxSize = 1;
@@ -280,6 +312,11 @@ public class UndineConfig {
         if ( loginNotificationDelaySeconds < 0 ) {
             loginNotificationDelaySeconds = 0;
         }
+
+        // broadcastNotificationPerTick は、マイナスが指定されていたら0に変更する
+        if ( broadcastNotificationPerTick < 0 ) {
+            broadcastNotificationPerTick = 0;
+        }
     }
 
     /**
@@ -527,6 +564,13 @@ public class UndineConfig {
         return loginNotificationDelaySeconds;
     }
 
+    /**
+     * @return broadcastNotificationPerTick
+     */
+    public int getBroadcastNotificationPerTick() {
+        return broadcastNotificationPerTick;
+    }
+
     /**
      * @return useWelcomeMail
      */
@@ -554,4 +598,32 @@ public class UndineConfig {
     public boolean isUuidOnlineMode() {
         return uuidOnlineMode;
     }
+
+    /**
+     * @return uuidRequestsPerMinute
+     */
+    public int getUuidRequestsPerMinute() {
+        return uuidRequestsPerMinute;
+    }
+
+    /**
+     * @return uuidRequestBurst
+     */
+    public int getUuidRequestBurst() {
+        return uuidRequestBurst;
+    }
+
+    /**
+     * @return uuidNegativeCacheHours
+     */
+    public int getUuidNegativeCacheHours() {
+        return uuidNegativeCacheHours;
+    }
+
+    /**
+     * @return storageType
+     */
+    public StorageType getStorageType() {
+        return storageType;
+    }
 }
@@ -0,0 +1,382 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2020
+ */
+package org.bitbucket.ucchy.undine;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.bukkit.configuration.file.YamlConfiguration;
+
+/**
+ * メールデータ、グループデータ、UUIDキャッシュを格納する、単一ファイルのSQLiteデータベース。
+ * SQLiteのJDBCドライバは、Bukkit(Spigot)サーバーに同梱されているものを使用する。
+ * @author ucchy
+ */
+public class UndineDatabase {
+
+    private static final String DRIVER = "org.sqlite.JDBC";
+    private static final String MIGRATED_SUFFIX = "_migrated";
+
+    /** 既読フラグ */
+    protected static final int FLAG_READ = 0;
+
+    /** ゴミ箱フラグ */
+    protected static final int FLAG_TRASH = 1;
+
+    private static final String[] SCHEMA = new String[] {
+        "CREATE TABLE IF NOT EXISTS mails ("
+                + "idx INTEGER PRIMARY KEY, sender TEXT NOT NULL, sent_date INTEGER NOT NULL, "
+                + "attachments INTEGER NOT NULL, cancelled INTEGER NOT NULL, data TEXT NOT NULL)",
+        "CREATE INDEX IF NOT EXISTS mails_sender ON mails (sender)",
+        "CREATE INDEX IF NOT EXISTS mails_sent_date ON mails (sent_date)",
+        "CREATE TABLE IF NOT EXISTS mail_recipients ("
+                + "idx INTEGER NOT NULL, recipient TEXT NOT NULL, PRIMARY KEY (idx, recipient))",
+        "CREATE INDEX IF NOT EXISTS mail_recipients_recipient ON mail_recipients (recipient)",
+        "CREATE TABLE IF NOT EXISTS mail_flags ("
+                + "idx INTEGER NOT NULL, player TEXT NOT NULL, flag INTEGER NOT NULL, "
+                + "PRIMARY KEY (idx, player, flag))",
+        "CREATE INDEX IF NOT EXISTS mail_flags_player ON mail_flags (player, flag)",
+        "CREATE TABLE IF NOT EXISTS mail_groups ("
+                + "name TEXT PRIMARY KEY, owner TEXT NOT NULL, data TEXT NOT NULL)",
+        "CREATE INDEX IF NOT EXISTS mail_groups_owner ON mail_groups (owner)",
+        "CREATE TABLE IF NOT EXISTS uuid_cache ("
+                + "uuid TEXT PRIMARY KEY, name TEXT NOT NULL, last_known_date INTEGER NOT NULL)",
+        "CREATE INDEX IF NOT EXISTS uuid_cache_name ON uuid_cache (name)",
+    };
+
+    private Connection connection;
+
+    /**
+     * コンストラクタ
+     * @param connection 接続
+     */
+    private UndineDatabase(Connection connection) {
+        this.connection = connection;
+    }
+
+    /**
+     * 指定されたファイルのデータベースを開く。テーブルが無い場合は作成する。
+     * @param file データベースファイル
+     * @return データベース、開けなかった場合はnull
+     */
+    protected static UndineDatabase open(File file) {
+
+        try {
+            Class.forName(DRIVER);
+            Connection connection = DriverManager.getConnection(
+                    "jdbc:sqlite:" + file.getAbsolutePath());
+            try (Statement statement = connection.createStatement()) {
+                statement.executeUpdate("PRAGMA journal_mode = WAL");
+                statement.executeUpdate("PRAGMA synchronous = NORMAL");
+                for ( String sql : SCHEMA ) {
+                    statement.executeUpdate(sql);
+                }
+            }
+            return new UndineDatabase(connection);
+        } catch (ClassNotFoundException e) {
+            e.printStackTrace();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * データベースへの接続を取得する。
+     * 複数のスレッドから使用されるため、使用する際はこのインスタンスで同期をとること。
+     * @return 接続
+     */
+    protected Connection getConnection() {
+        return connection;
+    }
+
+    /**
+     * データベースを閉じる
+     */
+    protected synchronized void close() {
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 保存されている全てのグループデータを、Yaml文字列として取得する
+     * @return グループデータのリスト
+     */
+    public synchronized List<String> loadGroups() {
+
+        List<String> result = new ArrayList<String>();
+        try (Statement statement = connection.createStatement();
+                ResultSet rs = statement.executeQuery("SELECT data FROM mail_groups")) {
+            while ( rs.next() ) {
+                result.add(rs.getString(1));
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return result;
+    }
+
+    /**
+     * グループデータを保存する
+     * @param name グループ名
+     * @param owner オーナー
+     * @param data Yaml文字列にしたグループデータ
+     */
+    public synchronized void saveGroup(String name, String owner, String data) {
+
+        try (PreparedStatement statement = connection.prepareStatement(
+                "INSERT OR REPLACE INTO mail_groups (name, owner, data) VALUES (?, ?, ?)")) {
+            statement.setString(1, name.toLowerCase());
+            statement.setString(2, owner);
+            statement.setString(3, data);
+            statement.executeUpdate();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * グループデータを削除する
+     * @param name グループ名
+     */
+    public synchronized void deleteGroup(String name) {
+
+        try (PreparedStatement statement = connection.prepareStatement(
+                "DELETE FROM mail_groups WHERE name = ?")) {
+            statement.setString(1, name.toLowerCase());
+            statement.executeUpdate();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 保存されている全てのUUIDキャッシュを取得する
+     * @return UUIDキャッシュのリスト
+     */
+    protected synchronized List<PlayerUuidCacheData> loadPlayerUuidCaches() {
+
+        List<PlayerUuidCacheData> result = new ArrayList<PlayerUuidCacheData>();
+        try (Statement statement = connection.createStatement();
+                ResultSet rs = statement.executeQuery(
+                        "SELECT name, uuid, last_known_date FROM uuid_cache")) {
+            while ( rs.next() ) {
+                result.add(new PlayerUuidCacheData(
+                        rs.getString(1), rs.getString(2), new Date(rs.getLong(3))));
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return result;
+    }
+
+    /**
+     * UUIDキャッシュを保存する
+     * @param data UUIDキャッシュ
+     */
+    protected synchronized void savePlayerUuidCache(PlayerUuidCacheData data) {
+        List<PlayerUuidCacheData> list = new ArrayList<PlayerUuidCacheData>();
+        list.add(data);
+        savePlayerUuidCaches(list);
+    }
+
+    /**
+     * UUIDキャッシュをまとめて保存する
+     * @param list UUIDキャッシュのリスト
+     * @return 保存に成功したかどうか
+     */
+    protected synchronized boolean savePlayerUuidCaches(List<PlayerUuidCacheData> list) {
+
+        try {
+            connection.setAutoCommit(false);
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "INSERT OR REPLACE INTO uuid_cache (uuid, name, last_known_date) VALUES (?, ?, ?)")) {
+                for ( PlayerUuidCacheData data : list ) {
+                    statement.setString(1, data.getUuid());
+                    statement.setString(2, data.getName());
+                    statement.setLong(3, data.getLastKnownDate().getTime());
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+            }
+            connection.commit();
+            return true;
+        } catch (SQLException e) {
+            rollback();
+            e.printStackTrace();
+            return false;
+        } finally {
+            resetAutoCommit();
+        }
+    }
+
+    /**
+     * Yamlファイルで保存されているデータを、このデータベースに移行する。
+     * 全てのデータの移行がコミットされてから、移行したフォルダの名前の末尾に "_migrated" を付けて退避するため、
+     * 移行は1度だけ行われる。途中で失敗した場合はフォルダを退避しないので、次回の起動時に最初からやり直す。
+     * @param parent プラグイン
+     * @param storage メールデータの移行先
+     * @return 移行に成功したかどうか
+     */
+    protected boolean migrateFromYaml(UndineMailer parent, MailStorage storage) {
+
+        ArrayList<File> migrated = new ArrayList<File>();
+
+        long start = System.currentTimeMillis();
+
+        // メールデータ（フラグのログも反映するため、ファイルの保存先を経由して読み込む）
+        File mailFolder = parent.getMailFolder();
+        final ArrayList<MailData> mails = new ArrayList<MailData>();
+        MailStorage fileStorage = new BinaryMailStorage(mailFolder);
+        fileStorage.load(new MailStorage.LoadHandler() {
+            public void onLoad(MailData mail) {
+                mails.add(mail);
+            }
+        });
+        fileStorage.close();
+        if ( mails.size() > 0 ) {
+            try {
+                storage.saveAll(mails);
+            } catch (MailStorageException e) {
+                e.printStackTrace();
+                return false;
+            }
+            parent.getLogger().info("Migrate mail data to database... Done. Time: "
+                    + (System.currentTimeMillis() - start) + "ms, Data: " + mails.size() + ".");
+            migrated.add(mailFolder);
+        }
+
+        // グループデータ
+        start = System.currentTimeMillis();
+        File groupFolder = parent.getGroupFolder();
+        File[] files = listYamlFiles(groupFolder);
+        if ( files.length > 0 ) {
+            if ( !saveGroupFiles(files) ) return false;
+            parent.getLogger().info("Migrate group data to database... Done. Time: "
+                    + (System.currentTimeMillis() - start) + "ms, Data: " + files.length + ".");
+            migrated.add(groupFolder);
+        }
+
+        // UUIDキャッシュ（ログファイルと、以前の形式の1プレイヤー1ファイルの両方）
+        start = System.currentTimeMillis();
+        File cacheFolder = parent.getCacheFolder();
+        files = listYamlFiles(cacheFolder);
+        PlayerUuidCacheLog cacheLog = new PlayerUuidCacheLog(cacheFolder);
+        List<PlayerUuidCacheData> caches = new ArrayList<PlayerUuidCacheData>(cacheLog.load().values());
+        cacheLog.close();
+        for ( File file : files ) {
+            caches.add(PlayerUuidCacheData.load(file));
+        }
+        if ( caches.size() > 0 ) {
+            if ( !savePlayerUuidCaches(caches) ) return false;
+            parent.getLogger().info("Migrate player cache data to database... Done. Time: "
+                    + (System.currentTimeMillis() - start) + "ms, Data: " + caches.size() + ".");
+            migrated.add(cacheFolder);
+        }
+
+        // 全ての移行がコミットされたので、移行したフォルダを退避する
+        for ( File folder : migrated ) {
+            moveToMigrated(folder);
+        }
+        return true;
+    }
+
+    /**
+     * Yamlファイルのグループデータを、1つのトランザクションでまとめて保存する
+     * @param files グループデータのファイル
+     * @return 保存に成功したかどうか
+     */
+    private synchronized boolean saveGroupFiles(File[] files) {
+
+        try {
+            connection.setAutoCommit(false);
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "INSERT OR REPLACE INTO mail_groups (name, owner, data) VALUES (?, ?, ?)")) {
+                for ( File file : files ) {
+                    YamlConfiguration config = YamlConfiguration.loadConfiguration(file);
+                    String name = config.getString("name");
+                    String owner = config.getString("owner");
+                    if ( name == null || owner == null ) continue;
+                    statement.setString(1, name.toLowerCase());
+                    statement.setString(2, owner);
+                    statement.setString(3, config.saveToString());
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+            }
+            connection.commit();
+            return true;
+        } catch (SQLException e) {
+            rollback();
+            e.printStackTrace();
+            return false;
+        } finally {
+            resetAutoCommit();
+        }
+    }
+
+    /**
+     * トランザクションをロールバックする
+     */
+    protected void rollback() {
+        try {
+            connection.rollback();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * オートコミットを有効に戻す
+     */
+    protected void resetAutoCommit() {
+        try {
+            connection.setAutoCommit(true);
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 指定されたフォルダ内のYamlファイルを取得する
+     * @param folder フォルダ
+     * @return Yamlファイル
+     */
+    private static File[] listYamlFiles(File folder) {
+        File[] files = folder.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".yml");
+            }
+        });
+        return files != null ? files : new File[0];
+    }
+
+    /**
+     * 移行が完了したフォルダを退避する
+     * @param folder フォルダ
+     */
+    private static void moveToMigrated(File folder) {
+        File dest = new File(folder.getParentFile(), folder.getName() + MIGRATED_SUFFIX);
+        int num = 1;
+        while ( dest.exists() ) {
+            dest = new File(folder.getParentFile(), folder.getName() + MIGRATED_SUFFIX + num);
+            num++;
+        }
+        folder.renameTo(dest);
+    }
+}
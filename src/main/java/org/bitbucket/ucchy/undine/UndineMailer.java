@@ -10,6 +10,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 import org.bitbucket.ucchy.undine.bridge.PermissionsExBridge;
 import org.bitbucket.ucchy.undine.bridge.VaultEcoBridge;
@@ -31,12 +32,14 @@ public class UndineMailer extends JavaPlugin {
     private static final String MAIL_FOLDER = "mail";
     private static final String GROUP_FOLDER = "group";
     private static final String CACHE_FOLDER = "cache";
+    private static final String DATABASE_FILE = "undine.db";
 
     private MailManager mailManager;
     private AttachmentBoxManager boxManager;
     private GroupManager groupManager;
     private MailCleanupTask cleanupTask;
     private PlayerUuidCache playerUuidCache;
+    private UndineDatabase database;
 
     private UndineCommand undineCommand;
     private ListCommand listCommand;
@@ -57,6 +60,21 @@ public class UndineMailer extends JavaPlugin {
         // コンフィグをロードする
         config = new UndineConfig(this);
 
+        // データベースを開き、Yamlファイルで保存されているデータがあれば移行する
+        if ( config.getStorageType() == StorageType.SQLITE ) {
+            database = UndineDatabase.open(new File(getDataFolder(), DATABASE_FILE));
+            if ( database != null ) {
+                if ( !database.migrateFromYaml(this, new SqliteMailStorage(database)) ) {
+                    getLogger().warning("Could not migrate Yaml files to the database. "
+                            + "Yaml files are used instead, and the migration will be retried on the next startup.");
+                    database.close();
+                    database = null;
+                }
+            } else {
+                getLogger().warning("Could not open the database. Yaml files are used instead.");
+            }
+        }
+
         // VaultEcoをロード
         if ( getServer().getPluginManager().isPluginEnabled("Vault") ) {
             vaulteco = VaultEcoBridge.load(
@@ -114,6 +132,22 @@ public class UndineMailer extends JavaPlugin {
 
         // 編集中メールの保存
         mailManager.storeEditmodeMail();
+
+        // 送信中の複製を、送信しきるか、次回の起動時に再開できるように保存する
+        mailManager.storeFanouts();
+
+        // 保存待ちのメールデータを書き込み、メールデータの保存先を閉じる
+        mailManager.closeStorage();
+
+        // UUIDキャッシュの保存先を閉じる
+        if ( playerUuidCache != null ) {
+            playerUuidCache.close();
+        }
+
+        // データベースを閉じる
+        if ( database != null ) {
+            database.close();
+        }
     }
 
     /**
@@ -182,6 +216,14 @@ public class UndineMailer extends JavaPlugin {
         return folder;
     }
 
+    /**
+     * データベースを取得する
+     * @return データベース、保存形式がSQLiteでない場合はnullになる
+     */
+    public UndineDatabase getDatabase() {
+        return database;
+    }
+
     /**
      * メールマネージャを取得する
      * @return メールマネージャ
@@ -257,6 +299,26 @@ public class UndineMailer extends JavaPlugin {
         return playerUuidCache.getUUID(name);
     }
 
+    /**
+     * 指定されたプレイヤー名のUUIDを、キャッシュだけから取得する。
+     * キャッシュに無い場合でも問い合わせないので、呼び出し元のスレッドをブロックしない。
+     * @param name プレイヤー名
+     * @return UUID、キャッシュに無い場合はnull
+     */
+    public String getCachedUUID(String name) {
+        return playerUuidCache.getCachedUUID(name);
+    }
+
+    /**
+     * 指定されたプレイヤー名のUUIDを、非同期で取得する。
+     * 同じプレイヤー名への問い合わせが実行中の場合は、その結果を共有する。
+     * @param name プレイヤー名
+     * @return UUIDを返すCompletableFuture、UUIDが見つからない場合はnullで完了する
+     */
+    public CompletableFuture<String> getUUIDAsync(String name) {
+        return playerUuidCache.getUUIDAsync(name);
+    }
+
     /**
      * 指定されたUUIDのプレイヤー名をキャッシュから取得する
      * @param uuid UUID
@@ -283,10 +345,20 @@ public class UndineMailer extends JavaPlugin {
     }
 
     /**
-     * キャッシュされているすべてのUUIDを取得する
+     * キャッシュされているすべてのUUIDを取得する。
+     * 取得した時点の複製を返すので、頻繁に呼び出す場合は getPlayerUuidsView を使うこと。
      * @return すべてのUUID
      */
     public HashSet<String> getPlayerUuids() {
+        return new HashSet<String>(playerUuidCache.getPlayerUuids());
+    }
+
+    /**
+     * キャッシュされているすべてのUUIDを、読み取り専用のビューで取得する。
+     * ビューはキャッシュの更新に追従するので、複製を作らずに参照できる。
+     * @return すべてのUUIDのビュー
+     */
+    public Set<String> getPlayerUuidsView() {
         return playerUuidCache.getPlayerUuids();
     }
 
@@ -313,6 +385,31 @@ public class UndineMailer extends JavaPlugin {
         return playerUuidCache.isPlayerCacheLoaded();
     }
 
+    /**
+     * プレイヤーキャッシュのUUIDの構成のバージョンを返す。UUIDが追加または削除されるたびに変化する。
+     * @return バージョン
+     */
+    public long getPlayerCacheVersion() {
+        return playerUuidCache.getVersion();
+    }
+
+    /**
+     * プレイヤーキャッシュのプレイヤー名のバージョンを返す。UUIDに対応するプレイヤー名が変わるたびに変化する。
+     * @return バージョン、プレイヤーキャッシュをロードしていない場合は0
+     */
+    public long getPlayerNameVersion() {
+        if ( playerUuidCache == null ) return 0;
+        return playerUuidCache.getNameVersion();
+    }
+
+    /**
+     * 実行中のプレイヤーキャッシュのリフレッシュの進捗状況を返す
+     * @return 進捗状況、リフレッシュを実行していない場合はnull
+     */
+    public UUIDResolveProgress getPlayerCacheRefreshProgress() {
+        return playerUuidCache.getRefreshProgress();
+    }
+
     /**
      * このプラグインのインスタンスを返す
      * @return プラグインのインスタンス
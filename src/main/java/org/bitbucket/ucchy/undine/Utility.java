@@ -14,9 +14,16 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
 import java.lang.reflect.InvocationTargetException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 import java.util.jar.JarFile;
 import java.util.zip.ZipEntry;
 
@@ -24,6 +31,7 @@ import org.bukkit.Bukkit;
 import org.bukkit.ChatColor;
 import org.bukkit.OfflinePlayer;
 import org.bukkit.entity.Player;
+import org.bukkit.scheduler.BukkitRunnable;
 
 /**
  * ユーティリティクラス
@@ -332,4 +340,79 @@ public class Utility {
         catch (IllegalAccessException ex){} // never happen
         return new ArrayList<Player>();
     }
+
+    /**
+     * 書き終わった一時ファイルで、指定されたファイルを置き換える。
+     * 置き換えはアトミックに行うので、途中でサーバーが停止しても、古いファイルか新しいファイルのどちらかが必ず残る。
+     * @param temp 一時ファイル
+     * @param file 置き換えられるファイル
+     * @throws IOException 置き換えに失敗した場合
+     */
+    public static void replaceFile(File temp, File file) throws IOException {
+        try {
+            Files.move(temp.toPath(), file.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * 指定されたファイルを、指定された長さに切り詰める。
+     * 追記型のファイルの末尾に残った、途中で途切れたレコードを取り除くために使う。
+     * @param file ファイル
+     * @param length 長さ
+     * @throws IOException 切り詰めに失敗した場合
+     */
+    public static void truncateFile(File file, long length) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(length);
+        }
+    }
+
+    /**
+     * 指定されたCompletableFutureが完了したら、その結果を使って、メインスレッドで処理を実行する。
+     * メインスレッドから呼び出されて、既に完了している場合は、その場で実行する。
+     * 失敗した場合は、スタックトレースを出力するだけで、処理は実行しない。
+     * @param future CompletableFuture
+     * @param action 実行する処理
+     */
+    public static <T> void runOnMainThread(CompletableFuture<T> future, final Consumer<T> action) {
+        runOnMainThread(future, action, null);
+    }
+
+    /**
+     * 指定されたCompletableFutureが完了したら、その結果を使って、メインスレッドで処理を実行する。
+     * メインスレッドから呼び出されて、既に完了している場合は、その場で実行する。
+     * 失敗した場合は、スタックトレースを出力してから、失敗したときの処理をメインスレッドで実行する。
+     * @param future CompletableFuture
+     * @param action 実行する処理
+     * @param onError 失敗したときに実行する処理、不要ならnullでよい
+     */
+    public static <T> void runOnMainThread(CompletableFuture<T> future, final Consumer<T> action,
+            final Consumer<Throwable> onError) {
+
+        if ( future.isDone() && !future.isCompletedExceptionally() && Bukkit.isPrimaryThread() ) {
+            action.accept(future.join());
+            return;
+        }
+
+        future.whenComplete(new BiConsumer<T, Throwable>() {
+            public void accept(final T result, final Throwable error) {
+                if ( error != null ) {
+                    error.printStackTrace();
+                    if ( onError == null ) return;
+                }
+                new BukkitRunnable() {
+                    public void run() {
+                        if ( error != null ) {
+                            onError.accept(error);
+                        } else {
+                            action.accept(result);
+                        }
+                    }
+                }.runTask(UndineMailer.getInstance());
+            }
+        });
+    }
 }
@@ -0,0 +1,144 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2020
+ */
+package org.bitbucket.ucchy.undine;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+
+/**
+ * メールデータを、1メール1ファイルのYamlとしてフォルダに保存する保存先。
+ * 既読フラグとゴミ箱フラグの変更は、メールファイルを書き直さずにフラグのログに追記する。
+ * 添付アイテムの内容は、添付アイテムのストアにまとめて保存する。
+ * 保存形式をバイナリ形式から戻した場合でもメールが消えないように、読み込みは両方の形式に対応する。
+ * @author ucchy
+ * @see BinaryMailStorage
+ * @see MailFlagLog
+ * @see AttachmentBlobStore
+ */
+public class YamlMailStorage implements MailStorage {
+
+    private File folder;
+    private MailFlagLog flagLog;
+    private AttachmentBlobStore blobs;
+
+    /**
+     * コンストラクタ
+     * @param folder メールデータを格納するフォルダ
+     */
+    public YamlMailStorage(File folder) {
+        this.folder = folder;
+        this.flagLog = new MailFlagLog(folder);
+        this.blobs = new AttachmentBlobStore(folder);
+    }
+
+    /**
+     * 指定されたメールデータを保存する
+     * @param mail メールデータ
+     * @see org.bitbucket.ucchy.undine.MailStorage#save(org.bitbucket.ucchy.undine.MailData)
+     */
+    @Override
+    public void save(MailData mail) {
+        File file = getFile(mail.getIndex(), BinaryMailStorage.EXTENSION_YAML);
+        try {
+            mail.save(file, blobs);
+        } catch (IOException e) {
+            throw new MailStorageException("Could not save " + file.getName() + ".", e);
+        }
+        BinaryMailStorage.deleteIfExists(getFile(mail.getIndex(), BinaryMailStorage.EXTENSION_BINARY));
+        flagLog.reset(mail);
+    }
+
+    /**
+     * 指定されたメールデータをまとめて保存する
+     * @param mails メールデータ
+     * @see org.bitbucket.ucchy.undine.MailStorage#saveAll(java.util.Collection)
+     */
+    @Override
+    public void saveAll(Collection<MailData> mails) {
+        for ( MailData mail : mails ) {
+            save(mail);
+        }
+    }
+
+    /**
+     * 指定されたインデクスのメールデータを削除する
+     * @param index インデクス
+     * @see org.bitbucket.ucchy.undine.MailStorage#delete(int)
+     */
+    @Override
+    public void delete(int index) {
+        BinaryMailStorage.deleteIfExists(getFile(index, BinaryMailStorage.EXTENSION_YAML));
+        BinaryMailStorage.deleteIfExists(getFile(index, BinaryMailStorage.EXTENSION_BINARY));
+        flagLog.forget(index);
+    }
+
+    /**
+     * 指定されたインデクスのメールデータをまとめて削除する
+     * @param indexes インデクス
+     * @see org.bitbucket.ucchy.undine.MailStorage#deleteAll(java.util.Collection)
+     */
+    @Override
+    public void deleteAll(Collection<Integer> indexes) {
+        for ( int index : indexes ) {
+            delete(index);
+        }
+    }
+
+    /**
+     * 保存されている全てのメールデータを、1件ずつロードしてハンドラに渡す。
+     * バイナリ形式のファイルが残っている場合も読み込み、同じインデクスのファイルが両方の形式である場合は、
+     * 更新日時が新しい方を読み込む。
+     * @param handler ハンドラ
+     * @see org.bitbucket.ucchy.undine.MailStorage#load(org.bitbucket.ucchy.undine.MailStorage.LoadHandler)
+     */
+    @Override
+    public void load(LoadHandler handler) {
+        BinaryMailStorage.loadFolder(folder, flagLog, blobs, handler);
+    }
+
+    /**
+     * 指定されたメールデータの既読フラグを保存する。
+     * Yamlファイルは部分的な更新ができないので、変更された分だけをフラグのログに追記する。
+     * @param mail メールデータ
+     * @see org.bitbucket.ucchy.undine.MailStorage#updateReadFlags(org.bitbucket.ucchy.undine.MailData)
+     */
+    @Override
+    public void updateReadFlags(MailData mail) {
+        flagLog.update(mail, MailFlagLog.FLAG_READ);
+    }
+
+    /**
+     * 指定されたメールデータのゴミ箱フラグを保存する。
+     * Yamlファイルは部分的な更新ができないので、変更された分だけをフラグのログに追記する。
+     * @param mail メールデータ
+     * @see org.bitbucket.ucchy.undine.MailStorage#updateTrashFlags(org.bitbucket.ucchy.undine.MailData)
+     */
+    @Override
+    public void updateTrashFlags(MailData mail) {
+        flagLog.update(mail, MailFlagLog.FLAG_TRASH);
+    }
+
+    /**
+     * 保存先を閉じる。フラグのログと、添付アイテムのストアを閉じる。
+     * @see org.bitbucket.ucchy.undine.MailStorage#close()
+     */
+    @Override
+    public void close() {
+        flagLog.close();
+        blobs.close();
+    }
+
+    /**
+     * 指定されたインデクスのメールファイルを取得する
+     * @param index インデクス
+     * @param extension 拡張子
+     * @return ファイル
+     */
+    private File getFile(int index, String extension) {
+        return BinaryMailStorage.getFile(folder, index, extension);
+    }
+}
@@ -55,6 +55,7 @@ public class UndineCommand implements TabExecutor {
         commands.add(new UndineItemCommand());
         commands.add(new UndineTeleportCommand(parent));
         commands.add(new UndineReloadCommand(parent));
+        commands.add(new UndineConvertCommand(parent));
 
         commandNames = new ArrayList<String>();
         for ( SubCommand c : commands ) {
@@ -0,0 +1,97 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2020
+ */
+package org.bitbucket.ucchy.undine.command;
+
+import java.util.List;
+
+import org.bitbucket.ucchy.undine.MailManager;
+import org.bitbucket.ucchy.undine.Messages;
+import org.bitbucket.ucchy.undine.StorageType;
+import org.bitbucket.ucchy.undine.UndineMailer;
+import org.bukkit.command.CommandSender;
+
+/**
+ * undine convert コマンド
+ * @author ucchy
+ */
+public class UndineConvertCommand implements SubCommand {
+
+    private static final String NAME = "convert";
+    private static final String NODE = "undine." + NAME;
+
+    private UndineMailer parent;
+
+    /**
+     * コンストラクタ
+     * @param parent
+     */
+    public UndineConvertCommand(UndineMailer parent) {
+        this.parent = parent;
+    }
+
+    /**
+     * コマンドを取得します。
+     * @return コマンド
+     * @see org.bitbucket.ucchy.undine.command.SubCommand#getCommandName()
+     */
+    @Override
+    public String getCommandName() {
+        return NAME;
+    }
+
+    /**
+     * パーミッションノードを取得します。
+     * @return パーミッションノード
+     * @see org.bitbucket.ucchy.undine.command.SubCommand#getPermissionNode()
+     */
+    @Override
+    public String getPermissionNode() {
+        return NODE;
+    }
+
+    /**
+     * コマンドを実行します。
+     * @param sender コマンド実行者
+     * @param label 実行時のラベル
+     * @param args 実行時の引数
+     * @see org.bitbucket.ucchy.undine.command.SubCommand#runCommand(org.bukkit.command.CommandSender, java.lang.String[])
+     */
+    @Override
+    public void runCommand(CommandSender sender, String label, String[] args) {
+
+        // データベースに保存している場合は、変換するファイルが無い。
+        // コンフィグのリロードで保存形式を変更した場合も、データベースを使っている間は変換できない。
+        StorageType type = parent.getUndineConfig().getStorageType();
+        if ( type == StorageType.SQLITE || parent.getDatabase() != null ) {
+            sender.sendMessage(Messages.get("ErrorCannotConvertDatabase"));
+            return;
+        }
+
+        // ロードが完了していない場合は、変換できない
+        MailManager manager = parent.getMailManager();
+        if ( !manager.isLoaded() ) {
+            sender.sendMessage(Messages.get("ErrorCannotConvertInitializingYet"));
+            return;
+        }
+
+        // メールファイルを、コンフィグで指定されている形式に変換する
+        sender.sendMessage(Messages.get("InformationConverting",
+                "%type", type.toString().toLowerCase()));
+        manager.convertMailFiles(sender);
+    }
+
+    /**
+     * TABキー補完を実行します。
+     * @param sender コマンド実行者
+     * @param args 補完時の引数
+     * @return 補完候補
+     * @see org.bitbucket.ucchy.undine.command.SubCommand#tabComplete(org.bukkit.command.CommandSender, java.lang.String[])
+     */
+    @Override
+    public List<String> tabComplete(CommandSender sender, String[] args) {
+        return null;
+    }
+}
@@ -64,7 +64,7 @@ public class UndineHelpCommand implements SubCommand {
         // umailコマンドのヘルプ
         for ( String c : new String[]{
                 "inbox", "outbox", "trash", "text", "write",
-                "item", "reload"} ) {
+                "item", "reload", "convert"} ) {
 
             if ( !sender.hasPermission(PERMISSION_PREFIX + c) ) {
                 continue;
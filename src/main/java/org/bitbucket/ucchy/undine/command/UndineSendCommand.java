@@ -6,6 +6,7 @@
 package org.bitbucket.ucchy.undine.command;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 
 import org.bitbucket.ucchy.undine.MailData;
@@ -14,7 +15,6 @@ import org.bitbucket.ucchy.undine.Messages;
 import org.bitbucket.ucchy.undine.UndineConfig;
 import org.bitbucket.ucchy.undine.UndineMailer;
 import org.bitbucket.ucchy.undine.bridge.VaultEcoBridge;
-import org.bitbucket.ucchy.undine.group.GroupData;
 import org.bitbucket.ucchy.undine.group.SpecialGroupAllConnected;
 import org.bitbucket.ucchy.undine.sender.MailSender;
 import org.bitbucket.ucchy.undine.sender.MailSenderConsole;
@@ -111,12 +111,14 @@ public class UndineSendCommand implements SubCommand {
 
         // 添付ボックスの使用制限を超える場合は、エラーを表示して終了
         if ( mail.getAttachments().size() > 0
-                && !sender.hasPermission(NODE_ATTACH_INFINITY)
-                && manager.getAttachBoxUsageCount(ms) >= config.getMaxAttachmentBoxCount() ) {
-            sender.sendMessage(Messages.get("ErrorAttachBoxCountExceed",
-                    new String[]{"%num", "%limit"},
-                    new String[]{manager.getAttachBoxUsageCount(ms) + "", config.getMaxAttachmentBoxCount() + ""}));
-            return;
+                && !sender.hasPermission(NODE_ATTACH_INFINITY) ) {
+            int usage = manager.getAttachBoxUsageCount(ms);
+            if ( usage >= config.getMaxAttachmentBoxCount() ) {
+                sender.sendMessage(Messages.get("ErrorAttachBoxCountExceed",
+                        new String[]{"%num", "%limit"},
+                        new String[]{usage + "", config.getMaxAttachmentBoxCount() + ""}));
+                return;
+            }
         }
 
         // 宛先にAllConnectedが含まれていて、PlayerCacheのロードが完了していない場合は、エラーを表示して終了
@@ -138,7 +140,7 @@ public class UndineSendCommand implements SubCommand {
             }
 
             // 宛先を調べる
-            ArrayList<MailSender> to_total = new ArrayList<MailSender>();
+            Collection<MailSender> to_total;
 
             if ( mail.isAllMail() ) {
 
@@ -148,33 +150,20 @@ public class UndineSendCommand implements SubCommand {
                     return;
                 }
 
-                for ( String uuid : parent.getPlayerUuids() ) {
-                    to_total.add(new MailSenderPlayer("$" + uuid));
+                to_total = new ArrayList<MailSender>();
+                for ( String uuid : parent.getPlayerUuidsView() ) {
+                    to_total.add(MailSenderPlayer.getMailSenderPlayer(uuid));
                 }
 
             } else {
-                for ( MailSender t : mail.getTo() ) {
-                    if ( !to_total.contains(t) ) {
-                        to_total.add(t);
-                    }
-                }
-                for ( GroupData group : mail.getToGroupsConv() ) {
-                    for ( MailSender t : group.getMembers() ) {
-                        if ( !to_total.contains(t) ) {
-                            to_total.add(t);
-                        }
-                    }
-                }
+                to_total = manager.getRecipientResolver().resolve(mail);
             }
 
             if ( args.length >= 2 && args[1].equals("attachconfirm") ) {
-                // 複製して送信
-
-                for ( MailSender t : to_total ) {
-                    MailData copy = mail.clone();
-                    copy.deleteAllTo();
-                    copy.setTo(0, t);
-                    manager.sendNewMail(copy);
+                // 複製して送信する。複製と保存は数tickに分けて行われ、
+                // 全て終わったら送信したこと（または失敗した数）が送信元に知らされる。
+                if ( manager.sendNewMailToEach(mail, to_total) == null ) {
+                    return;
                 }
 
                 manager.clearEditmodeMail(ms);
@@ -182,12 +171,6 @@ public class UndineSendCommand implements SubCommand {
                     parent.getBoxManager().clearEditmodeBox((Player)sender);
                 }
 
-                // 送信したことを送信元に知らせる
-                for ( int i=0; i<parent.getUndineConfig().getUiEmptyLines(); i++ ) {
-                    mail.getFrom().sendMessage("");
-                }
-                mail.getFrom().sendMessage(Messages.get("InformationYouSentMail"));
-
                 return;
             }
 
@@ -7,12 +7,14 @@ package org.bitbucket.ucchy.undine.command;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Consumer;
 
 import org.bitbucket.ucchy.undine.MailData;
 import org.bitbucket.ucchy.undine.MailManager;
 import org.bitbucket.ucchy.undine.Messages;
 import org.bitbucket.ucchy.undine.UndineConfig;
 import org.bitbucket.ucchy.undine.UndineMailer;
+import org.bitbucket.ucchy.undine.Utility;
 import org.bitbucket.ucchy.undine.group.GroupData;
 import org.bitbucket.ucchy.undine.sender.MailSender;
 import org.bukkit.command.CommandSender;
@@ -68,9 +70,9 @@ public class UndineToCommand implements SubCommand {
      * @see org.bitbucket.ucchy.undine.command.SubCommand#runCommand(org.bukkit.command.CommandSender, java.lang.String[])
      */
     @Override
-    public void runCommand(CommandSender sender, String label, String[] args) {
+    public void runCommand(final CommandSender sender, String label, String[] args) {
 
-        MailData mail = manager.getEditmodeMail(MailSender.getMailSender(sender));
+        final MailData mail = manager.getEditmodeMail(MailSender.getMailSender(sender));
 
         // 編集中でないならエラーを表示して終了
         if ( mail == null ) {
@@ -110,17 +112,23 @@ public class UndineToCommand implements SubCommand {
                 // 宛先が見つからない場合はエラーを表示
                 sender.sendMessage(Messages.get("ErrorNotFoundDestination", "%dest", args[2]));
                 return;
-            } else if ( !config.isEnableSendSelf() && target.equals(sender) ) {
-                // 自分自身が指定不可の設定の場合は、自分自身が指定されたらエラーを表示
-                sender.sendMessage(Messages.get("ErrorCannotSendSelf"));
-                return;
-            } else if ( mail.getTo().contains(target) ) {
-                // 既に指定済みの宛先が再度指定された場合は、エラーを表示
-                sender.sendMessage(Messages.get("ErrorAlreadyExistTo"));
-                return;
             }
 
-            mail.setTo(line, target);
+            // UUIDの問い合わせが必要な場合は、メインスレッドを止めないように、
+            // 非同期で問い合わせてから宛先を設定する
+            final int targetLine = line;
+            final String dest = args[2];
+            Utility.runOnMainThread(target.upgradeAsync(), new Consumer<MailSender>() {
+                public void accept(MailSender upgraded) {
+                    setTo(sender, mail, targetLine, upgraded);
+                }
+            }, new Consumer<Throwable>() {
+                public void accept(Throwable error) {
+                    // 問い合わせに失敗した場合は、宛先が見つからない場合と同じエラーを表示
+                    sender.sendMessage(Messages.get("ErrorNotFoundDestination", "%dest", dest));
+                }
+            });
+            return;
 
         } else if ( args[1].equalsIgnoreCase("delete") && args[2].matches("[0-9]{1,2}") ) {
             // 2番めの引数にdeleteが来た場合は、削除
@@ -208,6 +216,40 @@ public class UndineToCommand implements SubCommand {
         manager.displayEditmode(MailSender.getMailSender(sender));
     }
 
+    /**
+     * 宛先を設定して、編集画面を表示します。
+     * @param sender コマンド実行者
+     * @param mail 編集中のメール
+     * @param line 設定する行
+     * @param target 宛先
+     */
+    private void setTo(CommandSender sender, MailData mail, int line, MailSender target) {
+
+        // 問い合わせの間に、送信や取り消しで編集中のメールが変わっている場合は、何もしない
+        if ( manager.getEditmodeMail(MailSender.getMailSender(sender)) != mail ) {
+            return;
+        }
+
+        if ( !config.isEnableSendSelf() && target.equals(sender) ) {
+            // 自分自身が指定不可の設定の場合は、自分自身が指定されたらエラーを表示
+            sender.sendMessage(Messages.get("ErrorCannotSendSelf"));
+            return;
+        } else if ( mail.getTo().contains(target) ) {
+            // 既に指定済みの宛先が再度指定された場合は、エラーを表示
+            sender.sendMessage(Messages.get("ErrorAlreadyExistTo"));
+            return;
+        }
+
+        // 問い合わせの間に宛先が減っている場合があるので、行を確認し直す
+        if ( line > mail.getTo().size() ) {
+            line = mail.getTo().size();
+        }
+        mail.setTo(line, target);
+
+        // 編集画面を表示する。
+        manager.displayEditmode(MailSender.getMailSender(sender));
+    }
+
     /**
      * TABキー補完を実行します。
      * @param sender コマンド実行者
@@ -116,7 +116,7 @@ public class UndineTrashCommand implements SubCommand {
 
             // ゴミフラグを設定
             mail.setTrashFlag(ms);
-            manager.saveMail(mail);
+            manager.updateTrashFlags(mail);
 
             sender.sendMessage(Messages.get("InformationTrashed", "%index", mail.getIndex()));
             return;
@@ -153,7 +153,7 @@ public class UndineTrashCommand implements SubCommand {
 
             // ゴミフラグを除去
             mail.removeTrashFlag(ms);
-            manager.saveMail(mail);
+            manager.updateTrashFlags(mail);
 
             sender.sendMessage(Messages.get("InformationTrashRestored", "%index", mail.getIndex()));
             return;
@@ -171,14 +171,14 @@ public class UndineTrashCommand implements SubCommand {
                         for ( MailData mail : manager.getInboxMails(ms) ) {
                             if ( mail.isRead(ms) ) {
                                 mail.setTrashFlag(ms);
-                                manager.saveMail(mail);
+                                manager.updateTrashFlags(mail);
                                 total++;
                             }
                         }
                         for ( MailData mail : manager.getOutboxMails(ms) ) {
                             if ( mail.isRead(ms) ) {
                                 mail.setTrashFlag(ms);
-                                manager.saveMail(mail);
+                                manager.updateTrashFlags(mail);
                                 total++;
                             }
                         }
@@ -208,7 +208,7 @@ public class UndineTrashCommand implements SubCommand {
                         int total = 0;
                         for ( MailData mail : manager.getTrashboxMails(ms) ) {
                             mail.removeTrashFlag(ms);
-                            manager.saveMail(mail);
+                            manager.updateTrashFlags(mail);
                             total++;
                         }
                         ms.sendMessage(Messages.get("InformationRestoreAllDone", "%num", total));
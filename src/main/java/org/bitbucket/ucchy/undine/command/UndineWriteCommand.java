@@ -7,11 +7,15 @@ package org.bitbucket.ucchy.undine.command;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 
 import org.bitbucket.ucchy.undine.MailData;
 import org.bitbucket.ucchy.undine.MailManager;
+import org.bitbucket.ucchy.undine.Messages;
 import org.bitbucket.ucchy.undine.UndineConfig;
 import org.bitbucket.ucchy.undine.UndineMailer;
+import org.bitbucket.ucchy.undine.Utility;
 import org.bitbucket.ucchy.undine.group.GroupData;
 import org.bitbucket.ucchy.undine.group.GroupManager;
 import org.bitbucket.ucchy.undine.sender.MailSender;
@@ -68,22 +72,24 @@ public class UndineWriteCommand implements SubCommand {
      * @see org.bitbucket.ucchy.undine.command.SubCommand#runCommand(org.bukkit.command.CommandSender, java.lang.String[])
      */
     @Override
-    public void runCommand(CommandSender sender, String label, String[] args) {
+    public void runCommand(final CommandSender sender, String label, String[] args) {
 
-        MailSender ms = MailSender.getMailSender(sender);
+        final MailSender ms = MailSender.getMailSender(sender);
 
         // 引数に何かあるなら、宛先として設定する
         if ( args.length >= 2 ) {
 
-            MailData mail = manager.makeEditmodeMail(ms);
+            final MailData mail = manager.makeEditmodeMail(ms);
 
             ArrayList<String> dests = new ArrayList<String>();
             for ( int i=1; i<args.length; i++ ) {
                 dests.add(args[i]);
             }
 
-            ArrayList<MailSender> targets = new ArrayList<MailSender>();
-            ArrayList<GroupData> targetGroups = new ArrayList<GroupData>();
+            final ArrayList<CompletableFuture<MailSender>> targets =
+                    new ArrayList<CompletableFuture<MailSender>>();
+            final ArrayList<String> targetNames = new ArrayList<String>();
+            final ArrayList<GroupData> targetGroups = new ArrayList<GroupData>();
 
             for ( String d : dests ) {
 
@@ -96,22 +102,74 @@ public class UndineWriteCommand implements SubCommand {
                             targetGroups.add(group);
                         }
                     }
-                } else if ( !config.isEnableSendSelf() && target.equals(sender) ) {
-                    // 自分自身が指定不可の設定の場合は、自分自身が指定されたら無視する
-                } else if ( !targets.contains(target) ) {
-                    targets.add(target);
+                } else {
+                    // UUIDの問い合わせが必要な場合は、メインスレッドを止めないように非同期で問い合わせる
+                    targets.add(target.upgradeAsync());
+                    targetNames.add(d);
                 }
             }
 
-            for ( MailSender target : targets ) {
-                if ( !mail.getTo().contains(target) ) {
-                    mail.setTo(mail.getTo().size(), target);
+            // 全ての問い合わせが終わってから、宛先を設定して編集画面を表示する。
+            // 問い合わせに失敗した宛先があっても、残りの宛先は設定する。
+            CompletableFuture<Void> all = CompletableFuture.allOf(
+                    targets.toArray(new CompletableFuture<?>[targets.size()]));
+            Utility.runOnMainThread(all, new Consumer<Void>() {
+                public void accept(Void result) {
+                    setDestinations(sender, ms, mail, targets, targetNames, targetGroups);
                 }
-            }
-            for ( GroupData g : targetGroups ) {
-                if ( !mail.getToGroups().contains(g.getName()) ) {
-                    mail.setToGroup(mail.getToGroups().size(), g.getName());
+            }, new Consumer<Throwable>() {
+                public void accept(Throwable error) {
+                    setDestinations(sender, ms, mail, targets, targetNames, targetGroups);
                 }
+            });
+            return;
+        }
+
+        // 編集画面を表示する。
+        manager.displayEditmode(ms);
+    }
+
+    /**
+     * 宛先と宛先グループを設定して、編集画面を表示します。
+     * @param sender コマンド実行者
+     * @param ms コマンド実行者
+     * @param mail 編集中のメール
+     * @param resolved 宛先
+     * @param names 宛先に指定された名前
+     * @param targetGroups 宛先グループ
+     */
+    private void setDestinations(CommandSender sender, MailSender ms, MailData mail,
+            List<CompletableFuture<MailSender>> resolved, List<String> names, List<GroupData> targetGroups) {
+
+        // 問い合わせの間に、送信や取り消しで編集中のメールが変わっている場合は、何もしない
+        if ( manager.getEditmodeMail(ms) != mail ) {
+            return;
+        }
+
+        ArrayList<MailSender> targets = new ArrayList<MailSender>();
+        for ( int i=0; i<resolved.size(); i++ ) {
+            CompletableFuture<MailSender> future = resolved.get(i);
+            if ( future.isCompletedExceptionally() ) {
+                // 問い合わせに失敗した場合は、宛先が見つからない場合と同じエラーを表示
+                sender.sendMessage(Messages.get("ErrorNotFoundDestination", "%dest", names.get(i)));
+                continue;
+            }
+            MailSender target = future.join();
+            if ( !config.isEnableSendSelf() && target.equals(sender) ) {
+                // 自分自身が指定不可の設定の場合は、自分自身が指定されたら無視する
+            } else if ( !targets.contains(target) ) {
+                targets.add(target);
+            }
+        }
+
+        for ( MailSender target : targets ) {
+            if ( !mail.getTo().contains(target) ) {
+                mail.setTo(mail.getTo().size(), target);
+            }
+        }
+        for ( GroupData g : targetGroups ) {
+            if ( !mail.getToGroups().contains(g.getName()) ) {
+                mail.setToGroup(mail.getToGroups().size(), g.getName());
             }
         }
 
@@ -15,6 +15,7 @@ import org.bitbucket.ucchy.undine.sender.MailSender;
 import org.bitbucket.ucchy.undine.sender.MailSenderPlayer;
 import org.bukkit.ChatColor;
 import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.InvalidConfigurationException;
 import org.bukkit.configuration.file.YamlConfiguration;
 
 /**
@@ -29,6 +30,7 @@ public class GroupData {
     private GroupPermissionMode sendMode;
     private GroupPermissionMode modifyMode;
     private GroupPermissionMode dissolutionMode;
+    private long version;
 
     /**
      * コンストラクタ(データロード用)
@@ -68,6 +70,7 @@ public class GroupData {
     public void addMember(MailSender member) {
         if ( !members.contains(member) ) {
             members.add(member);
+            version++;
         }
     }
 
@@ -78,6 +81,7 @@ public class GroupData {
     public void removeMember(MailSender member) {
         if ( members.contains(member) ) {
             members.remove(member);
+            version++;
         }
     }
 
@@ -113,6 +117,15 @@ public class GroupData {
         return members;
     }
 
+    /**
+     * グループのメンバー構成のバージョンを取得する。メンバーが追加または削除されるたびに変化する。
+     * @return バージョン、メンバー構成が随時変わるためバージョンで管理できない場合は-1
+     * @see org.bitbucket.ucchy.undine.RecipientResolver
+     */
+    public long getVersion() {
+        return version;
+    }
+
     /**
      * 指定されたsenderが、グループのメンバーかどうかを返す
      * @param sender
@@ -263,6 +276,16 @@ public class GroupData {
         }
     }
 
+    /**
+     * グループをYaml文字列に変換する
+     * @return Yaml文字列
+     */
+    protected String saveToString() {
+        YamlConfiguration config = new YamlConfiguration();
+        saveToSection(config);
+        return config.saveToString();
+    }
+
     /**
      * コンフィグセクションからグループをロードする
      * @param section コンフィグセクション
@@ -294,6 +317,22 @@ public class GroupData {
         return loadFromSection(config);
     }
 
+    /**
+     * Yaml文字列からグループをロードする
+     * @param data Yaml文字列
+     * @return グループ、文字列が不正な場合はnull
+     */
+    protected static GroupData loadFromString(String data) {
+        YamlConfiguration config = new YamlConfiguration();
+        try {
+            config.loadFromString(data);
+        } catch (InvalidConfigurationException e) {
+            e.printStackTrace();
+            return null;
+        }
+        return loadFromSection(config);
+    }
+
     /**
      * パーミッションのチェックを行う
      * @param sender
@@ -13,6 +13,7 @@ import java.util.Comparator;
 import java.util.HashMap;
 
 import org.bitbucket.ucchy.undine.Messages;
+import org.bitbucket.ucchy.undine.UndineDatabase;
 import org.bitbucket.ucchy.undine.UndineMailer;
 import org.bitbucket.ucchy.undine.bridge.PermissionsExBridge;
 import org.bitbucket.ucchy.undine.command.GroupCommand;
@@ -69,19 +70,29 @@ public class GroupManager {
 
         long start = System.currentTimeMillis();
 
-        File folder = parent.getGroupFolder();
-        File[] files = folder.listFiles(new FilenameFilter() {
-            public boolean accept(File dir, String name) {
-                return name.endsWith(".yml");
-            }
-        });
-
         groups = new HashMap<String, GroupData>();
 
-        if ( files != null ) {
-            for ( File f : files ) {
-                GroupData group = GroupData.loadFromFile(f);
-                groups.put(group.getName().toLowerCase(), group);
+        UndineDatabase database = parent.getDatabase();
+        if ( database != null ) {
+            for ( String data : database.loadGroups() ) {
+                GroupData group = GroupData.loadFromString(data);
+                if ( group != null ) {
+                    groups.put(group.getName().toLowerCase(), group);
+                }
+            }
+        } else {
+            File folder = parent.getGroupFolder();
+            File[] files = folder.listFiles(new FilenameFilter() {
+                public boolean accept(File dir, String name) {
+                    return name.endsWith(".yml");
+                }
+            });
+
+            if ( files != null ) {
+                for ( File f : files ) {
+                    GroupData group = GroupData.loadFromFile(f);
+                    groups.put(group.getName().toLowerCase(), group);
+                }
             }
         }
 
@@ -152,9 +163,13 @@ public class GroupManager {
         name = name.toLowerCase();
         if ( groups.containsKey(name) ) {
             groups.remove(name);
-            File folder = parent.getGroupFolder();
-            File file = new File(folder, name + ".yml");
-            file.delete();
+            if ( parent.getDatabase() != null ) {
+                parent.getDatabase().deleteGroup(name);
+            } else {
+                File folder = parent.getGroupFolder();
+                File file = new File(folder, name + ".yml");
+                file.delete();
+            }
         }
     }
 
@@ -191,6 +206,11 @@ public class GroupManager {
      * @param group グループ
      */
     public void saveGroupData(GroupData group) {
+        if ( parent.getDatabase() != null ) {
+            parent.getDatabase().saveGroup(
+                    group.getName(), group.getOwner().toString(), group.saveToString());
+            return;
+        }
         File folder = parent.getGroupFolder();
         File file = new File(folder, group.getName().toLowerCase() + ".yml");
         group.saveToFile(file);
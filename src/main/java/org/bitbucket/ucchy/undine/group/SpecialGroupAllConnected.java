@@ -41,12 +41,21 @@ public class SpecialGroupAllConnected extends GroupData {
     @Override
     public ArrayList<MailSender> getMembers() {
         ArrayList<MailSender> members = new ArrayList<MailSender>();
-        for ( String uuid : UndineMailer.getInstance().getPlayerUuids() ) {
-            members.add(new MailSenderPlayer("$" + uuid));
+        for ( String uuid : UndineMailer.getInstance().getPlayerUuidsView() ) {
+            members.add(MailSenderPlayer.getMailSenderPlayer(uuid));
         }
         return members;
     }
 
+    /**
+     * グループのメンバー構成のバージョンを取得する。プレイヤーキャッシュの更新に合わせて変化する。
+     * @see org.bitbucket.ucchy.undine.group.GroupData#getVersion()
+     */
+    @Override
+    public long getVersion() {
+        return UndineMailer.getInstance().getPlayerCacheVersion();
+    }
+
     /**
      * 指定されたsenderが、グループのメンバーかどうかを返す
      * @param sender
@@ -49,6 +49,16 @@ public class SpecialGroupAllLogin extends GroupData {
         return members;
     }
 
+    /**
+     * グループのメンバー構成のバージョンを取得する。
+     * メンバーはログイン中のプレイヤーで随時変わるので、常に-1を返す。
+     * @see org.bitbucket.ucchy.undine.group.GroupData#getVersion()
+     */
+    @Override
+    public long getVersion() {
+        return -1;
+    }
+
     /**
      * 指定されたsenderが、グループのメンバーかどうかを返す
      * @param sender
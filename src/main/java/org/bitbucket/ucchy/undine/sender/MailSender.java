@@ -5,6 +5,8 @@
  */
 package org.bitbucket.ucchy.undine.sender;
 
+import java.util.concurrent.CompletableFuture;
+
 import org.bitbucket.ucchy.undine.UndineMailer;
 import org.bukkit.Bukkit;
 import org.bukkit.Location;
@@ -136,12 +138,47 @@ public abstract class MailSender implements Comparable<MailSender> {
      */
     @Override
     public boolean equals(Object other) {
+        if ( this == other ) {
+            return true;
+        }
         if ( !(other instanceof MailSender) ) {
             return false;
         }
+        // 正規のインスタンス同士なら、別のインスタンスは別の人
+        if ( this.isInterned() && ((MailSender)other).isInterned() ) {
+            return false;
+        }
         return this.toString().equals(((MailSender)other).toString());
     }
 
+    /**
+     * ハッシュ値を返す
+     * @return 文字列表現のハッシュ値
+     * @see java.lang.Object#hashCode()
+     */
+    @Override
+    public int hashCode() {
+        return this.toString().hashCode();
+    }
+
+    /**
+     * UUIDで管理される正規のインスタンスを、非同期で取得する。
+     * UUIDの問い合わせが必要な場合でも、呼び出し元のスレッドをブロックしない。
+     * @return 正規のインスタンスを返すCompletableFuture、変換が不要な場合はこのインスタンスで完了する
+     */
+    public CompletableFuture<MailSender> upgradeAsync() {
+        return CompletableFuture.completedFuture(this);
+    }
+
+    /**
+     * UUIDごとの正規のインスタンスかどうかを返す
+     * @return 正規のインスタンスかどうか
+     * @see MailSenderPlayer#getMailSenderPlayer(String)
+     */
+    public boolean isInterned() {
+        return false;
+    }
+
     /**
      * インスタンス同士の比較を行う。このメソッドを実装しておくことで、
      * Java8でのHashMapのキー挿入における高速化が期待できる（らしい）。
@@ -165,7 +202,7 @@ public abstract class MailSender implements Comparable<MailSender> {
 
         // UUIDからの変換
         if ( nameOrUuid.startsWith("$") ) {
-            return new MailSenderPlayer(nameOrUuid);
+            return MailSenderPlayer.getMailSenderPlayer(nameOrUuid.substring(1));
         }
 
         // nameからの変換
@@ -193,7 +230,11 @@ public abstract class MailSender implements Comparable<MailSender> {
             return new MailSenderConsole((ConsoleCommandSender)sender);
         } else if ( sender instanceof OfflinePlayer ) {
             OfflinePlayer player = (OfflinePlayer)sender;
-            return new MailSenderPlayer("$" + UndineMailer.getInstance().getUUID(player.getName()));
+            String uuid = UndineMailer.getInstance().getUUID(player.getName());
+            if ( uuid == null || uuid.equals("") ) {
+                return new MailSenderPlayer("$" + uuid);
+            }
+            return MailSenderPlayer.getMailSenderPlayer(uuid);
         }
         return null;
     }
@@ -6,6 +6,9 @@
 package org.bitbucket.ucchy.undine.sender;
 
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
 
 import org.bitbucket.ucchy.undine.UndineMailer;
 import org.bitbucket.ucchy.undine.Utility;
@@ -23,8 +26,15 @@ import org.bukkit.metadata.MetadataValue;
  */
 public class MailSenderPlayer extends MailSender {
 
+    // UUIDごとの正規のインスタンス
+    private static ConcurrentHashMap<String, MailSenderPlayer> interned =
+            new ConcurrentHashMap<String, MailSenderPlayer>();
+
     private String nameOrUuid;
     private OfflinePlayer offline;
+    private boolean isInterned;
+    private volatile boolean isHashed;
+    private int hash;
 
     /**
      * コンストラクタ
@@ -34,6 +44,23 @@ public class MailSenderPlayer extends MailSender {
         this.nameOrUuid = nameOrUuid;
     }
 
+    /**
+     * 指定されたUUIDのプレイヤーの、正規のインスタンスを取得する。
+     * 同じUUIDに対しては常に同じインスタンスを返すので、同一かどうかの確認はインスタンスの比較だけで済む。
+     * @param uuid UUID（先頭の "$" は付けない）
+     * @return MailSenderPlayer
+     */
+    public static MailSenderPlayer getMailSenderPlayer(String uuid) {
+        MailSenderPlayer player = interned.get(uuid);
+        if ( player != null ) return player;
+        player = new MailSenderPlayer("$" + uuid);
+        player.isInterned = true;
+        player.hash = player.nameOrUuid.hashCode();
+        player.isHashed = true;
+        MailSenderPlayer previous = interned.putIfAbsent(uuid, player);
+        return previous != null ? previous : player;
+    }
+
     /**
      * コンストラクタ
      * @param player プレイヤー
@@ -49,9 +76,7 @@ public class MailSenderPlayer extends MailSender {
      */
     @Override
     public boolean isOnline() {
-        if ( offline == null ) {
-            offline = getOfflinePlayer();
-        }
+        OfflinePlayer offline = getOfflinePlayer();
         return offline.isOnline();
     }
 
@@ -61,9 +86,7 @@ public class MailSenderPlayer extends MailSender {
      */
     @Override
     public boolean isValidDestination() {
-        if ( offline == null ) {
-            offline = getOfflinePlayer();
-        }
+        OfflinePlayer offline = getOfflinePlayer();
 
         return offline.hasPlayedBefore() || offline.isOnline();
     }
@@ -75,9 +98,7 @@ public class MailSenderPlayer extends MailSender {
      */
     @Override
     public String getName() {
-        if ( offline == null ) {
-            offline = getOfflinePlayer();
-        }
+        OfflinePlayer offline = getOfflinePlayer();
         return offline.getName();
     }
 
@@ -117,14 +138,19 @@ public class MailSenderPlayer extends MailSender {
     @Override
     public OfflinePlayer getOfflinePlayer() {
         if ( offline != null ) return offline;
+        OfflinePlayer result;
         if ( nameOrUuid.startsWith("$") ) {
             //offline = Bukkit.getOfflinePlayer(UUID.fromString(nameOrUuid.substring(1)));
             String name = UndineMailer.getInstance().getName(nameOrUuid.substring(1));
-            offline = Bukkit.getOfflinePlayer(name);
+            result = Bukkit.getOfflinePlayer(name);
         } else {
-            offline = Bukkit.getOfflinePlayer(nameOrUuid);
+            result = Bukkit.getOfflinePlayer(nameOrUuid);
+        }
+        // 正規のインスタンスは使い回されるので、ログアウトすると無効になるPlayerは保持しない
+        if ( !isInterned || !(result instanceof Player) ) {
+            offline = result;
         }
-        return offline;
+        return result;
     }
 
     /**
@@ -134,9 +160,7 @@ public class MailSenderPlayer extends MailSender {
      */
     @Override
     public Player getPlayer() {
-        if ( offline == null ) {
-            offline = getOfflinePlayer();
-        }
+        OfflinePlayer offline = getOfflinePlayer();
         return offline.getPlayer();
     }
 
@@ -191,9 +215,7 @@ public class MailSenderPlayer extends MailSender {
      */
     @Override
     public boolean isOp() {
-        if ( offline == null ) {
-            offline = getOfflinePlayer();
-        }
+        OfflinePlayer offline = getOfflinePlayer();
         return offline.isOp();
     }
 
@@ -205,9 +227,7 @@ public class MailSenderPlayer extends MailSender {
      */
     @Override
     public void setStringMetadata(String key, String value) {
-        if ( offline == null ) {
-            offline = getOfflinePlayer();
-        }
+        OfflinePlayer offline = getOfflinePlayer();
         Player player = offline.getPlayer();
         if ( !offline.isOnline() || player == null ) {
             return;
@@ -224,9 +244,7 @@ public class MailSenderPlayer extends MailSender {
      */
     @Override
     public String getStringMetadata(String key) {
-        if ( offline == null ) {
-            offline = getOfflinePlayer();
-        }
+        OfflinePlayer offline = getOfflinePlayer();
         Player player = offline.getPlayer();
         if ( !offline.isOnline() || player == null ) {
             return null;
@@ -246,9 +264,7 @@ public class MailSenderPlayer extends MailSender {
      */
     @Override
     public void setBooleanMetadata(String key, boolean value) {
-        if ( offline == null ) {
-            offline = getOfflinePlayer();
-        }
+        OfflinePlayer offline = getOfflinePlayer();
         Player player = offline.getPlayer();
         if ( !offline.isOnline() || player == null ) {
             return;
@@ -265,9 +281,7 @@ public class MailSenderPlayer extends MailSender {
      */
     @Override
     public boolean getBooleanMetadata(String key) {
-        if ( offline == null ) {
-            offline = getOfflinePlayer();
-        }
+        OfflinePlayer offline = getOfflinePlayer();
         Player player = offline.getPlayer();
         if ( !offline.isOnline() || player == null ) {
             return false;
@@ -306,7 +320,7 @@ public class MailSenderPlayer extends MailSender {
         upgrade();
         if ( !nameOrUuid.startsWith("$") ) return false;
         String uuid = nameOrUuid.substring(1);
-        return UndineMailer.getInstance().getPlayerUuids().contains(uuid);
+        return UndineMailer.getInstance().getPlayerUuidsView().contains(uuid);
     }
 
     /**
@@ -316,10 +330,75 @@ public class MailSenderPlayer extends MailSender {
      */
     @Override
     public String toString() {
-        upgrade();
+        if ( !isInterned ) upgrade();
         return nameOrUuid;
     }
 
+    /**
+     * UUIDで管理される正規のインスタンスを、非同期で取得する。
+     * プレイヤー名で管理されている場合は、UUIDのキャッシュに無ければ非同期スレッドで問い合わせる。
+     * @return 正規のインスタンスを返すCompletableFuture、UUIDが見つからない場合はこのインスタンスで完了する
+     * @see org.bitbucket.ucchy.undine.sender.MailSender#upgradeAsync()
+     */
+    @Override
+    public CompletableFuture<MailSender> upgradeAsync() {
+
+        if ( isInterned ) {
+            return CompletableFuture.completedFuture((MailSender)this);
+        }
+        if ( nameOrUuid.startsWith("$") ) {
+            return CompletableFuture.completedFuture((MailSender)getMailSenderPlayer(nameOrUuid.substring(1)));
+        }
+        if ( !Utility.isCB178orLater() ) {
+            return CompletableFuture.completedFuture((MailSender)this);
+        }
+
+        return UndineMailer.getInstance().getUUIDAsync(nameOrUuid).thenApply(
+                new Function<String, MailSender>() {
+            public MailSender apply(String uuid) {
+                if ( uuid == null || uuid.equals("") ) {
+                    return MailSenderPlayer.this;
+                }
+                return getMailSenderPlayer(uuid);
+            }
+        });
+    }
+
+    /**
+     * 正規のインスタンスかどうかを返す
+     * @return 正規のインスタンスかどうか
+     * @see org.bitbucket.ucchy.undine.sender.MailSender#isInterned()
+     */
+    @Override
+    public boolean isInterned() {
+        return isInterned;
+    }
+
+    /**
+     * ハッシュ値を返す。正規のインスタンスは、作成時に計算した値を返す。
+     * <p>
+     * 正規のインスタンスでない場合は、UUIDを問い合わせてメインスレッドを止めないように、
+     * キャッシュにあるUUIDだけを使ってアップグレードしてから、最初に呼び出されたときの文字列表現で決める。
+     * ハッシュを使うコレクションに入れた後でハッシュ値が変わらないように、
+     * 決めた後は upgrade で文字列表現を変えない。
+     * </p>
+     * @return ハッシュ値
+     * @see org.bitbucket.ucchy.undine.sender.MailSender#hashCode()
+     */
+    @Override
+    public int hashCode() {
+        if ( !isHashed ) {
+            synchronized (this) {
+                if ( !isHashed ) {
+                    upgradeFromCache();
+                    hash = nameOrUuid.hashCode();
+                    isHashed = true;
+                }
+            }
+        }
+        return hash;
+    }
+
     /**
      * データのアップグレードを行う。
      * @return アップグレードを実行したかどうか
@@ -332,10 +411,23 @@ public class MailSenderPlayer extends MailSender {
         // nameOrUuidが $ から始まる文字列なら、アップグレード済みなので何もしない
         if ( nameOrUuid.startsWith("$") ) return false;
 
+        // ハッシュ値を決めた後は、ハッシュ値が変わらないように何もしない
+        if ( isHashed ) return false;
+
         // nameOrUuidを、$ + UUID に変更する
         String uuid = UndineMailer.getInstance().getUUID(nameOrUuid);
         if ( uuid.equals("") ) return false;
         nameOrUuid = "$" + uuid;
         return true;
     }
+
+    /**
+     * キャッシュにあるUUIDだけを使って、データのアップグレードを行う。UUIDの問い合わせは行わない。
+     */
+    private void upgradeFromCache() {
+        if ( !Utility.isCB178orLater() || nameOrUuid.startsWith("$") ) return;
+        String uuid = UndineMailer.getInstance().getCachedUUID(nameOrUuid);
+        if ( uuid == null || uuid.equals("") ) return;
+        nameOrUuid = "$" + uuid;
+    }
 }
@@ -0,0 +1,144 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2020
+ */
+package org.bitbucket.ucchy.undine;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * MailDataCodecのテスト
+ * @author ucchy
+ */
+public class MailDataCodecTest extends TestCase {
+
+    public void testSenderRoundTrip() throws IOException {
+
+        // UUIDは2つのlong値として格納され、元の文字列に戻ること
+        String uuid = "$9603ae84-5be8-40af-af14-a62ed0f14a29";
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        MailDataCodec.writeSender(new DataOutputStream(bytes), uuid);
+        assertEquals(1 + 8 + 8, bytes.size());
+        assertEquals(uuid, MailDataCodec.readSender(input(bytes.toByteArray())));
+
+        // UUIDでないものは、文字列のまま格納されること
+        for ( String sender : new String[]{"ucchy", "CONSOLE", "@", "$not-a-uuid",
+                "$9603AE84-5BE8-40AF-AF14-A62ED0F14A29"} ) {
+            bytes = new ByteArrayOutputStream();
+            MailDataCodec.writeSender(new DataOutputStream(bytes), sender);
+            assertEquals(sender, MailDataCodec.readSender(input(bytes.toByteArray())));
+        }
+    }
+
+    public void testStringsRoundTrip() throws IOException {
+
+        List<String> list = new ArrayList<String>();
+        list.add("");
+        list.add("hello");
+        list.add("日本語のメッセージだよ！");
+        list.add("&aカラーコード&rと\n改行");
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        MailDataCodec.writeStrings(new DataOutputStream(bytes), list);
+        assertEquals(list, MailDataCodec.readStrings(input(bytes.toByteArray())));
+    }
+
+    public void testMailRoundTrip() throws IOException {
+
+        MailData mail = new MailData();
+        mail.setIndex(12345);
+        mail.addMessage("1行目");
+        mail.addMessage("second line");
+        mail.addToGroup("friends");
+        mail.setCostMoney(100.5);
+        mail.setDate(new Date(1580000000000L));
+        mail.makeAttachmentsOriginal();
+
+        byte[] data = MailDataCodec.encode(mail);
+        assertTrue(MailDataCodec.isEncoded(data));
+
+        MailData decoded = MailDataCodec.decode(data);
+        assertEquals(12345, decoded.getIndex());
+        assertEquals(mail.getMessage(), decoded.getMessage());
+        assertEquals(mail.getToGroups(), decoded.getToGroups());
+        assertEquals(100.5, decoded.getCostMoney());
+        assertEquals(mail.getDate(), decoded.getDate());
+        assertNotNull(decoded.getAttachmentsOriginal());
+        assertTrue(decoded.getAttachmentsOriginal().isEmpty());
+        assertNull(decoded.getToTotal());
+        assertNull(decoded.getLocation());
+        assertFalse(decoded.isAttachmentsCancelled());
+
+        // 再エンコードした結果が一致すること
+        assertTrue(Arrays.equals(data, MailDataCodec.encode(decoded)));
+    }
+
+    public void testRefusedRoundTrip() throws IOException {
+
+        MailData mail = new MailData();
+        mail.setIndex(1);
+        mail.refuseAttachments("いらない");
+
+        MailData decoded = MailDataCodec.decode(MailDataCodec.encode(mail));
+        assertTrue(decoded.isAttachmentsCancelled());
+        assertTrue(decoded.isAttachmentsRefused());
+        assertEquals("いらない", decoded.getAttachmentsRefusedReason());
+    }
+
+    public void testSkipUnknownField() throws IOException {
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MailDataCodec.MAGIC);
+        out.writeShort(MailDataCodec.VERSION);
+        out.writeByte(200);
+        out.writeInt(3);
+        out.write(new byte[]{1, 2, 3});
+        out.writeByte(MailDataCodec.FIELD_INDEX);
+        out.writeInt(4);
+        out.writeInt(99);
+        out.writeByte(MailDataCodec.FIELD_END);
+
+        assertEquals(99, MailDataCodec.decode(bytes.toByteArray()).getIndex());
+    }
+
+    public void testRejectInvalidData() throws IOException {
+
+        assertFalse(MailDataCodec.isEncoded("index: 1".getBytes("UTF-8")));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MailDataCodec.MAGIC);
+        out.writeShort(MailDataCodec.VERSION + 1);
+        out.writeByte(MailDataCodec.FIELD_END);
+
+        try {
+            MailDataCodec.decode(bytes.toByteArray());
+            fail("Newer version must be rejected.");
+        } catch (IOException e) {
+            // ok
+        }
+
+        try {
+            MailDataCodec.decode("index: 1\n".getBytes("UTF-8"));
+            fail("Yaml data must be rejected.");
+        } catch (IOException e) {
+            // ok
+        }
+    }
+
+    private static DataInputStream input(byte[] data) {
+        return new DataInputStream(new ByteArrayInputStream(data));
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2020
+ */
+package org.bitbucket.ucchy.undine;
+
+/**
+ * MessageTemplateと、以前のString.replaceによる置き換えの速度を比べるベンチマーク。
+ * 通常のテストでは実行せず、mvn -P benchmark test で実行する。
+ * @author ucchy
+ */
+public class MessageTemplateBenchmark {
+
+    private static final int LOOP = 200000;
+
+    /**
+     * ベンチマークを実行する
+     * @param args 使用しない
+     */
+    public static void main(String[] args) {
+
+        String[] messages = MessageTemplateTest.MESSAGES;
+        String[] keys = MessageTemplateTest.KEYS;
+        String[] values = MessageTemplateTest.VALUES;
+
+        MessageTemplate[] templates = new MessageTemplate[messages.length];
+        for ( int i = 0; i < messages.length; i++ ) {
+            templates[i] = MessageTemplate.compile(messages[i]);
+        }
+
+        long sink = 0;
+
+        // ウォームアップ
+        for ( int i = 0; i < LOOP; i++ ) {
+            sink += MessageTemplateTest.replace(messages[i % messages.length], keys, values).length();
+            sink += templates[i % messages.length].render(keys, values).length();
+        }
+
+        long start = System.nanoTime();
+        for ( int i = 0; i < LOOP; i++ ) {
+            sink += MessageTemplateTest.replace(messages[i % messages.length], keys, values).length();
+        }
+        long replaceTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for ( int i = 0; i < LOOP; i++ ) {
+            sink += templates[i % messages.length].render(keys, values).length();
+        }
+        long templateTime = System.nanoTime() - start;
+
+        System.out.println("MessageTemplate benchmark (" + LOOP + " renders): replace "
+                + (replaceTime / 1000000) + "ms, template " + (templateTime / 1000000)
+                + "ms (" + sink + ")");
+    }
+}
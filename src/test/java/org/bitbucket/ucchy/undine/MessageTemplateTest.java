@@ -0,0 +1,76 @@
+/*
+ * @author     ucchy
+ * @license    LGPLv3
+ * @copyright  Copyright ucchy 2020
+ */
+package org.bitbucket.ucchy.undine;
+
+import junit.framework.TestCase;
+
+/**
+ * MessageTemplateのテスト
+ * @author ucchy
+ */
+public class MessageTemplateTest extends TestCase {
+
+    protected static final String[] MESSAGES = {
+        "&6[%index] &f%name (%date) %desc",
+        "&aYou sent mail to %to. (%num/%total)",
+        "%param is not number.",
+        "Page: %num / %total",
+        "No placeholders here.",
+    };
+
+    // 以前の置き換えでは、%to が %total の一部を置き換えてしまうので、%total を先に置く
+    protected static final String[] KEYS =
+        {"%index", "%name", "%date", "%desc", "%total", "%to", "%num", "%param"};
+    protected static final String[] VALUES =
+        {"123", "ucchy", "Jan 01 12:00", "Hello, world!", "10", "CONSOLE", "2", "abc"};
+
+    public void testRender() {
+
+        MessageTemplate template = MessageTemplate.compile("%from -> %to (%total), 100% done");
+        assertEquals("ucchy -> CONSOLE (3), 100% done", template.render(
+                new String[]{"%from", "%to", "%total"}, new String[]{"ucchy", "CONSOLE", "3"}));
+
+        // 値が指定されていないキーワードは、そのまま残ること
+        assertEquals("ucchy -> %to (%total), 100% done", template.render("%from", "ucchy"));
+        assertEquals("%from -> %to (%total), 100% done", template.render(
+                new String[]{"%from", "%to"}, new String[]{}));
+
+        // 置き換えた値に含まれるキーワードは、さらに置き換えられないこと
+        assertEquals("%to -> b (%total), 100% done", template.render(
+                new String[]{"%from", "%to"}, new String[]{"%to", "b"}));
+
+        // キーワードの無いメッセージは、そのまま返ること
+        MessageTemplate plain = MessageTemplate.compile("50% off, %");
+        assertSame(plain.getText(), plain.render("%num", "1"));
+        assertEquals("", MessageTemplate.EMPTY.render("%num", "1"));
+    }
+
+    public void testIsKeyword() {
+        assertTrue(MessageTemplate.isKeyword("%num"));
+        assertTrue(MessageTemplate.isKeyword("%player_2"));
+        assertFalse(MessageTemplate.isKeyword("%"));
+        assertFalse(MessageTemplate.isKeyword("num"));
+        assertFalse(MessageTemplate.isKeyword("%s (%s)"));
+        assertFalse(MessageTemplate.isKeyword(null));
+    }
+
+    public void testEquivalence() {
+
+        // 以前の置き換えと、同じ結果になること
+        for ( String message : MESSAGES ) {
+            assertEquals(replace(message, KEYS, VALUES), MessageTemplate.compile(message).render(KEYS, VALUES));
+        }
+    }
+
+    // 以前のMessages.getと同じ、キーワードを順にString.replaceする置き換え
+    protected static String replace(String message, String[] keys, String[] values) {
+        for ( int index=0; index<keys.length; index++ ) {
+            if ( values.length < (index + 1) ) continue;
+            message = message.replace(keys[index], values[index]);
+        }
+        return message;
+    }
+}
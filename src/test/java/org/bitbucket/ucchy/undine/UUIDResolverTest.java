@@ -5,9 +5,18 @@
  */
 package org.bitbucket.ucchy.undine;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
 
 import junit.framework.TestCase;
 
@@ -84,4 +93,166 @@ public class UUIDResolverTest extends TestCase {
         assertTrue(name2 == null);
     }
 
+    public void testGetUUIDWithStubServer() throws IOException {
+
+        // ローカルのスタブサーバーに対して、UUIDのオンライン解決をテストする
+
+        final AtomicInteger requests = new AtomicInteger();
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/users/profiles/minecraft/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                requests.incrementAndGet();
+                byte[] body = "{\"id\":\"0123456789abcdef0123456789abcdef\",\"name\":\"stubplayer\"}"
+                        .getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            }
+        });
+        server.start();
+
+        try {
+            UUIDResolver.setApiUrl("http://127.0.0.1:" + server.getAddress().getPort());
+            UUIDResolver resolver = new UUIDResolver(true);
+
+            String uuid = resolver.getUUIDFromName("stubplayer", null);
+            assertEquals("01234567-89ab-cdef-0123-456789abcdef", uuid);
+
+            // 2回目はキャッシュから取得されるので、問い合わせは行われない
+            String uuid2 = resolver.getUUIDFromName("stubplayer", null);
+            assertEquals(uuid, uuid2);
+            assertEquals(1, requests.get());
+
+        } finally {
+            UUIDResolver.setApiUrl(null);
+            server.stop(0);
+        }
+    }
+
+    public void testGetUUIDsWithRetryAfter() throws IOException {
+
+        // リクエスト過多の応答を受けたら、Retry-Afterの時間だけ待ってから同じバッチを再送することをテストする
+
+        final AtomicInteger requests = new AtomicInteger();
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/profiles/minecraft", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                while ( exchange.getRequestBody().read() != -1 ) {
+                    // リクエストの本文を読み捨てる
+                }
+                if ( requests.incrementAndGet() == 1 ) {
+                    exchange.getResponseHeaders().set("Retry-After", "1");
+                    exchange.sendResponseHeaders(429, -1);
+                    exchange.close();
+                    return;
+                }
+                byte[] body = "[{\"id\":\"fedcba9876543210fedcba9876543210\",\"name\":\"retryplayer\"}]"
+                        .getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            }
+        });
+        server.start();
+
+        try {
+            UUIDResolver.setApiUrl("http://127.0.0.1:" + server.getAddress().getPort());
+            UUIDResolver resolver = new UUIDResolver(true, new TokenBucket(10, 600));
+
+            ArrayList<String> names = new ArrayList<>();
+            names.add("retryplayer");
+            long timeStart = System.currentTimeMillis();
+            Map<String, String> results = resolver.getUUIDsFromNames(names);
+
+            assertEquals("fedcba98-7654-3210-fedc-ba9876543210", results.get("retryplayer"));
+            assertEquals(2, requests.get());
+            assertTrue(System.currentTimeMillis() - timeStart >= 1000L);
+
+        } finally {
+            UUIDResolver.setApiUrl(null);
+            server.stop(0);
+        }
+    }
+
+    public void testNegativeCache() throws IOException {
+
+        // 見つからなかったプレイヤー名は、時点を変えた問い合わせも含めて、2回目以降は問い合わせないことをテストする
+
+        final AtomicInteger requests = new AtomicInteger();
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                while ( exchange.getRequestBody().read() != -1 ) {
+                    // リクエストの本文を読み捨てる
+                }
+                requests.incrementAndGet();
+                if ( exchange.getRequestURI().getPath().equals("/profiles/minecraft") ) {
+                    byte[] body = "[]".getBytes(StandardCharsets.UTF_8);
+                    exchange.sendResponseHeaders(200, body.length);
+                    try (OutputStream out = exchange.getResponseBody()) {
+                        out.write(body);
+                    }
+                } else {
+                    exchange.sendResponseHeaders(204, -1);
+                    exchange.close();
+                }
+            }
+        });
+        server.start();
+
+        try {
+            UUIDResolver.setApiUrl("http://127.0.0.1:" + server.getAddress().getPort());
+            UUIDResolver resolver = new UUIDResolver(true);
+
+            // 指定時点、at=0、時点指定なし、の3回問い合わせる
+            assertNull(resolver.getUUIDFromName("nosuchplayer", new Date()));
+            assertEquals(3, requests.get());
+            assertNull(resolver.getUUIDFromName("NoSuchPlayer", new Date()));
+            assertEquals(3, requests.get());
+
+            // まとめて問い合わせる場合も、記録済みのプレイヤー名は問い合わせない
+            ArrayList<String> names = new ArrayList<>();
+            names.add("nosuchplayer");
+            assertTrue(resolver.getUUIDsFromNames(names).isEmpty());
+            assertEquals(3, requests.get());
+
+            names.add("anotherunknown");
+            assertTrue(resolver.getUUIDsFromNames(names).isEmpty());
+            assertEquals(4, requests.get());
+            assertNull(resolver.getUUIDFromName("anotherunknown", null));
+            assertEquals(4, requests.get());
+
+        } finally {
+            UUIDResolver.setApiUrl(null);
+            UUIDResolver.getNegativeCache().clear();
+            server.stop(0);
+        }
+    }
+
+    public void testNegativeCacheEviction() {
+
+        // 上限を超えたら、最も長く参照されていないものから削除されることをテストする
+
+        UUIDNegativeCache cache = new UUIDNegativeCache(2, 60000L);
+        cache.add("a");
+        cache.add("b");
+        assertTrue(cache.contains("a"));
+        cache.add("c");
+        assertTrue(cache.contains("a"));
+        assertFalse(cache.contains("b"));
+        assertTrue(cache.contains("c"));
+        assertEquals(2, cache.size());
+
+        UUIDNegativeCache expired = new UUIDNegativeCache(2, 1L);
+        expired.add("a");
+        try {
+            Thread.sleep(10);
+        } catch (InterruptedException e) {
+            // do nothing.
+        }
+        assertFalse(expired.contains("a"));
+    }
+
 }